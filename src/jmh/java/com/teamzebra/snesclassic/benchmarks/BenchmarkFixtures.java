@@ -0,0 +1,116 @@
+package com.teamzebra.snesclassic.benchmarks;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synthetic inputs for the benchmarks, so that they run without a real NESC dump. Content is
+ * generated from a fixed seed, half of it text-like and half random, so it compresses roughly
+ * like the mix of scripts, assets and binaries in a dump, and is the same from run to run.
+ */
+final class BenchmarkFixtures {
+
+    private static final long SEED = 0x5EC1A551CL;
+
+    private static final byte[] TEXT = ("[Desktop Entry]\nExec=/usr/bin/clover-kachikachi "
+            + "/usr/share/games/nes/kachikachi/CLV-P-NAAAE/CLV-P-NAAAE.nes\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Write a .tar.gz archive of evenly sized files, spread over a few directories like a dump.
+     * @param directory Where to write the archive
+     * @param entryCount How many files the archive holds
+     * @param entrySize How big each file is
+     * @return The archive
+     * @throws IOException
+     */
+    static File createTarGz(final File directory, final int entryCount, final int entrySize) throws IOException {
+        final File archive = new File(directory, String.format("bench-%d-%d.tar.gz", entryCount, entrySize));
+        final Random random = new Random(SEED);
+
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(
+                new BufferedOutputStream(new FileOutputStream(archive), 64 * 1024)))) {
+            for (int i = 0; i < entryCount; i++) {
+                final TarArchiveEntry entry = new TarArchiveEntry(entryName(i));
+                final byte[] content = content(random, entrySize);
+                entry.setSize(content.length);
+                tar.putArchiveEntry(entry);
+                tar.write(content);
+                tar.closeArchiveEntry();
+            }
+        }
+
+        return archive;
+    }
+
+    /**
+     * Write a directory tree of evenly sized files, laid out like {@link #createTarGz}.
+     * @param directory The root of the tree to create
+     * @param fileCount How many files the tree holds
+     * @param fileSize How big each file is
+     * @return The root of the tree
+     * @throws IOException
+     */
+    static File createTree(final File directory, final int fileCount, final int fileSize) throws IOException {
+        final Random random = new Random(SEED);
+
+        for (int i = 0; i < fileCount; i++) {
+            final File file = new File(directory, entryName(i));
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), content(random, fileSize));
+        }
+
+        return directory;
+    }
+
+    /**
+     * Generate content for a file.
+     * @param random The source of the random half
+     * @param size How many bytes to generate
+     * @return The content
+     */
+    static byte[] content(final Random random, final int size) {
+        final byte[] content = new byte[size];
+        final int textLength = size / 2;
+
+        for (int i = 0; i < textLength; i++) {
+            content[i] = TEXT[i % TEXT.length];
+        }
+
+        final byte[] noise = new byte[size - textLength];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, content, textLength, noise.length);
+        return content;
+    }
+
+    /**
+     * Generate text shaped like the desktop files of NES games, which the game patches apply to.
+     * @param size Roughly how many bytes to generate
+     * @return The text
+     */
+    static byte[] desktopText(final int size) {
+        final byte[] content = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            content[i] = TEXT[i % TEXT.length];
+        }
+
+        return content;
+    }
+
+    private static String entryName(final int index) {
+        return String.format("usr/share/bench/d%02d/file%05d.bin", index % 16, index);
+    }
+}
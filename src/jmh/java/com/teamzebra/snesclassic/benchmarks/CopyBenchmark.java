@@ -0,0 +1,88 @@
+package com.teamzebra.snesclassic.benchmarks;
+
+import com.teamzebra.snesclassic.files.FileCopier;
+import com.teamzebra.snesclassic.hmod.DirectoryHmodSink;
+import com.teamzebra.snesclassic.hmod.HmodOverlay;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying an extracted dump directory into the HMOD folder through an {@link HmodOverlay}, with the
+ * files copied on the {@link FileCopier}'s threads as the build does, one at a time, and with
+ * commons-io as it used to, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"500"})
+    public int fileCount;
+
+    @Param({"4096", "262144"})
+    public int fileSize;
+
+    private File workDirectory;
+    private File source;
+    private File target;
+    private FileCopier copier;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("copy-benchmark").toFile();
+        source = BenchmarkFixtures.createTree(new File(workDirectory, "source"), fileCount, fileSize);
+        target = new File(workDirectory, "target");
+        copier = new FileCopier(Runtime.getRuntime().availableProcessors(), FileCopier.LinkMode.NONE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        copier.close();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Benchmark
+    public int copyDirectory() throws IOException {
+        return flush(copier);
+    }
+
+    @Benchmark
+    public int copyDirectorySerial() throws IOException {
+        return flush(null);
+    }
+
+    @Benchmark
+    public File copyDirectoryCommonsIo() throws IOException {
+        FileUtils.copyDirectory(source, target);
+        return target;
+    }
+
+    private int flush(final FileCopier parallelCopier) throws IOException {
+        final HmodOverlay overlay = new HmodOverlay();
+        overlay.addDirectory("tree", source);
+
+        try (DirectoryHmodSink sink = new DirectoryHmodSink(target, copier)) {
+            return overlay.flush(sink, parallelCopier);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.teamzebra.snesclassic.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.teamzebra.snesclassic.files.BufferPool;
+import com.teamzebra.snesclassic.hmod.HmodPatches;
+import com.teamzebra.snesclassic.hmod.TextPatcher;
+import com.teamzebra.snesclassic.patching.BinaryPatch;
+import com.teamzebra.snesclassic.patching.BinaryPatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The patch steps: the multi-substitution applied to text files, on arrays and on pooled buffers,
+ * and the binary patch, both when the hinted sites check out and when the signatures have to be
+ * scanned for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PatchBenchmark {
+
+    private static final String SIGNATURE = "/usr/share/kachikachi";
+
+    @Param({"4096", "1048576"})
+    public int contentSize;
+
+    private final BufferPool pool = new BufferPool(2);
+    private byte[] text;
+    private byte[] binary;
+    private ByteBuffer working;
+    private List<BinaryPatch> hinted;
+    private List<BinaryPatch> scanned;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        text = BenchmarkFixtures.desktopText(contentSize);
+        binary = BenchmarkFixtures.content(new Random(contentSize), contentSize);
+
+        // two copies of the path, as in kachikachi, a third and two thirds of the way in
+        final byte[] signature = SIGNATURE.getBytes(StandardCharsets.US_ASCII);
+        final int first = contentSize / 3;
+        final int second = 2 * contentSize / 3;
+        System.arraycopy(signature, 0, binary, first, signature.length);
+        System.arraycopy(signature, 0, binary, second, signature.length);
+
+        final BinaryPatch patch = BinaryPatch.replace(SIGNATURE, 1, "etc");
+        hinted = ImmutableList.of(patch.hint(first + 1), patch.occurrence(1).hint(second + 1));
+        scanned = ImmutableList.of(patch, patch.occurrence(1));
+        working = ByteBuffer.allocateDirect(contentSize);
+    }
+
+    @Benchmark
+    public byte[] textPatch() {
+        return TextPatcher.apply(text, HmodPatches.GAME_PATCHES);
+    }
+
+    @Benchmark
+    public int textPatchPooled() {
+        final ByteBuffer content = pool.acquire(text.length);
+        content.put(text);
+        content.flip();
+
+        final ByteBuffer patched = TextPatcher.apply(content, HmodPatches.GAME_PATCHES, pool);
+        final int length = patched.remaining();
+        pool.release(patched);
+        return length;
+    }
+
+    @Benchmark
+    public ByteBuffer binaryPatchHinted() throws IOException {
+        return binaryPatch(hinted);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryPatchScanned() throws IOException {
+        return binaryPatch(scanned);
+    }
+
+    private ByteBuffer binaryPatch(final List<BinaryPatch> patches) throws IOException {
+        working.clear();
+        working.put(binary);
+        working.flip();
+        BinaryPatcher.apply(working, patches, "benchmark");
+        return working;
+    }
+}
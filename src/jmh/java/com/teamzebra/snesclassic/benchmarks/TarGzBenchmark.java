@@ -0,0 +1,95 @@
+package com.teamzebra.snesclassic.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.tarfiles.GzipSeekIndex;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a .tar.gz archive: loading it whole into a {@link TarGzArchive}, looking entries up in one
+ * that's loaded, streaming through every entry, and pulling a single entry through a seek index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarGzBenchmark {
+
+    @Param({"1000"})
+    public int entryCount;
+
+    @Param({"4096", "65536"})
+    public int entrySize;
+
+    private File workDirectory;
+    private File archive;
+    private TarGzArchive loaded;
+    private List<String> names;
+    private GzipSeekIndex index;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("tar-gz-benchmark").toFile();
+        archive = BenchmarkFixtures.createTarGz(workDirectory, entryCount, entrySize);
+        loaded = new TarGzArchive(archive);
+        names = new ArrayList<>(loaded.getEntries());
+        Collections.sort(names);
+        index = GzipSeekIndex.build(archive, "benchmark", (entry, content) -> ByteStreams.exhaust(content));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Benchmark
+    public TarGzArchive load() throws IOException {
+        return new TarGzArchive(archive);
+    }
+
+    @Benchmark
+    public byte[] entryAccess() {
+        next = (next + 1) % names.size();
+        return loaded.getEntryContent(names.get(next));
+    }
+
+    @Benchmark
+    public long visitEntries() throws IOException {
+        final long[] total = new long[1];
+        TarGzArchive.visitEntries(archive, (entry, content) -> total[0] += ByteStreams.exhaust(content));
+        return total[0];
+    }
+
+    @Benchmark
+    public long indexedEntry() throws IOException {
+        next = (next + 1) % names.size();
+        final String name = names.get(next);
+        final long[] total = new long[1];
+        index.visitEntries(archive, name::equals, (entry, content) -> total[0] += ByteStreams.exhaust(content));
+        return total[0];
+    }
+}
@@ -1,19 +1,48 @@
 package com.teamzebra.snesclassic;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
+import com.teamzebra.snesclassic.build.BuildCache;
+import com.teamzebra.snesclassic.build.BuildSession;
+import com.teamzebra.snesclassic.files.ChangeWatcher;
+import com.teamzebra.snesclassic.files.FileCopier;
+import com.teamzebra.snesclassic.firmware.DumpDetector;
+import com.teamzebra.snesclassic.firmware.DumpFingerprint;
+import com.teamzebra.snesclassic.firmware.FirmwareProfile;
+import com.teamzebra.snesclassic.firmware.SyntheticDumpWriter;
+import com.teamzebra.snesclassic.hmod.ArchiveHmodSink;
+import com.teamzebra.snesclassic.hmod.DirectHmodWriter;
+import com.teamzebra.snesclassic.hmod.DirectoryHmodSink;
+import com.teamzebra.snesclassic.hmod.DumpMapping;
+import com.teamzebra.snesclassic.hmod.HmodDelta;
+import com.teamzebra.snesclassic.hmod.HmodLayout;
+import com.teamzebra.snesclassic.hmod.HmodManifest;
+import com.teamzebra.snesclassic.hmod.HmodOverlay;
+import com.teamzebra.snesclassic.hmod.HmodPatches;
+import com.teamzebra.snesclassic.hmod.HmodSink;
+import com.teamzebra.snesclassic.hmod.HmodVerifier;
+import com.teamzebra.snesclassic.hmod.ManifestHmodSink;
+import com.teamzebra.snesclassic.hmod.TextPatcher;
+import com.teamzebra.snesclassic.patching.BinaryPatch;
+import com.teamzebra.snesclassic.patching.BinaryPatcher;
+import com.teamzebra.snesclassic.pipeline.BuildContext;
+import com.teamzebra.snesclassic.pipeline.Stage;
+import com.teamzebra.snesclassic.pipeline.StageExecutor;
+import com.teamzebra.snesclassic.pipeline.StageGraph;
+import com.teamzebra.snesclassic.report.BuildLog;
+import com.teamzebra.snesclassic.report.BuildReport;
+import com.teamzebra.snesclassic.tarfiles.GzipSeekIndex;
 import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
-import org.apache.commons.io.FileUtils;
+import com.teamzebra.snesclassic.tarfiles.TarGzExtractor;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,19 +63,80 @@ public class Main {
     private static final String HMOD_FOLDER = "nesc_hybrid_system.hmod";
 
     /**
-     * The list of valid NESC dump files.
+     * The .hmod archive written when running with --archive.
      */
-    private static final String NES_102_DUMP = "dp-nes-release-v1.0.2-0-g99e37e1.tar.gz";
-    private static final String NES_103_DUMP = "dp-nes-release-v1.0.3-0-gc4c703b.tar.gz";
-    private static final String HVC_105_DUMP = "dp-hvc-release-v1.0.5-0-g2f04d11.tar.gz";
+    private static final String HMOD_ARCHIVE = "out/nesc_hybrid_system.hmod";
 
-    private static final List<String> VALID_NESC_DUMP_FILES = ImmutableList.of(
-            NES_102_DUMP, NES_103_DUMP, HVC_105_DUMP);
+    /**
+     * Where --delta writes its update package, named like the HMOD so that it installs in its place.
+     */
+    private static final String DELTA_ARCHIVE = "out/delta/nesc_hybrid_system.hmod";
 
     /**
-     * The dump file that the user actually supplied.
+     * The non-copyrighted files within the HMOD folder that we ship with the application.
      */
-    private static String chosenDumpFile;
+    private static final List<String> BUNDLED_HMOD_FILES = ImmutableList.of(
+            "install",
+            "uninstall",
+            "bin/switch_to_nes",
+            "bin/switch_to_snes",
+            "bin/switch_to_nes_child",
+            "bin/hybrid_nesc_kachikachi_wr",
+            "etc/nesgames/CLV-P-0SNES/CLV-P-0SNES.desktop",
+            "etc/nesgames/CLV-P-0SNES/CLV-P-0SNES.png",
+            "etc/nesgames/CLV-P-0SNES/CLV-P-0SNES_small.png");
+
+    /**
+     * The files of the NESC launcher that we ship with the application.
+     */
+    private static final List<String> BUNDLED_NESC_LAUNCHER_FILES = ImmutableList.of(
+            "CLV-S-00NES/CLV-S-00NES.desktop",
+            "CLV-S-00NES/CLV-S-00NES.png",
+            "CLV-S-00NES/CLV-S-00NES_small.png");
+
+    /**
+     * Where --batch builds each HMOD by default, in a folder named after the firmware release.
+     */
+    private static final String BATCH_FOLDER = "out";
+
+    /**
+     * How many HMODs --batch builds at once, unless told otherwise with --jobs=N.
+     */
+    private static final int DEFAULT_BATCH_JOBS = 2;
+
+    /**
+     * The fewest stages to run at once, however few cores there are, since most of them spend
+     * their time waiting on the disk rather than the CPU.
+     */
+    private static final int MIN_PARALLEL_STAGES = 4;
+
+    /**
+     * Where --incremental remembers what went into each file of the HMOD folder.
+     */
+    private static final String BUILD_CACHE = "nesc_hybrid_system.hmod.cache";
+
+    /**
+     * Added to the name of a dump for the seek index that --incremental keeps next to it.
+     */
+    private static final String DUMP_INDEX_SUFFIX = ".index";
+
+    /**
+     * Where fingerprints of previously identified dumps are remembered, within the dump folder.
+     */
+    private static final String DUMP_FINGERPRINT_CACHE = ".fingerprints";
+
+    /**
+     * Where the timings and throughput of each run are written, unless told otherwise with --report=path.
+     */
+    private static final String REPORT_FILE = "out/build-report.json";
+
+    /**
+     * How long --watch waits for things to stop changing before it rebuilds, so that a file saved
+     * or copied in several steps is only rebuilt from once.
+     */
+    private static final long WATCH_QUIET_MILLIS = 100;
+
+    private static final String TOOL_NAME = "SNES / NES Classic Hybrid Dual Boot Tool v0.3";
 
     /**
      * Main program driver.
@@ -54,76 +144,634 @@ public class Main {
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        System.out.println("SNES / NES Classic Hybrid Dual Boot Tool v0.3");
-        System.out.println("By TeamZebra: https://github.com/teamzebra/snesclassic.dualboot");
+        final List<String> options = Arrays.asList(args);
+        BuildLog.setVerbosity(getVerbosity(options));
+        BuildLog.info(TOOL_NAME);
+        BuildLog.info("By TeamZebra: https://github.com/teamzebra/snesclassic.dualboot");
+
+        final BuildReport report = new BuildReport(TOOL_NAME, options);
+        Throwable failure = null;
+
+        try {
+            run(options, report);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            finishReport(report, failure, new File(getStringOption(options, "--report=", REPORT_FILE)));
+        }
+    }
+
+    /**
+     * Do whatever the command line asks for.
+     * @param options The command line options
+     * @param report The report to time each step in
+     * @throws IOException
+     */
+    private static void run(final List<String> options, final BuildReport report) throws IOException {
+        final BuildContext context = new BuildContext(new File(DUMP_FOLDER), new File(HMOD_FOLDER));
+        final int parallelism = Math.max(MIN_PARALLEL_STAGES, Runtime.getRuntime().availableProcessors());
+
+        if (options.contains("--generate-dump")) {
+            // write a made-up dump to test and measure with, rather than building anything
+            final BuildReport.Step step = report.begin("generate-dump");
+            generateSyntheticDump(context, options);
+            step.end();
+            return;
+        }
+
+        if (options.contains("--verify") || getStringOption(options, "--verify=", null) != null) {
+            // check an HMOD built earlier against its manifest, rather than building anything
+            final File hmod = new File(getStringOption(options, "--verify=",
+                    options.contains("--archive") ? HMOD_ARCHIVE : HMOD_FOLDER));
+            report.setAttribute("verified", hmod.getPath());
+            final BuildReport.Step step = report.begin("verify");
+            verifyHmod(hmod, Runtime.getRuntime().availableProcessors());
+            step.end();
+            return;
+        }
+
+        final String deltaFrom = getStringOption(options, "--delta=", null);
+
+        if (deltaFrom != null) {
+            // package the changes between an earlier build and the HMOD built since, rather than building
+            final File hmod = new File(options.contains("--archive") ? HMOD_ARCHIVE : HMOD_FOLDER);
+            report.setAttribute("delta", deltaFrom);
+            final BuildReport.Step step = report.begin("delta");
+            writeDeltaPackage(hmod, new File(deltaFrom), new File(DELTA_ARCHIVE));
+            step.end();
+            return;
+        }
+
+        try (StageExecutor executor = new StageExecutor(parallelism)) {
+            if (options.contains("--batch")) {
+                // build an HMOD for each of several dumps at once
+                buildBatch(executor, context, options, report);
+            } else {
+                // verify the bundled files and detect which dump file we need to extract, all at once
+                runStages(executor, buildPreflightStages(newDumpDetectionStage(options.contains("--sha256"))),
+                        context, options.contains("--graph"), report);
+                BuildLog.info("Detected a NESC dump archive successfully! File: %s, firmware: %s",
+                        context.getDumpFile().getName(), context.getFirmwareProfile());
+                report.setAttribute("dump", context.getDumpFile().getName());
+                report.setAttribute("firmware", context.getFirmwareProfile().getId());
+
+                if (options.contains("--archive")) {
+                    // build the HMOD straight into a .hmod archive
+                    BuildLog.info("Writing the HMOD archive %s...", HMOD_ARCHIVE);
+                    final BuildReport.Step step = report.begin("archive");
+                    writeHmodArchiveFromNescTarGzArchive(context);
+                    step.end();
+                    BuildLog.info("HMOD archive written successfully to %s!", HMOD_ARCHIVE);
+                } else if (options.contains("--incremental")) {
+                    // only rebuild the files in the HMOD folder whose inputs have changed
+                    BuildLog.info("Updating the HMOD from the NESC dump archive...");
+                    final BuildReport.Step step = report.begin("incremental");
+                    updateHmodFromNescTarGzArchive(context, new BuildSession());
+                    step.end();
+                    BuildLog.info("HMOD updated successfully!");
+                } else if (options.contains("--watch")) {
+                    // keep the HMOD folder up to date as its inputs change, until stopped
+                    watchForChanges(executor, context, options, report);
+                    return;
+                } else if (options.contains("--direct")) {
+                    // build the HMOD straight from the NESC dump archive, with no intermediate dump folder
+                    BuildLog.info("Writing the HMOD straight from the NESC dump archive...");
+                    final BuildReport.Step step = report.begin("direct");
+                    writeHmodFromNescTarGzArchive(context);
+                    step.end();
+                    BuildLog.info("HMOD written successfully!");
+                } else if (options.contains("--dry-run")) {
+                    // work out the HMOD, and list what would be written without writing it
+                    BuildLog.info("Working out the HMOD from the NESC dump archive...");
+                    final HmodOverlay overlay = new HmodOverlay();
+                    final StageGraph graph = buildHmodStages(context, overlay);
+                    graph.add(newPreviewStage(overlay));
+                    runStages(executor, graph, context, options.contains("--graph"), report);
+                    BuildLog.info("Dry run finished, the HMOD folder was left untouched.");
+                    return;
+                } else {
+                    // extract the dump, work out the copies and patches, then write the HMOD in one go
+                    BuildLog.info("Building the HMOD from the NESC dump archive...");
+
+                    try (FileCopier copier = new FileCopier(parallelism, getLinkMode(options))) {
+                        final HmodOverlay overlay = new HmodOverlay();
+                        final StageGraph graph = buildHmodStages(context, overlay);
+                        graph.add(newFlushStage(overlay, copier));
+                        runStages(executor, graph, context, options.contains("--graph"), report);
+                    }
+
+                    BuildLog.info("HMOD built successfully!");
+                }
+            }
+        }
+
+        BuildLog.info("Complete! Install the resulting HMOD using hakchi2, and copy the CLV-S-00NES");
+        BuildLog.info("folder to the games_snes folder in hakchi to sync it to your console.");
+    }
+
+    /**
+     * How much to show on the console.
+     * @param options The command line options
+     * @return Every file's progress with --verbose, only warnings with --quiet, and the progress of
+     *         each step otherwise
+     */
+    private static BuildLog.Verbosity getVerbosity(final List<String> options) {
+        if (options.contains("--verbose")) {
+            return BuildLog.Verbosity.VERBOSE;
+        } else if (options.contains("--quiet")) {
+            return BuildLog.Verbosity.QUIET;
+        }
+
+        return BuildLog.Verbosity.NORMAL;
+    }
+
+    /**
+     * Close off the report of the run, summarize it on the console and write it out. This runs even
+     * when the run fails, so the report also shows how far a failed run got; if it can't be written,
+     * that's only warned about, so as not to hide the failure.
+     * @param report The report of the run
+     * @param failure Why the run failed, or null if it succeeded
+     * @param file Where to write the report
+     */
+    private static void finishReport(final BuildReport report, final Throwable failure, final File file) {
+        report.finish(failure);
+
+        for (String line : report.summarize()) {
+            BuildLog.info("  %s", line);
+        }
+
+        try {
+            report.write(file);
+            BuildLog.info("Build report written to %s", file.getPath());
+        } catch (IOException e) {
+            BuildLog.warn("Couldn't write the build report to %s: %s", file.getPath(), e.getMessage());
+        }
+
+        BuildLog.flush();
+    }
+
+    /**
+     * How files copied from the dump to more than one place in the HMOD get there.
+     * @param options The command line options
+     * @return Hard or symbolic links with --hardlink or --symlink, or separate copies otherwise
+     */
+    private static FileCopier.LinkMode getLinkMode(final List<String> options) {
+        if (options.contains("--hardlink")) {
+            return FileCopier.LinkMode.HARD;
+        } else if (options.contains("--symlink")) {
+            return FileCopier.LinkMode.SYMBOLIC;
+        }
+
+        return FileCopier.LinkMode.NONE;
+    }
+
+    /**
+     * Run a graph of stages, and report the stages that held it up the most.
+     * @param executor The executor to run the stages on
+     * @param graph The stages to run
+     * @param context The build the stages belong to
+     * @param showGraph Whether to print the graph before running it
+     * @param report The report to time the stages in, as a step named after the graph
+     * @throws IOException
+     */
+    private static void runStages(final StageExecutor executor, final StageGraph graph, final BuildContext context,
+                                  final boolean showGraph, final BuildReport report) throws IOException {
+        BuildLog.info("Running %d %s stages on %s...", graph.size(), graph.getName(),
+                executor.describe());
+
+        if (showGraph) {
+            for (String line : graph.describe()) {
+                BuildLog.info("  %s", line);
+            }
+        }
+
+        final BuildReport.Step step = report.begin(graph.getName());
+        final long start = System.nanoTime();
+        final Map<Stage, Long> durations = executor.run(graph, context);
+        final long elapsed = System.nanoTime() - start;
+        step.end();
+
+        final Map<String, Long> stageDurations = new LinkedHashMap<>();
+        final List<String> criticalPath = new ArrayList<>();
+        final List<String> criticalStages = new ArrayList<>();
+        long criticalNanos = 0;
+
+        for (Map.Entry<Stage, Long> duration : durations.entrySet()) {
+            stageDurations.put(duration.getKey().getName(), duration.getValue());
+        }
+
+        for (Stage stage : graph.getCriticalPath(durations)) {
+            criticalPath.add(String.format("%s (%d ms)", stage.getName(), durations.get(stage) / 1000000));
+            criticalStages.add(stage.getName());
+            criticalNanos += durations.get(stage);
+        }
+
+        step.addStages(stageDurations, criticalStages);
+
+        BuildLog.info("Finished the %s stages in %d ms; critical path %d ms: %s",
+                graph.getName(), elapsed / 1000000, criticalNanos / 1000000, String.join(" -> ", criticalPath));
+    }
+
+    /**
+     * The checks that run before anything is built: that the bundled files are all there, and which
+     * dump(s) to build from. None of them depend on each other.
+     * @param detection The stage detecting the dump(s)
+     * @return The stages
+     */
+    private static StageGraph buildPreflightStages(final Stage detection) {
+        final StageGraph graph = new StageGraph("preflight");
+        graph.add(newVerifyHmodStage());
+        graph.add(newVerifyLauncherStage());
+        graph.add(detection);
+        return graph;
+    }
+
+    /**
+     * @return The stage checking that the bundled HMOD files are all there
+     */
+    private static Stage newVerifyHmodStage() {
+        return new Stage("verify-hmod", getBundledHmodResources(), ImmutableList.of(), context -> {
+            // verify that the bundled files for the resulting HMOD weren't deleted
+            BuildLog.info("Verifying that the pre-bundled HMOD files are present...");
+            verifyBundledHmodFiles(context);
+            BuildLog.info("Pre-bundled HMOD files verified successfully!");
+        });
+    }
+
+    /**
+     * @return The stage checking that the bundled NESC launcher files are all there
+     */
+    private static Stage newVerifyLauncherStage() {
+        return new Stage("verify-launcher", BUNDLED_NESC_LAUNCHER_FILES, ImmutableList.of(), context -> {
+            // verify that the bundled files for the NESC launcher weren't deleted
+            BuildLog.info("Verifying that the pre-bundled NESC launcher files are present...");
+            verifyBundledNescLauncherFiles();
+            BuildLog.info("Pre-bundled NESC launcher files verified successfully!");
+        });
+    }
+
+    /**
+     * @return The resource names of the bundled HMOD files, for the stages reading them
+     */
+    private static List<String> getBundledHmodResources() {
+        final List<String> resources = new ArrayList<>();
+
+        for (String path : BUNDLED_HMOD_FILES) {
+            resources.add(BuildContext.hmodResource(path));
+        }
+
+        return resources;
+    }
+
+    /**
+     * The stage detecting the single dump a normal build uses.
+     * @param withSha256 Whether to also report the SHA-256 of the dump
+     * @return The stage
+     */
+    private static Stage newDumpDetectionStage(final boolean withSha256) {
+        return new Stage("detect-dump", ImmutableList.of(BuildContext.dumpResource("")),
+                ImmutableList.of(BuildContext.dumpResource(DUMP_FINGERPRINT_CACHE), BuildContext.DUMP_DETECTED),
+                context -> {
+                    // detect which dump file we need to extract
+                    BuildLog.info("Detecting NESC dump archive file...");
+                    detectNESCDump(context, withSha256);
+                });
+    }
+
+    /**
+     * Build an HMOD for each of several dumps, several at a time. The dumps are the ones named on the
+     * command line after --batch (each optionally followed by "=" and the path to build its HMOD at),
+     * or every NESC dump in the dump folder if none are named. Each dump is built in a single pass
+     * straight from its archive, like --direct (or --archive, if given), into its own output, so
+     * nothing is shared between the builds except the bundled files they read. At most --jobs=N
+     * builds run at once, which bounds how much memory the batch takes.
+     * @param executor The executor to run the preflight checks on
+     * @param context The main build, whose HMOD folder the bundled files are read from
+     * @param options The command line options
+     * @param report The report to time the preflight checks and builds in
+     * @throws IOException
+     */
+    private static void buildBatch(final StageExecutor executor, final BuildContext context,
+                                   final List<String> options, final BuildReport report) throws IOException {
+        final boolean withSha256 = options.contains("--sha256");
+        final List<String> requested = new ArrayList<>();
+        final List<BuildContext> jobs = new ArrayList<>();
+
+        for (String option : options) {
+            if (!option.startsWith("--")) {
+                requested.add(option);
+            }
+        }
+
+        // verify the bundled files and detect all the dumps to build from
+        runStages(executor, buildPreflightStages(new Stage("detect-dumps",
+                ImmutableList.of(BuildContext.dumpResource("")),
+                ImmutableList.of(BuildContext.dumpResource(DUMP_FINGERPRINT_CACHE), BuildContext.DUMP_DETECTED),
+                shared -> {
+                    BuildLog.info("Detecting NESC dump archive files...");
+                    jobs.addAll(detectBatchDumps(shared, requested, withSha256));
+                })), context, options.contains("--graph"), report);
+
+        final int jobLimit = getIntOption(options, "--jobs=", DEFAULT_BATCH_JOBS);
+        final boolean archive = options.contains("--archive");
+        final int gzipThreads = Math.max(1,
+                Runtime.getRuntime().availableProcessors() / Math.min(jobLimit, jobs.size()));
+        final StageGraph graph = new StageGraph("batch");
+
+        for (BuildContext job : jobs) {
+            final List<String> inputs = new ArrayList<>(getBundledHmodResources());
+            inputs.add(job.getDumpFile().getAbsolutePath());
+
+            graph.add(new Stage(String.format("build:%s", job.getHmodFolder().getPath()), inputs,
+                    ImmutableList.of(job.getHmodFolder().getAbsolutePath()),
+                    shared -> buildBatchJob(shared, job, archive, gzipThreads)));
+        }
+
+        BuildLog.info("Building %d HMODs, up to %d at a time...", jobs.size(), jobLimit);
+
+        try (StageExecutor jobExecutor = new StageExecutor(jobLimit)) {
+            runStages(jobExecutor, graph, context, options.contains("--graph"), report);
+        }
+
+        for (BuildContext job : jobs) {
+            BuildLog.info("HMOD for %s (%s) written successfully to %s!",
+                    job.getDumpFile().getName(), job.getFirmwareProfile(), job.getHmodFolder().getPath());
+        }
+    }
+
+    /**
+     * Identify the dumps a batch builds from, and where each of their HMODs goes.
+     * @param shared The main build, whose dump folder is searched if no dumps were named
+     * @param requested The dumps named on the command line, each optionally followed by "=" and the
+     *                  path to build its HMOD at
+     * @param withSha256 Whether to also report the SHA-256 of each dump
+     * @return A build for each dump
+     * @throws IOException
+     */
+    private static List<BuildContext> detectBatchDumps(final BuildContext shared, final List<String> requested,
+                                                       final boolean withSha256) throws IOException {
+        final DumpDetector detector = new DumpDetector(shared.resolveDumpPath(DUMP_FINGERPRINT_CACHE));
+        final Map<File, BuildContext> jobs = new LinkedHashMap<>();
+        final List<String> dumps = new ArrayList<>();
+
+        if (requested.isEmpty()) {
+            for (File file : findDumpCandidates(shared)) {
+                dumps.add(file.getPath());
+            }
+        } else {
+            dumps.addAll(requested);
+        }
+
+        for (String dump : dumps) {
+            final int separator = dump.indexOf('=');
+            final File file = new File(separator < 0 ? dump : dump.substring(0, separator));
+
+            if (!file.isFile()) {
+                throw new FileNotFoundException(String.format("Couldn't find TAR archive %s", file.getPath()));
+            }
+
+            final DumpDetector.Detection detection = detector.detect(file, withSha256);
+
+            if (detection.getProfile() == null) {
+                if (!requested.isEmpty()) {
+                    throw new RuntimeException(String.format("%s isn't a NESC dump we know of (%s)", file.getPath(),
+                            detection.getMethod()));
+                }
+
+                BuildLog.warn("Skipping %s, which isn't a NESC dump we know of (%s)", file.getName(),
+                        detection.getMethod());
+                continue;
+            }
+
+            printDetection(file, detection, withSha256);
+
+            final File output = (separator < 0)
+                    ? new File(String.format("%s/%s/%s", BATCH_FOLDER, detection.getProfile().getId(), HMOD_FOLDER))
+                    : new File(dump.substring(separator + 1));
+            final BuildContext job = new BuildContext(file.getAbsoluteFile().getParentFile(), output);
+            job.setDump(file, detection.getProfile());
+
+            final BuildContext clash = jobs.put(output.getAbsoluteFile(), job);
+
+            if (clash != null) {
+                throw new RuntimeException(String.format("Both %s and %s would be built to %s, please give one "
+                        + "of them its own output with <dump>=<output>", clash.getDumpFile().getPath(),
+                        file.getPath(), output.getPath()));
+            }
+        }
+
+        detector.save();
+
+        if (jobs.isEmpty()) {
+            throw new RuntimeException("No valid NESC dump files found in the dump folder");
+        }
+
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Build one HMOD of a batch: the bundled files first, then the patched files from its dump in a
+     * single pass over the archive.
+     * @param shared The main build, whose HMOD folder the bundled files are read from
+     * @param job The build of this HMOD
+     * @param archive Whether to write a .hmod archive rather than a folder
+     * @param gzipThreads How many cores to compress an archive on
+     * @throws IOException
+     */
+    private static void buildBatchJob(final BuildContext shared, final BuildContext job, final boolean archive,
+                                      final int gzipThreads) throws IOException {
+        final File output = job.getHmodFolder();
+        BuildLog.info("Building %s from %s...", output.getPath(), job.getDumpFile().getName());
+
+        final HmodManifest manifest = new HmodManifest(job.getFirmwareProfile().getId());
+
+        try (HmodSink sink = new ManifestHmodSink(archive ? new ArchiveHmodSink(output, gzipThreads)
+                : new DirectoryHmodSink(output), manifest)) {
+            writeBundledHmodFiles(shared, sink);
+            new DirectHmodWriter(sink, HmodLayout.NESC,
+                    HmodPatches.forProfile(job.getFirmwareProfile())).write(job.getDumpFile());
+            sink.commit();
+        }
+
+        manifest.save(HmodManifest.forHmod(output));
+    }
+
+    /**
+     * Write a synthetic NESC dump to the dump folder, modelled on a real release (--firmware=id,
+     * nes-1.0.2 by default) but with any number of games (--games=N), extra filler files
+     * (--entries=N) and file sizes multiplied by --scale=N, up to a scale at which the largest file
+     * still fits in a tar entry. It's named after its synthetic release, which its gzip header also
+     * records, so it's recognized when building from it even if renamed.
+     * @param context The build whose dump folder to write to
+     * @param options The command line options
+     * @throws IOException
+     */
+    private static void generateSyntheticDump(final BuildContext context, final List<String> options)
+            throws IOException {
+        final String baseId = getStringOption(options, "--firmware=", FirmwareProfile.NES_102.getId());
+        final FirmwareProfile base = FirmwareProfile.byId(baseId);
+
+        if (base == null) {
+            throw new RuntimeException(String.format("'%s' isn't a firmware release we know of", baseId));
+        }
+
+        final FirmwareProfile profile;
+        final SyntheticDumpWriter writer;
+
+        try {
+            profile = FirmwareProfile.synthetic(base, getIntOption(options, "--games=", base.getGameCodes().size()));
+            writer = new SyntheticDumpWriter(profile, getIntOption(options, "--entries=", 0),
+                    getIntOption(options, "--scale=", 1));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        final File dump = context.resolveDumpPath(profile.getDumpFileName());
+
+        BuildLog.info("Writing a %s dump to %s...", profile.getDescription(), dump.getPath());
+        writer.write(dump, Runtime.getRuntime().availableProcessors());
+        BuildLog.info("Synthetic dump written successfully! %d files, %.1f MiB "
+                + "(%.1f MiB compressed)", writer.getEntries(), writer.getBytes() / 1048576.0,
+                dump.length() / 1048576.0);
+    }
+
+    /**
+     * Read an option of the form --name=value.
+     * @param options The command line options
+     * @param prefix The option up to and including the "="
+     * @param defaultValue The value if the option isn't given
+     * @return The value of the option
+     */
+    private static String getStringOption(final List<String> options, final String prefix, final String defaultValue) {
+        for (String option : options) {
+            if (option.startsWith(prefix)) {
+                return option.substring(prefix.length());
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Read an option of the form --name=number.
+     * @param options The command line options
+     * @param prefix The option up to and including the "="
+     * @param defaultValue The value if the option isn't given
+     * @return The value of the option
+     */
+    private static int getIntOption(final List<String> options, final String prefix, final int defaultValue) {
+        for (String option : options) {
+            if (option.startsWith(prefix)) {
+                try {
+                    final int value = Integer.parseInt(option.substring(prefix.length()));
+
+                    if (value > 0) {
+                        return value;
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through to the error below
+                }
+
+                throw new RuntimeException(String.format("'%s' needs a positive number", option));
+            }
+        }
 
-        // verify that the bundled files for the resulting HMOD weren't deleted
-        System.out.println("Verifying that the pre-bundled HMOD files are present...");
-        verifyBundledHmodFiles();
-        System.out.println("Pre-bundled HMOD files verified successfully!");
+        return defaultValue;
+    }
 
-        // verify that the bundled files for the NESC launcher weren't deleted
-        System.out.println("Verifying that the pre-bundled NESC launcher files are present...");
-        verifyBundledNescLauncherFiles();
-        System.out.println("Pre-bundled NESC launcher files verified successfully!");
+    /**
+     * The stages that work out the HMOD folder from the extracted dump, in an overlay. The dump is
+     * extracted first; after that each file and directory is added to the overlay as soon as it's
+     * out, and each patch is added as soon as the file it patches is there, all independently of
+     * each other. Nothing is written to the HMOD folder until a stage flushes the overlay.
+     * @param context The build, with its dump already detected
+     * @param overlay The overlay to add the files and patches to
+     * @return The stages
+     */
+    private static StageGraph buildHmodStages(final BuildContext context, final HmodOverlay overlay) {
+        final StageGraph graph = new StageGraph("build");
+        final Set<String> extracted = new LinkedHashSet<>();
 
-        // detect which dump file we need to extract
-        System.out.println("Detecting NESC dump archive file...");
-        detectNESCDump();
-        System.out.println(String.format("Detected a NESC dump archive successfully! File: %s", chosenDumpFile));
+        for (DumpMapping mapping : HmodLayout.NESC.getMappings()) {
+            extracted.add(BuildContext.dumpResource(mapping.getSource()));
+        }
 
         // extract the NESC dump archive
-        System.out.println("Extracting the NESC dump archive...");
-        extractNescTarGzArchive();
-        System.out.println("NESC dump archive extracted successfully!");
+        graph.add(new Stage("extract", ImmutableList.of(BuildContext.DUMP_DETECTED,
+                BuildContext.dumpResource(context.getDumpFile().getName())), extracted, stageContext -> {
+                    BuildLog.info("Extracting the NESC dump archive...");
+                    extractNescTarGzArchive(stageContext);
+                    BuildLog.info("NESC dump archive extracted successfully!");
+                }));
 
-        // copy over the files from the NESC dump that we need
-        System.out.println("Copying the NESC dump files to the HMOD folder...");
-        copyDumpFilesToHmod();
-        System.out.println("NESC dump files copied successfully!");
+        addCopyStages(graph, overlay);
+        addTextScriptStages(graph, overlay);
+        addGameFileStages(graph, overlay, context.getFirmwareProfile());
+        addBinaryFileStages(graph, overlay, context.getFirmwareProfile());
+        return graph;
+    }
 
-        // do text patches
-        System.out.println("Patching up text scripts in the HMOD folder...");
-        patchTextScriptsInHmod();
-        System.out.println("Patched text scripts successfully!");
+    /**
+     * The stage writing out everything in the overlay, once every file and patch has been added.
+     * A dump file copied to several places that are never patched, like liblzo2, may be linked
+     * rather than copied again, depending on the copier.
+     * @param overlay The overlay to write out
+     * @param copier The copier to copy unpatched files from the dump with, several at a time
+     * @return The stage
+     */
+    private static Stage newFlushStage(final HmodOverlay overlay, final FileCopier copier) {
+        return new Stage("flush", ImmutableList.of(BuildContext.HMOD), ImmutableList.of(BuildContext.HMOD),
+                context -> {
+                    BuildLog.info("Writing %d files and directories to %s...", overlay.size(),
+                            context.getHmodFolder().getPath());
 
-        // do game patches
-        System.out.println("Patching up game files in the HMOD folder...");
-        patchGameFilesInHmod();
-        System.out.println("Patched game files successfully!");
+                    final HmodManifest manifest = new HmodManifest(context.getFirmwareProfile().getId());
 
-        // do binary patches
-        System.out.println("Patching up binary files in the HMOD folder...");
-        patchBinaryFilesInHmod();
-        System.out.println("Patched binary files successfully!");
+                    try (HmodSink sink = new ManifestHmodSink(new DirectoryHmodSink(context.getHmodFolder(),
+                            copier), manifest)) {
+                        overlay.flush(sink, copier);
+                    }
 
-        System.out.println("Complete! Install the resulting HMOD using hakchi2, and copy the CLV-S-00NES");
-        System.out.println("folder to the games_snes folder in hakchi to sync it to your console.");
+                    saveHmodManifest(context, manifest);
+                });
+    }
+
+    /**
+     * The stage listing everything in the overlay instead of writing it, once every file and patch
+     * has been added. Patched files are still patched in memory, so a patch that would fail fails.
+     * @param overlay The overlay to list
+     * @return The stage
+     */
+    private static Stage newPreviewStage(final HmodOverlay overlay) {
+        return new Stage("preview", ImmutableList.of(BuildContext.HMOD), ImmutableList.of(), context -> {
+            BuildLog.info("Would write %d files and directories to %s:", overlay.size(),
+                    context.getHmodFolder().getPath());
+
+            for (String line : overlay.preview()) {
+                BuildLog.info("  %s", line);
+            }
+        });
     }
 
     /**
      * Verifies that all the non-copyrighted files that we shipped with the application are
      * still there and weren't deleted or anything.
      */
-    private static void verifyBundledHmodFiles() {
-        verifyHmodEntityExists("install");
-        verifyHmodEntityExists("uninstall");
-        verifyHmodEntityExists("bin/switch_to_nes");
-        verifyHmodEntityExists("bin/switch_to_snes");
-        verifyHmodEntityExists("bin/switch_to_nes_child");
-        verifyHmodEntityExists("bin/hybrid_nesc_kachikachi_wr");
-        verifyHmodEntityExists("etc/nesgames/CLV-P-0SNES/CLV-P-0SNES.desktop");
-        verifyHmodEntityExists("etc/nesgames/CLV-P-0SNES/CLV-P-0SNES.png");
-        verifyHmodEntityExists("etc/nesgames/CLV-P-0SNES/CLV-P-0SNES_small.png");
+    private static void verifyBundledHmodFiles(final BuildContext context) {
+        for (String path : BUNDLED_HMOD_FILES) {
+            verifyHmodEntityExists(context, path);
+        }
     }
 
     /**
      * Quick verification that a file/directory exists in the HMOD folder, so we can
      * know the user didn't delete anything we shipped the application with.
+     * @param context The build whose HMOD folder to check
      * @param path The path of the entity to verify
      */
-    private static void verifyHmodEntityExists(final String path) {
-        if (!(new File(String.format("%s/%s", HMOD_FOLDER, path)).exists())) {
+    private static void verifyHmodEntityExists(final BuildContext context, final String path) {
+        if (!context.resolveHmodPath(path).exists()) {
             throw new RuntimeException(String.format(
                     "'%s' not found within the HMOD directory, please redownload the application", path));
         }
@@ -133,13 +781,7 @@ public class Main {
      * Verifies that the NES launcher script is present.
      */
     private static void verifyBundledNescLauncherFiles() {
-        final String[] files = new String[] {
-                "CLV-S-00NES/CLV-S-00NES.desktop",
-                "CLV-S-00NES/CLV-S-00NES.png",
-                "CLV-S-00NES/CLV-S-00NES_small.png"
-        };
-
-        for (String f : files) {
+        for (String f : BUNDLED_NESC_LAUNCHER_FILES) {
             if (!(new File(f).exists())) {
                 throw new RuntimeException(String.format(
                         "'%s' not found, please redownload the application", f));
@@ -148,295 +790,660 @@ public class Main {
     }
 
     /**
-     * Determines which of the valid NESC dump files (if any) the user has.
+     * Determines which of the files in the dump folder (if any) is a NESC dump, and which firmware
+     * release it holds. Dumps with their official names are tried first, then any other .tar.gz
+     * files, which are identified by their content. Files that aren't NESC dumps, or can't be read,
+     * are skipped with a warning.
+     * @param context The build to record the dump in
+     * @param withSha256 Whether to also report the SHA-256 of the dump
+     * @throws IOException
      */
-    private static void detectNESCDump() {
-        for (String file : VALID_NESC_DUMP_FILES) {
-            if ((new File(String.format("%s/%s", DUMP_FOLDER, file))).exists()) {
-                chosenDumpFile = file;
+    private static void detectNESCDump(final BuildContext context, final boolean withSha256) throws IOException {
+        final DumpDetector detector = new DumpDetector(context.resolveDumpPath(DUMP_FINGERPRINT_CACHE));
+
+        // forget the dump found before, if this is detecting it again after the dump folder changed
+        context.setDump(null, null);
+
+        for (File file : findDumpCandidates(context)) {
+            final DumpDetector.Detection detection = detector.detect(file, withSha256);
+
+            if (detection.getProfile() != null) {
+                printDetection(file, detection, withSha256);
+                context.setDump(file, detection.getProfile());
                 break;
             }
+
+            BuildLog.warn("Skipping %s, which isn't a NESC dump we know of (%s)", file.getName(),
+                    detection.getMethod());
         }
 
-        if (chosenDumpFile == null) {
+        detector.save();
+
+        if (context.getDumpFile() == null) {
             throw new RuntimeException("No valid NESC dump files found in the dump folder");
         }
     }
 
     /**
-     * Extract the user's chosen NESC dump .tar.gz archive to its current directory.
+     * List the files in the dump folder that could be NESC dumps: the dumps with their official names
+     * first, then any other .tar.gz files in name order.
+     * @param context The build whose dump folder to search
+     * @return The candidate dump files
+     */
+    private static List<File> findDumpCandidates(final BuildContext context) {
+        final List<File> candidates = new ArrayList<>();
+
+        for (FirmwareProfile profile : FirmwareProfile.ALL) {
+            final File file = context.resolveDumpPath(profile.getDumpFileName());
+
+            if (file.isFile()) {
+                candidates.add(file);
+            }
+        }
+
+        final File[] files = context.getDumpFolder().listFiles((dir, name) -> isDumpCandidate(name));
+
+        if (files != null) {
+            Arrays.sort(files);
+
+            for (File file : files) {
+                if (!candidates.contains(file)) {
+                    candidates.add(file);
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * @param name The name of a file in the dump folder
+     * @return Whether it could be a NESC dump, going by its name
+     */
+    private static boolean isDumpCandidate(final String name) {
+        return name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    /**
+     * Report how a dump was identified.
+     * @param file The dump file
+     * @param detection What was found out about it
+     * @param withSha256 Whether to include its SHA-256
+     */
+    private static void printDetection(final File file, final DumpDetector.Detection detection,
+                                       final boolean withSha256) {
+        BuildLog.info("Identified %s as %s by its %s (%s%s)", file.getName(),
+                detection.getProfile().getId(), detection.getMethod(), detection.getFingerprint(),
+                withSha256 ? " sha256=" + detection.getSha256() : "");
+    }
+
+    /**
+     * Extract the user's chosen NESC dump .tar.gz archive to its current directory. Entries are
+     * streamed straight to disk one at a time, so memory use stays flat regardless of dump size,
+     * and only the entries the HMOD layout actually uses are written out.
+     * @param context The build, with its dump already detected
      * @throws IOException
      */
-    public static void extractNescTarGzArchive()
+    public static void extractNescTarGzArchive(final BuildContext context)
             throws IOException {
-        final File file = new File(String.format("%s/%s", DUMP_FOLDER, chosenDumpFile));
+        final File file = context.getDumpFile();
 
         if (!file.exists()) {
             throw new FileNotFoundException(String.format("Couldn't find TAR archive %s", file.getCanonicalPath()));
         }
 
-        final TarGzArchive archive = new TarGzArchive(file);
-        final Set<String> entries = archive.getEntries();
+        final TarGzExtractor extractor = new TarGzExtractor(context.getDumpFolder(), HmodLayout.NESC::includes);
 
-        for (String entry : entries) {
-            final String outPath = String.format("%s/%s", DUMP_FOLDER, entry);
-            final File newFile = new File(outPath);
+        TarGzArchive.visitEntries(file, (entry, content) -> {
+            if (!extractor.accepts(entry)) {
+                return;
+            }
 
-            System.out.println(String.format("Extracting archive file: ./%s", outPath));
+            BuildLog.detail("Extracting archive file: ./%s/%s",
+                    context.getDumpFolder().getPath(), entry.getName());
+            extractor.visitEntry(entry, content);
+        });
+    }
 
-            if (entry.endsWith("/")) {
-                newFile.mkdirs();
-                continue;
+    /**
+     * Write the HMOD in a single pass over the user's chosen NESC dump .tar.gz archive. Each entry the
+     * HMOD layout uses has its text and binary patches applied in memory, and is written once to
+     * its final location in the HMOD folder.
+     * @param context The build, with its dump already detected
+     * @throws IOException
+     */
+    private static void writeHmodFromNescTarGzArchive(final BuildContext context)
+            throws IOException {
+        final File file = context.getDumpFile();
+
+        if (!file.exists()) {
+            throw new FileNotFoundException(String.format("Couldn't find TAR archive %s", file.getCanonicalPath()));
+        }
+
+        final HmodManifest manifest = new HmodManifest(context.getFirmwareProfile().getId());
+        new DirectHmodWriter(new ManifestHmodSink(new DirectoryHmodSink(context.getHmodFolder()), manifest),
+                HmodLayout.NESC, HmodPatches.forProfile(context.getFirmwareProfile())).write(file);
+        saveHmodManifest(context, manifest);
+    }
+
+    /**
+     * Bring the HMOD folder up to date with the user's chosen NESC dump, using the build cache from
+     * the previous run. Only the files whose dump entry or patches changed, or that were changed or
+     * removed on disk, are written again. The first pass over a dump also indexes it, so that later
+     * runs decompress only the stretches of the dump holding the entries they need. If nothing
+     * changed the dump isn't decompressed at all. The build cache, seek index and manifest are taken
+     * from the session if it holds them, rather than loaded from disk, and left there for next time.
+     * @param context The build, with its dump already detected
+     * @param session What earlier builds in this run learned, empty for a single build
+     * @throws IOException
+     */
+    private static void updateHmodFromNescTarGzArchive(final BuildContext context, final BuildSession session)
+            throws IOException {
+        final File cacheFile = new File(BUILD_CACHE);
+        final File hmodDirectory = context.getHmodFolder();
+        final HmodPatches patches = HmodPatches.forProfile(context.getFirmwareProfile());
+        final String dumpKey = DumpFingerprint.read(context.getDumpFile()).getKey();
+        final String layoutDigest = HmodLayout.NESC.getDigest();
+
+        final HmodManifest previous = (session.getManifest() != null) ? session.getManifest()
+                : HmodManifest.load(HmodManifest.forHmod(hmodDirectory));
+        final HmodManifest manifest = new HmodManifest(context.getFirmwareProfile().getId());
+
+        BuildCache cache = (session.getCache() != null) ? session.getCache()
+                : BuildCache.load(cacheFile, hmodDirectory);
+        final Set<String> stale = (cache == null) ? null : cache.findStaleOutputs(dumpKey, layoutDigest, patches);
+
+        if (stale == null) {
+            BuildLog.info("No usable build cache for this dump, rebuilding everything...");
+            cache = new BuildCache(hmodDirectory, dumpKey, layoutDigest);
+        } else if (stale.isEmpty()) {
+            BuildLog.info("All %d files from the NESC dump are up to date", cache.size());
+            saveHmodManifest(context, manifest, previous, cache.getOutputs());
+            session.update(cache, dumpKey, session.getIndex(dumpKey), manifest);
+            return;
+        } else {
+            BuildLog.info("%d of %d files from the NESC dump need rebuilding",
+                    stale.size(), cache.size());
+        }
+
+        final BuildCache buildCache = cache;
+        final DirectHmodWriter writer = new DirectHmodWriter(new ManifestHmodSink(
+                new DirectoryHmodSink(hmodDirectory), manifest), HmodLayout.NESC, patches);
+
+        if (stale != null) {
+            writer.setTargetFilter(stale::contains);
+        }
+
+        writer.setListener((target, source, sourceHash, outputHash) ->
+                buildCache.record(target, source, sourceHash, outputHash, patches));
+
+        final File dumpFile = context.getDumpFile();
+        final File indexFile = new File(dumpFile.getPath() + DUMP_INDEX_SUFFIX);
+        GzipSeekIndex index = (session.getIndex(dumpKey) != null) ? session.getIndex(dumpKey)
+                : GzipSeekIndex.load(indexFile, dumpKey);
+
+        if (index == null) {
+            BuildLog.info("Indexing %s for later rebuilds...", dumpFile.getPath());
+            index = writer.writeAndIndex(dumpFile, dumpKey);
+            index.save(indexFile);
+        } else if (stale == null) {
+            writer.write(dumpFile);
+        } else {
+            final int read = writer.write(dumpFile, index);
+            BuildLog.info("Read %d of %d entries from the NESC dump through its index",
+                    read, index.size());
+        }
+
+        buildCache.save(cacheFile);
+        saveHmodManifest(context, manifest, previous, buildCache.getOutputs());
+        session.update(buildCache, dumpKey, index, manifest);
+    }
+
+    /**
+     * Keep the HMOD folder up to date until stopped. It's first brought up to date like --incremental,
+     * then the dump folder, the folders of the bundled HMOD files and the NESC launcher folder are
+     * watched, and after each batch of changes only the stages they affect run again, on the warm
+     * JVM: a changed bundled script is just checked and hashed into the manifest, and a changed dump
+     * is detected again and rebuilt from through the build cache and seek index, both kept in memory
+     * along with the manifest. The patch tables are part of the application, so changing those still
+     * needs a restart. Each rebuild writes its own report, and a rebuild that fails is reported and
+     * tried again on the next change.
+     * @param executor The executor to run the rebuilds on
+     * @param context The build, with its dump already detected
+     * @param options The command line options
+     * @param report The report to time the first build in
+     * @throws IOException If the first build fails, or the folders can't be watched
+     */
+    private static void watchForChanges(final StageExecutor executor, final BuildContext context,
+                                        final List<String> options, final BuildReport report) throws IOException {
+        final BuildSession session = new BuildSession();
+        final File reportFile = new File(getStringOption(options, "--report=", REPORT_FILE));
+
+        BuildLog.info("Updating the HMOD from the NESC dump archive...");
+        final BuildReport.Step step = report.begin("incremental");
+        updateHmodFromNescTarGzArchive(context, session);
+        step.end();
+        BuildLog.info("HMOD updated successfully!");
+
+        final Set<File> folders = new LinkedHashSet<>();
+        folders.add(context.getDumpFolder());
+
+        for (String path : BUNDLED_HMOD_FILES) {
+            folders.add(context.resolveHmodPath(path).getParentFile());
+        }
+
+        for (String path : BUNDLED_NESC_LAUNCHER_FILES) {
+            folders.add(new File(path).getParentFile());
+        }
+
+        try (ChangeWatcher watcher = new ChangeWatcher()) {
+            for (File folder : folders) {
+                watcher.watch(folder);
+            }
+
+            while (true) {
+                BuildLog.info("Watching %d folders for changes to the dump, the bundled HMOD files and the NESC "
+                        + "launcher, press Ctrl+C to stop...", folders.size());
+                BuildLog.flush();
+                StageGraph graph;
+
+                do {
+                    try {
+                        graph = buildRebuildStages(context, session, watcher.awaitChanges(WATCH_QUIET_MILLIS),
+                                options.contains("--sha256"));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                } while (graph.size() == 0);
+
+                final BuildReport rebuild = new BuildReport(TOOL_NAME, options);
+                Throwable failure = null;
+
+                try {
+                    runStages(executor, graph, context, options.contains("--graph"), rebuild);
+                    BuildLog.info("HMOD updated successfully!");
+                } catch (IOException | RuntimeException e) {
+                    // start the next rebuild from what's on disk, whatever this one got through
+                    failure = e;
+                    session.clear();
+                    BuildLog.warn("Couldn't update the HMOD: %s", e.getMessage());
+                } finally {
+                    finishReport(rebuild, failure, reportFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Work out which stages a batch of changes affects.
+     * @param context The build, with the dump it last built from
+     * @param session What the builds so far learned
+     * @param changed The absolute paths of the files that changed, or of folders anything in which
+     *                may have changed
+     * @param withSha256 Whether to report the SHA-256 of the dump if it's detected again
+     * @return The stages to run, none if nothing that goes into the HMOD changed, e.g. when the only
+     *         changes were the build's own writes
+     */
+    private static StageGraph buildRebuildStages(final BuildContext context, final BuildSession session,
+                                                 final Set<Path> changed, final boolean withSha256) {
+        final Path dumpFolder = context.getDumpFolder().toPath().toAbsolutePath().normalize();
+        final Set<String> bundled = new LinkedHashSet<>();
+        boolean dump = false;
+        boolean launcher = false;
+
+        for (Path path : changed) {
+            if (path.equals(dumpFolder)
+                    || (dumpFolder.equals(path.getParent()) && isDumpCandidate(path.getFileName().toString()))) {
+                dump = true;
+            }
+
+            for (String bundledPath : BUNDLED_HMOD_FILES) {
+                final Path file = context.resolveHmodPath(bundledPath).toPath().toAbsolutePath().normalize();
+
+                if (path.equals(file) || path.equals(file.getParent())) {
+                    bundled.add(bundledPath);
+                }
             }
 
-            final File parent = newFile.getParentFile();
+            for (String launcherPath : BUNDLED_NESC_LAUNCHER_FILES) {
+                final Path file = new File(launcherPath).toPath().toAbsolutePath().normalize();
 
-            if ((parent != null) && (!parent.exists())) {
-                parent.mkdirs();
+                if (path.equals(file) || path.equals(file.getParent())) {
+                    launcher = true;
+                }
             }
+        }
 
-            final FileOutputStream fos = new FileOutputStream(newFile);
-            final byte[] bytes = archive.getEntryContent(entry);
+        final StageGraph graph = new StageGraph("rebuild");
 
-            fos.write(bytes);
-            fos.close();
+        if (launcher) {
+            BuildLog.info("The NESC launcher files changed");
+            graph.add(newVerifyLauncherStage());
         }
+
+        if (!dump && !bundled.isEmpty() && session.getManifest() == null) {
+            // the last rebuild failed, so there's no manifest to add the bundled files to
+            BuildLog.info("Bundled HMOD files changed since the last update failed, updating the HMOD again...");
+            dump = true;
+        } else if (dump) {
+            BuildLog.info("The dump folder changed, rebuilding the files that need it...");
+        }
+
+        if (dump) {
+            // the bundled files are hashed into the manifest along with the rebuilt ones
+            graph.add(newVerifyHmodStage());
+            graph.add(newDumpDetectionStage(withSha256));
+
+            final List<String> inputs = new ArrayList<>(getBundledHmodResources());
+            inputs.add(BuildContext.DUMP_DETECTED);
+            graph.add(new Stage("incremental", inputs, ImmutableList.of(BuildContext.HMOD),
+                    stageContext -> updateHmodFromNescTarGzArchive(stageContext, session)));
+        } else if (!bundled.isEmpty()) {
+            BuildLog.info("Bundled HMOD files changed: %s", String.join(", ", bundled));
+            final List<String> resources = new ArrayList<>();
+
+            for (String path : bundled) {
+                resources.add(BuildContext.hmodResource(path));
+            }
+
+            graph.add(new Stage("manifest", resources, ImmutableList.of(), stageContext ->
+                    updateBundledHmodFiles(stageContext, session.getManifest(), bundled)));
+        }
+
+        return graph;
     }
 
     /**
-     * Copy all the necessary files from the NESC dump to the HMOD folder.
+     * Hash bundled HMOD files that were edited into the manifest of the HMOD folder. The build
+     * leaves them where they are, so nothing else needs doing.
+     * @param context The build whose HMOD folder it is
+     * @param manifest The manifest of the HMOD folder, as last written
+     * @param paths The paths of the edited files within the HMOD
      * @throws IOException
      */
-    private static void copyDumpFilesToHmod()
-            throws IOException {
-        // copy /bin/ files
-        copyFileFromDumpToHmod("usr/bin/clover-factory-reset", "bin/clover-factory-reset-nes");
-        copyFileFromDumpToHmod("usr/bin/clover-kachikachi", "bin/clover-kachikachi");
-        copyFileFromDumpToHmod("usr/bin/clover-mcp", "bin/clover-mcp-nes");
-        copyFileFromDumpToHmod("usr/bin/clover-menu-reset", "bin/clover-menu-reset-nes");
-        copyFileFromDumpToHmod("usr/bin/clover-production-test-menu", "bin/clover-production-test-menu-nes");
-        copyFileFromDumpToHmod("usr/bin/clover-ui", "bin/clover-ui-nes");
-        copyFileFromDumpToHmod("usr/bin/kachikachi", "bin/kachikachi");
-        copyFileFromDumpToHmod("usr/bin/ReedPlayer-Clover", "bin/ReedPlayer-Clover-nes");
-
-        // copy /usr/share/ files
-        copyDirectoryFromDumpToHmod("usr/share/applications", "etc/share/applications");
-        copyDirectoryFromDumpToHmod("usr/share/clover-mcp", "etc/share/clover-mcp");
-        copyDirectoryFromDumpToHmod("usr/share/clover-ui", "etc/share/clover-ui");
-        copyDirectoryFromDumpToHmod("usr/share/kachikachi", "etc/share/kachikachi");
-        copyDirectoryFromDumpToHmod("usr/share/legal", "etc/share/legal");
-        copyDirectoryFromDumpToHmod("usr/share/locale", "etc/share/locale");
-        copyDirectoryFromDumpToHmod("usr/share/reed-libs", "etc/share/reed-libs");
-
-        // copy /lib files
-        copyFileFromDumpToHmod("usr/lib/liblzo2.so.2.0.0", "lib/liblzo2.so");
-        copyFileFromDumpToHmod("usr/lib/liblzo2.so.2.0.0", "lib/liblzo2.so.2");
-        copyFileFromDumpToHmod("usr/lib/liblzo2.so.2.0.0", "lib/liblzo2.so.2.0.0");
-
-        // copy /usr/share/games/nes/kachikachi
-        copyDirectoryFromDumpToHmod("usr/share/games/nes/kachikachi", "etc/nesgames");
-    }
-
-    /**
-     * Copy the given file from the source (NESC dump) to the output (HMOD) folder.
-     * @param sourceFile The path of the source file within the NESC dump
-     * @param targetFile The path within the HMOD to copy the file to
+    private static void updateBundledHmodFiles(final BuildContext context, final HmodManifest manifest,
+                                               final Set<String> paths) throws IOException {
+        for (String path : paths) {
+            verifyHmodEntityExists(context, path);
+            manifest.recordFile(path, context.resolveHmodPath(path));
+        }
+
+        manifest.save(HmodManifest.forHmod(context.getHmodFolder()));
+    }
+
+    /**
+     * Write the HMOD as a .hmod archive, in a single pass over the user's chosen NESC dump .tar.gz
+     * archive. The bundled HMOD files go in first, followed by the patched files from the dump, and
+     * the archive is compressed on all available cores.
+     * @param context The build, with its dump already detected
      * @throws IOException
      */
-    private static void copyFileFromDumpToHmod(final String sourceFile, final String targetFile)
+    private static void writeHmodArchiveFromNescTarGzArchive(final BuildContext context)
             throws IOException {
-        final String src = String.format("%s/%s", DUMP_FOLDER, sourceFile);
-        final String dst = String.format("%s/%s", HMOD_FOLDER, targetFile);
-        System.out.println(String.format("Copying %s from the NESC dump to %s", src, dst));
-        FileUtils.copyFile(new File(src), new File(dst));
+        final File file = context.getDumpFile();
+
+        if (!file.exists()) {
+            throw new FileNotFoundException(String.format("Couldn't find TAR archive %s", file.getCanonicalPath()));
+        }
+
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final HmodManifest manifest = new HmodManifest(context.getFirmwareProfile().getId());
+
+        try (HmodSink sink = new ManifestHmodSink(new ArchiveHmodSink(new File(HMOD_ARCHIVE), threads), manifest)) {
+            writeBundledHmodFiles(context, sink);
+            new DirectHmodWriter(sink, HmodLayout.NESC,
+                    HmodPatches.forProfile(context.getFirmwareProfile())).write(file);
+            sink.commit();
+        }
+
+        manifest.save(HmodManifest.forHmod(new File(HMOD_ARCHIVE)));
     }
 
     /**
-     * Copy the given directory from the source (NESC dump) to the output (HMOD) folder.
-     * @param sourceDirectory The path of the source file within the NESC dump
-     * @param targetDirectory The path within the HMOD to copy the file to
+     * Write the files we ship with the application into an HMOD.
+     * @param context The build whose HMOD folder holds the bundled files
+     * @param sink Where to write them
      * @throws IOException
      */
-    private static void copyDirectoryFromDumpToHmod(final String sourceDirectory, final String targetDirectory)
-            throws IOException {
-        final String src = String.format("%s/%s", DUMP_FOLDER, sourceDirectory);
-        final String dst = String.format("%s/%s", HMOD_FOLDER, targetDirectory);
-        System.out.println(String.format("Copying %s from the NESC dump to %s", src, dst));
-        FileUtils.copyDirectory(new File(src), new File(dst));
+    private static void writeBundledHmodFiles(final BuildContext context, final HmodSink sink) throws IOException {
+        for (String path : BUNDLED_HMOD_FILES) {
+            final File bundled = context.resolveHmodPath(path);
+            BuildLog.detail("Writing %s", sink.describe(path));
+            sink.writeFile(path, Files.readAllBytes(bundled.toPath()), path.startsWith("bin/") ? 0755 : 0644);
+        }
     }
 
     /**
-     * Patch the non-game text scripts in the HMOD.
+     * Write the manifest of the HMOD folder next to it, once an incremental build has written the
+     * files that were out of date.
+     * @param context The build whose HMOD folder it is
+     * @param manifest The manifest, holding the files the build wrote
+     * @param previous The manifest of the previous build, or null if there isn't one
+     * @param unchanged The paths of the files the build left alone because they were up to date,
+     *                  which keep their entries from the previous manifest
      * @throws IOException
      */
-    private static void patchTextScriptsInHmod()
+    private static void saveHmodManifest(final BuildContext context, final HmodManifest manifest,
+                                         final HmodManifest previous, final Set<String> unchanged)
             throws IOException {
-        // patch the desktop files
-        replaceStringInFile("etc/share/applications/clover-debug-menu.desktop",
-                "Exec=/usr/bin/clover-debug-menu",
-                "Exec=/bin/clover-debug-menu-nes");
-        replaceStringInFile("etc/share/applications/clover-factory-reset.desktop",
-                "Exec=/usr/bin/clover-factory-reset",
-                "Exec=/bin/clover-factory-reset-nes");
-        replaceStringInFile("etc/share/applications/clover-menu-reset.desktop",
-                "Exec=/usr/bin/clover-menu-reset",
-                "Exec=/bin/clover-menu-reset-nes");
-        replaceStringInFile("etc/share/applications/clover-test-menu.desktop",
-                "Exec=/usr/bin/clover-production-test-menu",
-                "Exec=/bin/clover-production-test-menu-nes");
-        replaceStringInFile("etc/share/applications/clover-ui.desktop",
-                "Exec=/usr/bin/clover-ui",
-                "Exec=/bin/clover-ui-nes");
-        replaceStringsInFile("etc/share/applications/clover-mcp.desktop", ImmutableMap.of(
-                "/usr/share/games/nes/kachikachi",
-                "/etc/nesgames",
-                "/usr/share/applications",
-                "/etc/share/applications",
-                "/usr/share/clover-mcp/",
-                "/etc/share/clover-mcp/"
-                ));
-
-        // patch the bin scripts
-        replaceStringInFile("bin/clover-menu-reset-nes",
-                "home-menu",
-                "nesc-menu");
-        replaceStringsInFile("bin/clover-ui-nes", ImmutableMap.of(
-                "ReedPlayer-Clover",
-                "ReedPlayer-Clover-nes",
-                "/usr/share/",
-                "/etc/share/"));
-    }
-
-    /**
-     * Patches up the NES game desktop files to load correctly.
+        for (String path : unchanged) {
+            if (!manifest.contains(path)) {
+                manifest.recordUnchanged(path, context.resolveHmodPath(path), previous);
+            }
+        }
+
+        saveHmodManifest(context, manifest);
+    }
+
+    /**
+     * Write the manifest of the HMOD folder next to it, once the build has written its files. The
+     * bundled files are recorded as they are on disk, since a build of the HMOD folder leaves them
+     * where they are, and they may have been edited since the last build.
+     * @param context The build whose HMOD folder it is
+     * @param manifest The manifest, holding the files the build wrote
      * @throws IOException
      */
-    private static void patchGameFilesInHmod()
+    private static void saveHmodManifest(final BuildContext context, final HmodManifest manifest)
             throws IOException {
-        String[] gamesList = new String[]{};
-
-        if ((chosenDumpFile == NES_102_DUMP) ||
-                (chosenDumpFile == NES_103_DUMP)) {
-            // this is a USA/EUR dump
-            gamesList = new String[] { "CLV-P-NAAAE", "CLV-P-NAACE", "CLV-P-NAADE", "CLV-P-NAAEE", "CLV-P-NAAFE",
-                    "CLV-P-NAAHE", "CLV-P-NAANE", "CLV-P-NAAPE", "CLV-P-NAAQE", "CLV-P-NAARE", "CLV-P-NAASE",
-                    "CLV-P-NAATE", "CLV-P-NAAUE", "CLV-P-NAAVE", "CLV-P-NAAWE", "CLV-P-NAAXE", "CLV-P-NAAZE",
-                    "CLV-P-NABBE", "CLV-P-NABCE", "CLV-P-NABJE", "CLV-P-NABKE", "CLV-P-NABME", "CLV-P-NABNE",
-                    "CLV-P-NABQE", "CLV-P-NABRE", "CLV-P-NABVE", "CLV-P-NABXE", "CLV-P-NACBE", "CLV-P-NACDE",
-                    "CLV-P-NACHE", "PRODUCTION-TESTS" };
-        } else if (chosenDumpFile == HVC_105_DUMP) {
-            // this is a JPN dump
-            gamesList = new String[] { "CLV-P-HAAAJ", "CLV-P-HAACJ", "CLV-P-HAADJ", "CLV-P-HAAEJ", "CLV-P-HAAHJ",
-                    "CLV-P-HAAMJ", "CLV-P-HAANJ", "CLV-P-HAAPJ", "CLV-P-HAAQJ", "CLV-P-HAARJ", "CLV-P-HAASJ",
-                    "CLV-P-HAAUJ", "CLV-P-HAAWJ", "CLV-P-HAAXJ", "CLV-P-HABBJ", "CLV-P-HABCJ", "CLV-P-HABLJ",
-                    "CLV-P-HABMJ", "CLV-P-HABNJ", "CLV-P-HABQJ", "CLV-P-HABRJ", "CLV-P-HABVJ", "CLV-P-HACAJ",
-                    "CLV-P-HACBJ", "CLV-P-HACCJ", "CLV-P-HACEJ", "CLV-P-HACHJ", "CLV-P-HACJJ", "CLV-P-HACLJ",
-                    "CLV-P-HACPJ", "PRODUCTION-TESTS" };
-        }
-
-        for (String gameCode : gamesList) {
-            replaceStringsInFile(String.format("etc/nesgames/%1$s/%1$s.desktop", gameCode), ImmutableMap.of(
-                    "/usr/bin/clover-kachikachi",
-                    "/bin/hybrid_nesc_kachikachi_wr",
-                    "/usr/share/games/nes/kachikachi",
-                    "/etc/nesgames"
-            ));
-        }
-    }
-
-    /**
-     * Replace all occurrences of a given string with a new string in the given file.
-     * @param filePath The path of the file to patch within the HMOD
-     * @param origStr The string to replace
-     * @param newStr The replacement string
+        for (String path : BUNDLED_HMOD_FILES) {
+            manifest.recordFile(path, context.resolveHmodPath(path));
+        }
+
+        manifest.save(HmodManifest.forHmod(context.getHmodFolder()));
+    }
+
+    /**
+     * Check an HMOD folder or .hmod archive against the manifest its build wrote next to it: every
+     * file is hashed again, on all the given cores, and every binary patch site is checked for the
+     * patched bytes of the firmware the HMOD was built for.
+     * @param hmod The HMOD folder or archive
+     * @param threads How many cores to hash on
      * @throws IOException
      */
-    private static void replaceStringInFile(final String filePath, final String origStr, final String newStr)
+    private static void verifyHmod(final File hmod, final int threads) throws IOException {
+        if (!hmod.exists()) {
+            throw new FileNotFoundException(String.format("Couldn't find HMOD %s", hmod.getPath()));
+        }
+
+        final File manifestFile = HmodManifest.forHmod(hmod);
+        final HmodManifest manifest = HmodManifest.load(manifestFile);
+
+        if (manifest == null) {
+            throw new RuntimeException(String.format("Couldn't find a manifest for %s at %s, please build it again",
+                    hmod.getPath(), manifestFile.getPath()));
+        }
+
+        final FirmwareProfile profile = FirmwareProfile.byId(manifest.getFirmwareId());
+
+        if (profile == null) {
+            throw new RuntimeException(String.format("%s was built for firmware '%s', which isn't one we know of",
+                    hmod.getPath(), manifest.getFirmwareId()));
+        }
+
+        BuildLog.info("Verifying %s (%s) against %s...", hmod.getPath(), profile, manifestFile.getPath());
+        final HmodVerifier verifier = new HmodVerifier(manifest, HmodPatches.getBinaryPatches(profile), threads);
+        final HmodVerifier.Result result = hmod.isDirectory()
+                ? verifier.verifyDirectory(hmod) : verifier.verifyArchive(hmod);
+
+        for (String problem : result.getProblems()) {
+            BuildLog.warn("  %s", problem);
+        }
+
+        if (!result.isValid()) {
+            throw new RuntimeException(String.format("%s doesn't match its manifest, %d problem%s found",
+                    hmod.getPath(), result.getProblems().size(), result.getProblems().size() == 1 ? "" : "s"));
+        }
+
+        BuildLog.info("Verified %d files (%.1f MiB) and every binary patch site, %s matches its manifest!",
+                result.getFiles(), result.getBytes() / (1024.0 * 1024.0), hmod.getPath());
+    }
+
+    /**
+     * Package the changes between an earlier build of the HMOD and the current one, as a .hmod that
+     * updates a console with the earlier build installed: only new and changed files are shipped,
+     * most changed ones as just their changed blocks.
+     * @param hmod The HMOD folder or archive of the current build
+     * @param previousManifest The manifest of the earlier build
+     * @param output Where to write the package
+     * @throws IOException
+     */
+    private static void writeDeltaPackage(final File hmod, final File previousManifest, final File output)
             throws IOException {
-        final Path path = Paths.get(String.format("%s/%s", HMOD_FOLDER, filePath));
-        System.out.println(String.format("Patching %s...", filePath));
-        String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
-        content = content.replaceAll(origStr, newStr);
-        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        final HmodManifest previous = HmodManifest.load(previousManifest);
+
+        if (previous == null) {
+            throw new RuntimeException(String.format("Couldn't read an HMOD manifest from %s",
+                    previousManifest.getPath()));
+        }
+
+        if (!hmod.exists()) {
+            throw new FileNotFoundException(String.format("Couldn't find HMOD %s", hmod.getPath()));
+        }
+
+        final File manifestFile = HmodManifest.forHmod(hmod);
+        final HmodManifest current = HmodManifest.load(manifestFile);
+
+        if (current == null) {
+            throw new RuntimeException(String.format("Couldn't find a manifest for %s at %s, please build it again",
+                    hmod.getPath(), manifestFile.getPath()));
+        }
+
+        final HmodDelta delta = new HmodDelta(previous, current);
+
+        if (delta.isEmpty()) {
+            BuildLog.info("%s installs the same files as the build of %s, there's nothing to update",
+                    hmod.getPath(), previousManifest.getPath());
+            return;
+        }
+
+        BuildLog.info("Writing the changes from the build of %s to %s as %s...", previousManifest.getPath(),
+                hmod.getPath(), output.getPath());
+        delta.write(hmod, output, Runtime.getRuntime().availableProcessors());
+
+        long total = 0;
+
+        for (HmodManifest.Entry entry : current.getEntries().values()) {
+            total += entry.getSize();
+        }
+
+        BuildLog.info("%d files unchanged, %d added, %d rewritten, %d patched block by block, %d removed",
+                delta.getUnchanged(), delta.getAdded(), delta.getRewritten(), delta.getPatched(),
+                delta.getRemoved());
+        BuildLog.info("Update package written to %s: %.1f KiB, carrying %.1f KiB of the HMOD's %.1f KiB!",
+                output.getPath(), output.length() / 1024.0, delta.getPayloadBytes() / 1024.0, total / 1024.0);
     }
 
     /**
-     * Repalce all occurrences of the strings in a map with their given substitutions in the given file.
+     * Add a stage per file and directory of the HMOD layout, adding it from the NESC dump to the
+     * overlay.
+     * @param graph The graph to add the stages to
+     * @param overlay The overlay to add the files to
+     */
+    private static void addCopyStages(final StageGraph graph, final HmodOverlay overlay) {
+        for (DumpMapping mapping : HmodLayout.NESC.getMappings()) {
+            graph.add(new Stage(String.format("copy:%s", mapping.getTarget()),
+                    ImmutableList.of(BuildContext.dumpResource(mapping.getSource())),
+                    ImmutableList.of(BuildContext.hmodResource(mapping.getTarget())),
+                    context -> {
+                        final File src = context.resolveDumpPath(mapping.getSource());
+                        BuildLog.detail("Copying %s from the NESC dump to %s", src.getPath(),
+                                context.resolveHmodPath(mapping.getTarget()).getPath());
+
+                        if (mapping.isDirectory()) {
+                            overlay.addDirectory(mapping.getTarget(), src);
+                        } else {
+                            overlay.addFile(mapping.getTarget(), src);
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * Add a stage per non-game text script in the HMOD, patching it.
+     * @param graph The graph to add the stages to
+     * @param overlay The overlay holding the scripts
+     */
+    private static void addTextScriptStages(final StageGraph graph, final HmodOverlay overlay) {
+        for (Map.Entry<String, Map<String, String>> patch : HmodPatches.SCRIPT_PATCHES.entrySet()) {
+            addTextPatchStage(graph, overlay, patch.getKey(), patch.getValue());
+        }
+    }
+
+    /**
+     * Add a stage per NES game desktop file, patching it up to load correctly.
+     * @param graph The graph to add the stages to
+     * @param overlay The overlay holding the desktop files
+     * @param profile The firmware release whose games are in the dump
+     */
+    private static void addGameFileStages(final StageGraph graph, final HmodOverlay overlay,
+                                          final FirmwareProfile profile) {
+        for (String gameCode : profile.getGameCodes()) {
+            addTextPatchStage(graph, overlay, HmodPatches.getGameDesktopFile(gameCode), HmodPatches.GAME_PATCHES);
+        }
+    }
+
+    /**
+     * Add a stage replacing all occurrences of the strings in a map with their given substitutions in
+     * the given file.
+     * @param graph The graph to add the stage to
+     * @param overlay The overlay holding the file
      * @param filePath The path of the file to patch within the HMOD
      * @param substitutions The strings to replace and their replacements
-     * @throws IOException
      */
-    private static void replaceStringsInFile(final String filePath, final Map<String, String> substitutions)
-            throws IOException {
-        final Path path = Paths.get(String.format("%s/%s", HMOD_FOLDER, filePath));
-        System.out.println(String.format("Patching %s...", filePath));
-        String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
-
-        for (Map.Entry<String, String> entry : substitutions.entrySet()) {
-            content = content.replaceAll(entry.getKey(), entry.getValue());
-        }
-
-        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
-    }
-
-    /**
-     * Patch up the binary files in the HMOD.
-     */
-    private static void patchBinaryFilesInHmod() throws IOException {
-        // determine file offsets based on the version of the dump used
-        long cloverMcpOffset = 0x0L;
-        long kachikachiOffset1 = 0x0L;
-        long kachikachiOffset2 = 0x0L;
-        long reedplayerOffset1 = 0x0L;
-        long reedplayerOffset2 = 0x0L;
-
-        if ((chosenDumpFile == NES_102_DUMP) ||
-                (chosenDumpFile == NES_103_DUMP)) {
-            cloverMcpOffset = 0x209C5;
-            kachikachiOffset1 = 0x5D00D;
-            kachikachiOffset2 = 0x5D048;
-            reedplayerOffset1 = 0x12C0B5;
-            reedplayerOffset2 = 0x12C0FC;
-        } else if (chosenDumpFile == HVC_105_DUMP) {
-            cloverMcpOffset = 0x209C5;
-            kachikachiOffset1 = 0x602BD;
-            kachikachiOffset2 = 0x602F8;
-            reedplayerOffset1 = 0x12C0B5;
-            reedplayerOffset2 = 0x12C0FC;
-        }
-
-        // patch the files based on the determined offsets
-        String path = String.format("%s/bin/clover-mcp-nes", HMOD_FOLDER);
-        System.out.println(String.format("Patching %s...", path));
-        RandomAccessFile file = new RandomAccessFile(new File(path), "rw");
-        file.seek(cloverMcpOffset);
-        file.writeByte(0x65);
-        file.writeByte(0x74);
-        file.writeByte(0x63);
-
-        path = String.format("%s/bin/kachikachi", HMOD_FOLDER);
-        System.out.println(String.format("Patching %s...", path));
-        file = new RandomAccessFile(new File(path), "rw");
-        file.seek(kachikachiOffset1);
-        file.writeByte(0x65);
-        file.writeByte(0x74);
-        file.writeByte(0x63);
-        file.seek(kachikachiOffset2);
-        file.writeByte(0x65);
-        file.writeByte(0x74);
-        file.writeByte(0x63);
-
-        path = String.format("%s/bin/ReedPlayer-Clover-nes", HMOD_FOLDER);
-        System.out.println(String.format("Patching %s...", path));
-        file = new RandomAccessFile(new File(path), "rw");
-        file.seek(reedplayerOffset1);
-        file.writeByte(0x65);
-        file.writeByte(0x74);
-        file.writeByte(0x63);
-        file.seek(reedplayerOffset2);
-        file.writeByte(0x6E);
-        file.writeByte(0x65);
-        file.writeByte(0x73);
-        file.writeByte(0x63);
+    private static void addTextPatchStage(final StageGraph graph, final HmodOverlay overlay, final String filePath,
+                                          final Map<String, String> substitutions) {
+        final List<String> resources = ImmutableList.of(BuildContext.hmodResource(filePath));
+        graph.add(new Stage(String.format("patch:%s", filePath), resources, resources, context -> {
+            BuildLog.detail("Patching %s...", filePath);
+            overlay.edit(filePath, String.format("%d text substitution%s", substitutions.size(),
+                    substitutions.size() == 1 ? "" : "s"),
+                    (content, pool) -> TextPatcher.apply(content, substitutions, pool));
+        }));
+    }
+
+    /**
+     * Add a stage per binary file in the HMOD, patching it up. Every patch site in a file is found
+     * and verified before any of its patches are made.
+     * @param graph The graph to add the stages to
+     * @param overlay The overlay holding the binaries
+     * @param profile The firmware release the binaries come from
+     */
+    private static void addBinaryFileStages(final StageGraph graph, final HmodOverlay overlay,
+                                            final FirmwareProfile profile) {
+        for (Map.Entry<String, List<BinaryPatch>> patches : HmodPatches.getBinaryPatches(profile).entrySet()) {
+            final String filePath = patches.getKey();
+            final List<String> resources = ImmutableList.of(BuildContext.hmodResource(filePath));
+
+            graph.add(new Stage(String.format("patch:%s", filePath), resources, resources, context -> {
+                BuildLog.detail("Patching %s...", context.resolveHmodPath(filePath).getPath());
+                final int count = patches.getValue().size();
+                final String description = String.format("%d binary patch%s", count, count == 1 ? "" : "es");
+                overlay.edit(filePath, description, (content, pool) -> {
+                    BinaryPatcher.apply(content.slice(), patches.getValue(), filePath);
+                    return content;
+                });
+            }));
+        }
     }
 }
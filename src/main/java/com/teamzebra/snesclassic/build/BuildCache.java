@@ -0,0 +1,220 @@
+package com.teamzebra.snesclassic.build;
+
+import com.google.common.hash.Hashing;
+import com.teamzebra.snesclassic.hmod.HmodPatches;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers, for every file the HMOD build wrote from the dump, which inputs produced it: the hash
+ * of the dump entry, and a digest of the patches applied on top. On the next build only the files
+ * whose inputs changed (or that were changed or removed on disk) need writing again, and if there
+ * are none the dump doesn't even need to be opened.
+ */
+public class BuildCache {
+
+    private static final String HEADER = "# hmod build cache v1";
+
+    private final File hmodDirectory;
+    private final String dumpKey;
+    private final String layoutDigest;
+    private final Map<String, Record> records = new LinkedHashMap<>();
+
+    /**
+     * Start an empty cache for a full build.
+     * @param hmodDirectory The HMOD folder the outputs are written to
+     * @param dumpKey The fingerprint key of the dump being built from
+     * @param layoutDigest The digest of the HMOD layout being built with
+     */
+    public BuildCache(final File hmodDirectory, final String dumpKey, final String layoutDigest) {
+        this.hmodDirectory = hmodDirectory;
+        this.dumpKey = dumpKey;
+        this.layoutDigest = layoutDigest;
+    }
+
+    /**
+     * Load the cache from a previous build.
+     * @param file The cache file
+     * @param hmodDirectory The HMOD folder the outputs were written to
+     * @return The cache, or null if there is no usable cache file
+     * @throws IOException
+     */
+    public static BuildCache load(final File file, final File hmodDirectory) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+
+            final String[] dump = split(reader.readLine(), 2);
+            final String[] layout = split(reader.readLine(), 2);
+
+            if (dump == null || layout == null || !"dump".equals(dump[0]) || !"layout".equals(layout[0])) {
+                return null;
+            }
+
+            final BuildCache cache = new BuildCache(hmodDirectory, dump[1], layout[1]);
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = split(line, 8);
+
+                if (fields == null || !"file".equals(fields[0])) {
+                    return null;
+                }
+
+                cache.records.put(fields[1], new Record(fields[2], fields[3], fields[4],
+                        Long.parseLong(fields[5]), Long.parseLong(fields[6]), fields[7]));
+            }
+
+            return cache;
+        }
+    }
+
+    /**
+     * Write the cache out for the next build.
+     * @param file The cache file
+     * @throws IOException
+     */
+    public void save(final File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n");
+            writer.write("dump\t" + dumpKey + "\n");
+            writer.write("layout\t" + layoutDigest + "\n");
+
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                final Record record = entry.getValue();
+                writer.write(String.format("file\t%s\t%s\t%s\t%s\t%d\t%d\t%s\n", entry.getKey(), record.source,
+                        record.sourceHash, record.inputKey, record.size, record.modified, record.outputHash));
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Work out which outputs need building again.
+     * @param currentDumpKey The fingerprint key of the dump being built from now
+     * @param currentLayoutDigest The digest of the HMOD layout being built with now
+     * @param patches The patches being applied now
+     * @return The HMOD paths of the outputs to rebuild, empty if everything is up to date, or null
+     *         if the dump or layout changed and everything has to be rebuilt
+     */
+    public Set<String> findStaleOutputs(final String currentDumpKey, final String currentLayoutDigest,
+                                        final HmodPatches patches) {
+        if (!dumpKey.equals(currentDumpKey) || !layoutDigest.equals(currentLayoutDigest)) {
+            return null;
+        }
+
+        // a patch for a file this dump never produced would go unchecked without a full build
+        for (String path : patches.getTextPatches().keySet()) {
+            if (!records.containsKey(path)) {
+                return null;
+            }
+        }
+
+        for (String path : patches.getBinaryPatches().keySet()) {
+            if (!records.containsKey(path)) {
+                return null;
+            }
+        }
+
+        final Set<String> stale = new LinkedHashSet<>();
+
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            final String path = entry.getKey();
+            final Record record = entry.getValue();
+            final File output = new File(hmodDirectory, path);
+
+            if (!record.inputKey.equals(inputKey(record.sourceHash, patches.getPatchDigest(path)))
+                    || !output.isFile() || output.length() != record.size
+                    || output.lastModified() != record.modified) {
+                stale.add(path);
+            }
+        }
+
+        return stale;
+    }
+
+    /**
+     * Record an output that has just been written.
+     * @param target The path of the file within the HMOD
+     * @param source The name of the dump entry it was made from
+     * @param sourceHash The SHA-256 of the dump entry
+     * @param outputHash The SHA-256 of the file as written
+     * @param patches The patches that were applied
+     */
+    public void record(final String target, final String source, final String sourceHash,
+                       final String outputHash, final HmodPatches patches) {
+        final File output = new File(hmodDirectory, target);
+        records.put(target, new Record(source, sourceHash, inputKey(sourceHash, patches.getPatchDigest(target)),
+                output.length(), output.lastModified(), outputHash));
+    }
+
+    /**
+     * @return The HMOD paths of every output the cache knows about
+     */
+    public Set<String> getOutputs() {
+        return Collections.unmodifiableSet(records.keySet());
+    }
+
+    /**
+     * @return How many outputs the cache knows about
+     */
+    public int size() {
+        return records.size();
+    }
+
+    private static String inputKey(final String sourceHash, final String patchDigest) {
+        return Hashing.sha256().hashString(sourceHash + "\n" + patchDigest, StandardCharsets.UTF_8).toString();
+    }
+
+    private static String[] split(final String line, final int fields) {
+        if (line == null) {
+            return null;
+        }
+
+        final String[] split = line.split("\t", -1);
+        return (split.length == fields) ? split : null;
+    }
+
+    /**
+     * What is known about one output.
+     */
+    private static final class Record {
+
+        private final String source;
+        private final String sourceHash;
+        private final String inputKey;
+        private final long size;
+        private final long modified;
+        private final String outputHash;
+
+        private Record(final String source, final String sourceHash, final String inputKey, final long size,
+                       final long modified, final String outputHash) {
+            this.source = source;
+            this.sourceHash = sourceHash;
+            this.inputKey = inputKey;
+            this.size = size;
+            this.modified = modified;
+            this.outputHash = outputHash;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.teamzebra.snesclassic.build;
+
+import com.teamzebra.snesclassic.hmod.HmodManifest;
+import com.teamzebra.snesclassic.tarfiles.GzipSeekIndex;
+
+/**
+ * What the builds of an HMOD folder have learned about their inputs and outputs, kept in memory
+ * between the rebuilds of a long running session so that each rebuild reads only what changed: the
+ * build cache, the seek index of the dump and the manifest of the HMOD folder. Whatever a session
+ * doesn't hold yet is loaded from disk by the build, as a single incremental run does.
+ */
+public class BuildSession {
+
+    private BuildCache cache;
+    private GzipSeekIndex index;
+    private String indexKey;
+    private HmodManifest manifest;
+
+    /**
+     * @return The build cache of the last build, or null if the session doesn't hold one
+     */
+    public synchronized BuildCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param dumpKey The fingerprint key of the dump
+     * @return The seek index of that dump, or null if the session doesn't hold one for it
+     */
+    public synchronized GzipSeekIndex getIndex(final String dumpKey) {
+        return dumpKey.equals(indexKey) ? index : null;
+    }
+
+    /**
+     * @return The manifest of the HMOD folder as last written, or null if the session doesn't hold one
+     */
+    public synchronized HmodManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Remember what a build finished with.
+     * @param cache The build cache it saved
+     * @param dumpKey The fingerprint key of the dump it built from
+     * @param index The seek index of that dump, or null if there isn't one
+     * @param manifest The manifest it saved
+     */
+    public synchronized void update(final BuildCache cache, final String dumpKey, final GzipSeekIndex index,
+                                    final HmodManifest manifest) {
+        this.cache = cache;
+        this.indexKey = (index == null) ? null : dumpKey;
+        this.index = index;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Forget everything, after a build that failed part way, so that the next one starts from what
+     * is on disk.
+     */
+    public synchronized void clear() {
+        update(null, null, null, null);
+    }
+}
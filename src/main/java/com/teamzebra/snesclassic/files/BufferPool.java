@@ -0,0 +1,97 @@
+package com.teamzebra.snesclassic.files;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of direct buffers, so that file content passing through memory on its way to be
+ * patched and written doesn't need a new array per file. Buffers come in powers of two, so once the
+ * pool has seen a file of each size, processing another allocates nothing.
+ *
+ * Safe for use by several threads at once.
+ */
+public class BufferPool {
+
+    /**
+     * The smallest buffer handed out; most text files fit in one this size.
+     */
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private final int maxPooled;
+    private final List<ByteBuffer> free = new ArrayList<>();
+
+    /**
+     * @param maxPooled The most buffers to keep for reuse; more may be handed out at once, but the
+     *                  extra ones are left to the garbage collector when they come back
+     */
+    public BufferPool(final int maxPooled) {
+        this.maxPooled = Math.max(1, maxPooled);
+    }
+
+    /**
+     * Borrow a buffer.
+     * @param capacity How many bytes the buffer has to hold
+     * @return A cleared buffer, with its limit set to the requested capacity
+     */
+    public ByteBuffer acquire(final int capacity) {
+        ByteBuffer buffer = null;
+
+        synchronized (this) {
+            int best = -1;
+
+            for (int i = 0; i < free.size(); i++) {
+                final int candidate = free.get(i).capacity();
+
+                if (candidate >= capacity && (best < 0 || candidate < free.get(best).capacity())) {
+                    best = i;
+                }
+            }
+
+            if (best >= 0) {
+                buffer = free.remove(best);
+            }
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(roundUp(capacity));
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back for reuse. Nothing may use it afterwards.
+     * @param buffer A buffer from {@link #acquire(int)}
+     */
+    public synchronized void release(final ByteBuffer buffer) {
+        if (free.size() < maxPooled) {
+            free.add(buffer);
+            return;
+        }
+
+        // keep the larger buffers, since they're the ones that are expensive to allocate again
+        int smallest = 0;
+
+        for (int i = 1; i < free.size(); i++) {
+            if (free.get(i).capacity() < free.get(smallest).capacity()) {
+                smallest = i;
+            }
+        }
+
+        if (free.get(smallest).capacity() < buffer.capacity()) {
+            free.set(smallest, buffer);
+        }
+    }
+
+    private static int roundUp(final int capacity) {
+        if (capacity <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+
+        final int rounded = Integer.highestOneBit(capacity - 1) << 1;
+        return (rounded > 0) ? rounded : capacity;
+    }
+}
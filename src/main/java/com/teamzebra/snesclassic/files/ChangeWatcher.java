@@ -0,0 +1,100 @@
+package com.teamzebra.snesclassic.files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for files in a few directories to be created, changed or deleted, through a
+ * {@link WatchService}, so the operating system says what changed rather than everything being
+ * looked at again. Changes come in batches: once something changes, the batch is held open until
+ * the directories have been quiet for a moment, so that an editor saving a file in several steps,
+ * or a large file being copied in, leads to one batch rather than a stream of them.
+ *
+ * Only the directories themselves are watched, not their subdirectories.
+ */
+public class ChangeWatcher implements Closeable {
+
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * @throws IOException If the file system can't watch for changes
+     */
+    public ChangeWatcher() throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Start watching a directory.
+     * @param directory The directory to watch
+     * @throws IOException If it isn't a directory, or can't be watched
+     */
+    public void watch(final File directory) throws IOException {
+        final Path path = directory.toPath().toAbsolutePath().normalize();
+        directories.put(path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), path);
+    }
+
+    /**
+     * Wait for the next batch of changes.
+     * @param quietMillis How long the directories have to be quiet for the batch to be over
+     * @return The absolute paths of the files that changed. If the operating system lost track of
+     *         the changes to a directory, or it was deleted, the directory itself is returned, and
+     *         anything in it may have changed; a deleted directory is no longer watched.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Set<Path> awaitChanges(final long quietMillis) throws InterruptedException {
+        if (directories.isEmpty()) {
+            throw new IllegalStateException("None of the watched directories are left to watch");
+        }
+
+        final Set<Path> changed = new LinkedHashSet<>();
+        WatchKey key = service.take();
+
+        while (key != null) {
+            final Path directory = directories.get(key);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changed.add(directory);
+                } else {
+                    changed.add(directory.resolve((Path) event.context()));
+                }
+            }
+
+            if (!key.reset()) {
+                directories.remove(key);
+                changed.add(directory);
+            }
+
+            key = service.poll(quietMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return changed;
+    }
+
+    /**
+     * @return The absolute paths of the directories still watched
+     */
+    public Set<Path> getDirectories() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(directories.values()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}
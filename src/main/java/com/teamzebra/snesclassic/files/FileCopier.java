@@ -0,0 +1,228 @@
+package com.teamzebra.snesclassic.files;
+
+import com.google.common.base.Throwables;
+import com.teamzebra.snesclassic.report.IoCounters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Copies files with {@link FileChannel#transferTo}, so the bytes are moved by the kernel instead of
+ * through buffers in the JVM. Many files can be copied at once on the copier's fork/join pool with
+ * {@link #forEach}, each file being its own task. Like commons-io, copies keep the modification time
+ * of their source.
+ *
+ * A file that is copied more than once to places where it won't be modified can be linked to its
+ * first copy instead, depending on the {@link LinkMode}.
+ */
+public class FileCopier implements Closeable {
+
+    /**
+     * What to do with the second and later copies of the same file.
+     */
+    public enum LinkMode {
+        /**
+         * Copy the bytes every time.
+         */
+        NONE,
+        /**
+         * Hard link later copies to the first one.
+         */
+        HARD,
+        /**
+         * Make later copies relative symbolic links to the first one.
+         */
+        SYMBOLIC
+    }
+
+    private final ForkJoinPool pool;
+    private final LinkMode linkMode;
+    private final ConcurrentMap<Path, CompletableFuture<Path>> firstCopies = new ConcurrentHashMap<>();
+
+    /**
+     * @param parallelism The most files to copy at once
+     * @param linkMode What to do with repeated copies passed to {@link #copyOrLinkFile(File, File)}
+     */
+    public FileCopier(final int parallelism, final LinkMode linkMode) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.linkMode = linkMode;
+    }
+
+    public LinkMode getLinkMode() {
+        return linkMode;
+    }
+
+    /**
+     * Copy a file, replacing whatever is at the destination.
+     * @param source The file to copy
+     * @param target Where to copy it to; its parent directories are created as needed
+     * @throws IOException
+     */
+    public void copyFile(final File source, final File target) throws IOException {
+        final Path targetPath = target.toPath();
+        createDirectories(targetPath.getParent());
+        transfer(source.toPath(), targetPath);
+    }
+
+    /**
+     * Copy a file, or, if the same file has been copied before and links are enabled, link to that
+     * copy instead. Only use this for copies that nothing modifies afterwards, since a hard link
+     * shares its content with the file it links to.
+     * @param source The file to copy
+     * @param target Where to copy it to; its parent directories are created as needed
+     * @throws IOException
+     */
+    public void copyOrLinkFile(final File source, final File target) throws IOException {
+        final Path sourcePath = source.toPath().toAbsolutePath().normalize();
+        final Path targetPath = target.toPath();
+        createDirectories(targetPath.getParent());
+
+        if (linkMode == LinkMode.NONE) {
+            transfer(sourcePath, targetPath);
+            return;
+        }
+
+        final CompletableFuture<Path> copied = new CompletableFuture<>();
+        final CompletableFuture<Path> firstCopy = firstCopies.putIfAbsent(sourcePath, copied);
+
+        if (firstCopy == null) {
+            // this is the first copy, which the others wait on before linking to it
+            try {
+                transfer(sourcePath, targetPath);
+                copied.complete(targetPath.toAbsolutePath().normalize());
+            } catch (IOException | RuntimeException e) {
+                copied.complete(null);
+                throw e;
+            }
+        } else {
+            final Path linkTo = firstCopy.join();
+
+            if (linkTo == null || !link(linkTo, targetPath)) {
+                transfer(sourcePath, targetPath);
+            } else {
+                IoCounters.wroteFile(0);
+            }
+        }
+    }
+
+    /**
+     * Run a task for each of several items on the copier's threads, e.g. to copy a list of files at
+     * once, and wait for them all to finish.
+     * @param items The items to run the task for
+     * @param task What to do with each item; it must be safe to run from several threads at once
+     * @param <T> The type of the items
+     * @throws IOException The first failure of a task, after the others have finished
+     */
+    public <T> void forEach(final Collection<T> items, final Task<T> task) throws IOException {
+        final List<Callable<Void>> calls = new ArrayList<>(items.size());
+
+        for (T item : items) {
+            calls.add(() -> {
+                task.run(item);
+                return null;
+            });
+        }
+
+        for (Future<Void> result : pool.invokeAll(calls)) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while copying");
+            } catch (ExecutionException e) {
+                Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Replace the target with a link to an earlier copy.
+     * @param firstCopy The earlier copy of the same file
+     * @param target Where to put the link
+     * @return True if the link was made, false if the file system doesn't support it
+     */
+    private boolean link(final Path firstCopy, final Path target) {
+        try {
+            Files.deleteIfExists(target);
+
+            if (linkMode == LinkMode.HARD) {
+                Files.createLink(target, firstCopy);
+            } else {
+                final Path directory = target.toAbsolutePath().normalize().getParent();
+                Files.createSymbolicLink(target, directory.relativize(firstCopy));
+            }
+
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Move the bytes of a file across. The target is removed first rather than overwritten, so that
+     * a link left behind by an earlier run never gets written through.
+     */
+    private static void transfer(final Path source, final Path target) throws IOException {
+        Files.deleteIfExists(target);
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE_NEW)) {
+            final long size = in.size();
+            long position = 0;
+
+            while (position < size) {
+                final long transferred = in.transferTo(position, size - position, out);
+
+                if (transferred <= 0) {
+                    throw new IOException(String.format("%s shrank while being copied", source));
+                }
+
+                position += transferred;
+            }
+
+            IoCounters.read(size);
+            IoCounters.wroteFile(size);
+        }
+
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+
+    private static void createDirectories(final Path directory) throws IOException {
+        if (directory != null && !Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Something to do for each item passed to {@link #forEach}.
+     * @param <T> The type of the items
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        void run(T item) throws IOException;
+    }
+}
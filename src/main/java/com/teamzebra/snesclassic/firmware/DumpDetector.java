@@ -0,0 +1,256 @@
+package com.teamzebra.snesclassic.firmware;
+
+import com.teamzebra.snesclassic.report.IoCounters;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which firmware release a dump holds, as cheaply as possible:
+ * <ol>
+ *     <li>by its file name, if it still has its official name;</li>
+ *     <li>by its fingerprint (gzip header and trailer), if this dump has been seen before;</li>
+ *     <li>by probing the tarball for the first game directory, which decompresses part of it.</li>
+ * </ol>
+ * Whatever is learned is remembered in a small cache file, so a dump only ever gets probed once and
+ * is recognized from two small reads after that, however it's renamed. That goes for a .tar.gz that
+ * turns out not to be a NESC dump too, so other archives in the dump folder aren't decompressed
+ * again on every run. An official name always wins over the cache, and replaces a cached guess for
+ * the same content that disagrees with it.
+ *
+ * A dump that can't be read to the end, e.g. one that's still being copied, is reported as
+ * unreadable rather than failing the detection of the others, and isn't remembered.
+ */
+public class DumpDetector {
+
+    private static final Pattern GAME_DIRECTORY = Pattern.compile(
+            "^usr/share/games/nes/kachikachi/(CLV-P-[A-Z]{5})/");
+
+    private static final String PROFILE_PREFIX = "profile.";
+    private static final String SHA256_PREFIX = "sha256.";
+
+    /**
+     * What's cached for the fingerprint of a gzip file that was probed and isn't a NESC dump.
+     */
+    private static final String UNKNOWN = "unknown";
+
+    private final File cacheFile;
+    private final Properties cache = new Properties();
+    private boolean dirty;
+
+    /**
+     * @param cacheFile Where to remember fingerprints and hashes between runs
+     * @throws IOException If the cache file exists but can't be read
+     */
+    public DumpDetector(final File cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+
+        if (cacheFile.isFile()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                cache.load(in);
+            }
+        }
+    }
+
+    /**
+     * Identify the firmware release in a dump.
+     * @param dump The .tar.gz dump
+     * @param withSha256 Whether to also hash the whole dump (cached by path, size and mtime)
+     * @return What was found out about the dump; the profile is null if it isn't a NESC dump
+     * @throws IOException
+     */
+    public synchronized Detection detect(final File dump, final boolean withSha256) throws IOException {
+        final DumpFingerprint fingerprint = DumpFingerprint.read(dump);
+
+        if (fingerprint == null) {
+            return new Detection(dump, null, null, null, "not a gzip file");
+        }
+
+        final String sha256 = withSha256 ? sha256(dump) : null;
+        final String key = PROFILE_PREFIX + fingerprint.getKey();
+        FirmwareProfile profile = FirmwareProfile.byDumpFileName(dump.getName());
+
+        if (profile != null) {
+            // an official name outranks whatever a probe once guessed for the same content
+            if (!profile.getId().equals(cache.getProperty(key))) {
+                cache.setProperty(key, profile.getId());
+                dirty = true;
+            }
+
+            return new Detection(dump, profile, fingerprint, sha256, "file name");
+        }
+
+        final String cached = cache.getProperty(key, "");
+
+        if (UNKNOWN.equals(cached)) {
+            return new Detection(dump, null, fingerprint, sha256, "unrecognized");
+        }
+
+        profile = FirmwareProfile.byId(cached);
+
+        if (profile != null) {
+            return new Detection(dump, profile, fingerprint, sha256, "fingerprint");
+        }
+
+        try {
+            profile = probe(dump, fingerprint);
+        } catch (IOException e) {
+            return new Detection(dump, null, fingerprint, sha256, "unreadable: " + e.getMessage());
+        }
+
+        cache.setProperty(key, (profile == null) ? UNKNOWN : profile.getId());
+        dirty = true;
+        return new Detection(dump, profile, fingerprint, sha256, (profile == null) ? "unrecognized" : "content");
+    }
+
+    /**
+     * Write anything newly learned back to the cache file.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        try (OutputStream out = new FileOutputStream(cacheFile)) {
+            cache.store(out, "NESC dump fingerprints, generated by snesclassic.dualboot");
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Look through the dump's entries until the first game directory, and pick the release by it.
+     * The US/EUR releases ship the same games, so where the gzip header doesn't name the version,
+     * the newest release for the region is picked; their patches are identical.
+     * @return The release, or null if the dump holds no game directory of a release we know of
+     * @throws IOException If the dump isn't a valid tarball, or ends early
+     */
+    private FirmwareProfile probe(final File dump, final DumpFingerprint fingerprint) throws IOException {
+        final String originalName = fingerprint.getOriginalName();
+
+        if (originalName != null) {
+            final FirmwareProfile byName = FirmwareProfile.byDumpFileName(
+                    originalName.endsWith(".gz") ? originalName : originalName + ".gz");
+
+            if (byName != null) {
+                return byName;
+            }
+        }
+
+        final String entry = TarGzArchive.findEntry(dump, name -> GAME_DIRECTORY.matcher(name).find());
+
+        if (entry == null) {
+            return null;
+        }
+
+        final Matcher matcher = GAME_DIRECTORY.matcher(entry);
+        return matcher.find() ? FirmwareProfile.byGameCode(matcher.group(1)) : null;
+    }
+
+    /**
+     * Hash the whole dump with SHA-256, reusing the cached hash while the file's size and
+     * modification time are unchanged.
+     */
+    private String sha256(final File dump) throws IOException {
+        final String key = SHA256_PREFIX + dump.getCanonicalPath();
+        final String stamp = String.format("%d:%d:", dump.length(), dump.lastModified());
+        final String cached = cache.getProperty(key);
+
+        if (cached != null && cached.startsWith(stamp)) {
+            return cached.substring(stamp.length());
+        }
+
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (InputStream in = new BufferedInputStream(IoCounters.counting(new FileInputStream(dump)))) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        final StringBuilder hex = new StringBuilder();
+
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+
+        cache.setProperty(key, stamp + hex);
+        dirty = true;
+        return hex.toString();
+    }
+
+    /**
+     * The outcome of identifying a dump.
+     */
+    public static final class Detection {
+
+        private final File dump;
+        private final FirmwareProfile profile;
+        private final DumpFingerprint fingerprint;
+        private final String sha256;
+        private final String method;
+
+        private Detection(final File dump, final FirmwareProfile profile, final DumpFingerprint fingerprint,
+                          final String sha256, final String method) {
+            this.dump = dump;
+            this.profile = profile;
+            this.fingerprint = fingerprint;
+            this.sha256 = sha256;
+            this.method = method;
+        }
+
+        public File getDump() {
+            return dump;
+        }
+
+        /**
+         * @return The firmware release in the dump, or null if it wasn't recognized
+         */
+        public FirmwareProfile getProfile() {
+            return profile;
+        }
+
+        /**
+         * @return The dump's fingerprint, or null if it isn't a gzip file
+         */
+        public DumpFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return The SHA-256 of the dump, or null if it wasn't asked for
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        /**
+         * @return How the release was identified: "file name", "fingerprint" or "content"; or, when
+         *         it wasn't, "not a gzip file", "unrecognized", or "unreadable" and the reason
+         */
+        public String getMethod() {
+            return method;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.teamzebra.snesclassic.firmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What can be learned about a dump without decompressing it: its size, and the fields of the gzip
+ * header and trailer. The trailer holds the CRC32 and length of the whole uncompressed tarball, so
+ * together they identify the dump's content almost as well as a full hash, for the price of two
+ * small reads.
+ */
+public final class DumpFingerprint {
+
+    private static final int FLAG_EXTRA = 0x04;
+    private static final int FLAG_NAME = 0x08;
+    private static final int HEADER_READ_SIZE = 1024;
+
+    private final long size;
+    private final long modificationTime;
+    private final int operatingSystem;
+    private final String originalName;
+    private final long crc32;
+    private final long uncompressedSize;
+
+    private DumpFingerprint(final long size, final long modificationTime, final int operatingSystem,
+                            final String originalName, final long crc32, final long uncompressedSize) {
+        this.size = size;
+        this.modificationTime = modificationTime;
+        this.operatingSystem = operatingSystem;
+        this.originalName = originalName;
+        this.crc32 = crc32;
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    /**
+     * Read the fingerprint of a dump.
+     * @param file The .tar.gz dump
+     * @return The fingerprint, or null if the file isn't gzip compressed
+     * @throws IOException
+     */
+    public static DumpFingerprint read(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final long size = raf.length();
+
+            if (size < 18) {
+                return null;
+            }
+
+            final byte[] header = new byte[(int) Math.min(HEADER_READ_SIZE, size)];
+            raf.readFully(header);
+
+            if ((header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B || header[2] != 8) {
+                return null;
+            }
+
+            final int flags = header[3] & 0xFF;
+            String name = null;
+            int position = 10;
+
+            if ((flags & FLAG_EXTRA) != 0) {
+                position += 2 + readShortLE(header, position);
+            }
+
+            if ((flags & FLAG_NAME) != 0) {
+                int end = position;
+
+                while (end < header.length && header[end] != 0) {
+                    end++;
+                }
+
+                if (end < header.length) {
+                    name = new String(header, position, end - position, StandardCharsets.ISO_8859_1);
+                }
+            }
+
+            final byte[] trailer = new byte[8];
+            raf.seek(size - 8);
+            raf.readFully(trailer);
+
+            return new DumpFingerprint(size, readIntLE(header, 4), header[9] & 0xFF, name,
+                    readIntLE(trailer, 0), readIntLE(trailer, 4));
+        }
+    }
+
+    /**
+     * @return A key that identifies the dump's content, built from the CRC32, the uncompressed size
+     *         (mod 2^32) and the compressed size
+     */
+    public String getKey() {
+        return String.format("%08x-%08x-%d", crc32, uncompressedSize, size);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The modification time stored in the gzip header, in seconds since the epoch
+     */
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    public int getOperatingSystem() {
+        return operatingSystem;
+    }
+
+    /**
+     * @return The original file name stored in the gzip header, or null if there isn't one
+     */
+    public String getOriginalName() {
+        return originalName;
+    }
+
+    /**
+     * @return The CRC32 of the uncompressed tarball
+     */
+    public long getCrc32() {
+        return crc32;
+    }
+
+    /**
+     * @return The size of the uncompressed tarball, mod 2^32
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("crc32=%08x isize=%d size=%d", crc32, uncompressedSize, size);
+    }
+
+    private static int readShortLE(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+    }
+
+    private static long readIntLE(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFFL) | ((bytes[offset + 1] & 0xFFL) << 8)
+                | ((bytes[offset + 2] & 0xFFL) << 16) | ((bytes[offset + 3] & 0xFFL) << 24);
+    }
+}
@@ -0,0 +1,226 @@
+package com.teamzebra.snesclassic.firmware;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Everything that differs between the supported NESC firmware releases: how to recognize the dump,
+ * which games it ships with, and where the binary patch sites are known to be.
+ */
+public final class FirmwareProfile {
+
+    private static final List<String> NES_GAMES = ImmutableList.of(
+            "CLV-P-NAAAE", "CLV-P-NAACE", "CLV-P-NAADE", "CLV-P-NAAEE", "CLV-P-NAAFE",
+            "CLV-P-NAAHE", "CLV-P-NAANE", "CLV-P-NAAPE", "CLV-P-NAAQE", "CLV-P-NAARE", "CLV-P-NAASE",
+            "CLV-P-NAATE", "CLV-P-NAAUE", "CLV-P-NAAVE", "CLV-P-NAAWE", "CLV-P-NAAXE", "CLV-P-NAAZE",
+            "CLV-P-NABBE", "CLV-P-NABCE", "CLV-P-NABJE", "CLV-P-NABKE", "CLV-P-NABME", "CLV-P-NABNE",
+            "CLV-P-NABQE", "CLV-P-NABRE", "CLV-P-NABVE", "CLV-P-NABXE", "CLV-P-NACBE", "CLV-P-NACDE",
+            "CLV-P-NACHE", "PRODUCTION-TESTS");
+
+    private static final List<String> HVC_GAMES = ImmutableList.of(
+            "CLV-P-HAAAJ", "CLV-P-HAACJ", "CLV-P-HAADJ", "CLV-P-HAAEJ", "CLV-P-HAAHJ",
+            "CLV-P-HAAMJ", "CLV-P-HAANJ", "CLV-P-HAAPJ", "CLV-P-HAAQJ", "CLV-P-HAARJ", "CLV-P-HAASJ",
+            "CLV-P-HAAUJ", "CLV-P-HAAWJ", "CLV-P-HAAXJ", "CLV-P-HABBJ", "CLV-P-HABCJ", "CLV-P-HABLJ",
+            "CLV-P-HABMJ", "CLV-P-HABNJ", "CLV-P-HABQJ", "CLV-P-HABRJ", "CLV-P-HABVJ", "CLV-P-HACAJ",
+            "CLV-P-HACBJ", "CLV-P-HACCJ", "CLV-P-HACEJ", "CLV-P-HACHJ", "CLV-P-HACJJ", "CLV-P-HACLJ",
+            "CLV-P-HACPJ", "PRODUCTION-TESTS");
+
+    public static final FirmwareProfile NES_102 = new FirmwareProfile("nes-1.0.2", "USA/EUR v1.0.2",
+            "dp-nes-release-v1.0.2-0-g99e37e1.tar.gz", NES_GAMES,
+            0x209C5, 0x5D00D, 0x5D048, 0x12C0B5, 0x12C0FC);
+
+    public static final FirmwareProfile NES_103 = new FirmwareProfile("nes-1.0.3", "USA/EUR v1.0.3",
+            "dp-nes-release-v1.0.3-0-gc4c703b.tar.gz", NES_GAMES,
+            0x209C5, 0x5D00D, 0x5D048, 0x12C0B5, 0x12C0FC);
+
+    public static final FirmwareProfile HVC_105 = new FirmwareProfile("hvc-1.0.5", "JPN v1.0.5",
+            "dp-hvc-release-v1.0.5-0-g2f04d11.tar.gz", HVC_GAMES,
+            0x209C5, 0x602BD, 0x602F8, 0x12C0B5, 0x12C0FC);
+
+    /**
+     * Every supported release, in order of preference.
+     */
+    public static final List<FirmwareProfile> ALL = ImmutableList.of(NES_102, NES_103, HVC_105);
+
+    /**
+     * The ids of synthetic profiles, e.g. "synthetic-nes-1.0.2-2000" for a release with 2000 games.
+     * Their dumps are named after the id.
+     */
+    private static final Pattern SYNTHETIC_ID = Pattern.compile("^synthetic-(.+)-(\\d+)$");
+
+    /**
+     * The most games a synthetic profile can add to its release: one per four-letter code.
+     */
+    private static final int MAX_SYNTHETIC_GAMES = 26 * 26 * 26 * 26;
+
+    private final String id;
+    private final String description;
+    private final String dumpFileName;
+    private final List<String> gameCodes;
+    private final long cloverMcpOffset;
+    private final long kachikachiOffset1;
+    private final long kachikachiOffset2;
+    private final long reedPlayerOffset1;
+    private final long reedPlayerOffset2;
+
+    private FirmwareProfile(final String id, final String description, final String dumpFileName,
+                            final List<String> gameCodes, final long cloverMcpOffset,
+                            final long kachikachiOffset1, final long kachikachiOffset2,
+                            final long reedPlayerOffset1, final long reedPlayerOffset2) {
+        this.id = id;
+        this.description = description;
+        this.dumpFileName = dumpFileName;
+        this.gameCodes = gameCodes;
+        this.cloverMcpOffset = cloverMcpOffset;
+        this.kachikachiOffset1 = kachikachiOffset1;
+        this.kachikachiOffset2 = kachikachiOffset2;
+        this.reedPlayerOffset1 = reedPlayerOffset1;
+        this.reedPlayerOffset2 = reedPlayerOffset2;
+    }
+
+    /**
+     * @param id The id of a profile, e.g. "nes-1.0.2"
+     * @return The profile, or null if there's no such profile
+     */
+    public static FirmwareProfile byId(final String id) {
+        for (FirmwareProfile profile : ALL) {
+            if (profile.id.equals(id)) {
+                return profile;
+            }
+        }
+
+        final Matcher matcher = SYNTHETIC_ID.matcher(id);
+
+        if (matcher.matches()) {
+            final FirmwareProfile base = byId(matcher.group(1));
+
+            try {
+                return (base != null) ? synthetic(base, Integer.parseInt(matcher.group(2))) : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param fileName The name of a dump file
+     * @return The profile of the release officially distributed under that name, or null
+     */
+    public static FirmwareProfile byDumpFileName(final String fileName) {
+        for (FirmwareProfile profile : ALL) {
+            if (profile.dumpFileName.equals(fileName)) {
+                return profile;
+            }
+        }
+
+        if (fileName.startsWith("synthetic-") && fileName.endsWith(".tar.gz")) {
+            return byId(fileName.substring(0, fileName.length() - ".tar.gz".length()));
+        }
+
+        return null;
+    }
+
+    /**
+     * A made-up release for load testing, with the patch sites of a real one but any number of
+     * games. The real release's games come first, and the rest get codes of their own starting
+     * "CLV-P-Z", so a synthetic dump patches and copies just like a real one, only at scale.
+     * @param base The release to take the patch sites and first games from
+     * @param gameCount How many games the release has in all
+     * @return The profile
+     * @throws IllegalArgumentException If the game count is out of range
+     */
+    public static FirmwareProfile synthetic(final FirmwareProfile base, final int gameCount) {
+        final int baseCount = base.gameCodes.size();
+
+        if (gameCount < 1 || gameCount - baseCount > MAX_SYNTHETIC_GAMES) {
+            throw new IllegalArgumentException(String.format("A synthetic release can have between 1 and %d games",
+                    baseCount + MAX_SYNTHETIC_GAMES));
+        }
+
+        final ImmutableList.Builder<String> games = ImmutableList.builder();
+        games.addAll(base.gameCodes.subList(0, Math.min(gameCount, baseCount)));
+
+        for (int i = 0; i < gameCount - baseCount; i++) {
+            final char[] letters = new char[4];
+
+            for (int j = letters.length - 1, rest = i; j >= 0; j--, rest /= 26) {
+                letters[j] = (char) ('A' + rest % 26);
+            }
+
+            games.add("CLV-P-Z" + new String(letters));
+        }
+
+        final String id = String.format("synthetic-%s-%d", base.id, gameCount);
+        return new FirmwareProfile(id, String.format("synthetic %s, %d games", base.description, gameCount),
+                id + ".tar.gz", games.build(), base.cloverMcpOffset, base.kachikachiOffset1,
+                base.kachikachiOffset2, base.reedPlayerOffset1, base.reedPlayerOffset2);
+    }
+
+    /**
+     * @param gameCode The code of a game found in a dump
+     * @return The newest profile that ships with that game, or null
+     */
+    public static FirmwareProfile byGameCode(final String gameCode) {
+        FirmwareProfile found = null;
+
+        for (FirmwareProfile profile : ALL) {
+            if (!gameCode.equals("PRODUCTION-TESTS") && profile.gameCodes.contains(gameCode)) {
+                found = profile;
+            }
+        }
+
+        return found;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return The name this release's dump is usually distributed under
+     */
+    public String getDumpFileName() {
+        return dumpFileName;
+    }
+
+    /**
+     * @return The codes of the games in the dump, e.g. "CLV-P-NAAAE"
+     */
+    public List<String> getGameCodes() {
+        return gameCodes;
+    }
+
+    public long getCloverMcpOffset() {
+        return cloverMcpOffset;
+    }
+
+    public long getKachikachiOffset1() {
+        return kachikachiOffset1;
+    }
+
+    public long getKachikachiOffset2() {
+        return kachikachiOffset2;
+    }
+
+    public long getReedPlayerOffset1() {
+        return reedPlayerOffset1;
+    }
+
+    public long getReedPlayerOffset2() {
+        return reedPlayerOffset2;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", description, id);
+    }
+}
@@ -0,0 +1,298 @@
+package com.teamzebra.snesclassic.firmware;
+
+import com.google.common.collect.ImmutableMap;
+import com.teamzebra.snesclassic.report.IoCounters;
+import com.teamzebra.snesclassic.tarfiles.ParallelGzipOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Writes made-up NESC dumps with the layout of a real one, so the tool can be run and measured
+ * without one. Every file the HMOD takes from a dump is there: the clover scripts, the binaries with
+ * the patched strings at the release's known offsets, liblzo, the shared directories, and a folder
+ * per game with its desktop file, ROM and artwork. Everything else is random bytes from a fixed
+ * seed, so the same parameters always give the same dump.
+ *
+ * The gzip header records the profile's id as the original file name, as gzip would for
+ * "synthetic-nes-1.0.2-2000.tar", so the dump is still recognized as synthetic after it's renamed.
+ *
+ * The number of games comes from the profile (see {@link FirmwareProfile#synthetic}); on top of
+ * them, filler entries can be added, half of them to a directory the HMOD copies and half to one
+ * it skips, and every file size can be scaled up. Files are streamed into the tarball a buffer at a
+ * time, with the patched strings written as their offsets go by, so however large they are scaled
+ * they're never held in memory.
+ */
+public class SyntheticDumpWriter {
+
+    private static final long SEED = 0x4E455343L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The smallest binaries that hold every known patch site, which sit near their ends.
+     */
+    private static final int CLOVER_MCP_SIZE = 0x30000;
+    private static final int KACHIKACHI_SIZE = 0x70000;
+    private static final int REED_PLAYER_SIZE = 0x130000;
+
+    private static final int LIBLZO_SIZE = 100 * 1024;
+    private static final int ROM_SIZE = 40 * 1024;
+    private static final int ICON_SIZE = 16 * 1024;
+    private static final int SMALL_ICON_SIZE = 4 * 1024;
+    private static final int FILLER_SIZE = 2 * 1024;
+
+    /**
+     * The largest scale at which every file still fits in a tar entry, ReedPlayer-Clover being the
+     * largest of them.
+     */
+    public static final int MAX_SCALE = (int) (TarConstants.MAXSIZE / REED_PLAYER_SIZE);
+
+    private final FirmwareProfile profile;
+    private final int fillerEntries;
+    private final int scale;
+    private final Random random = new Random(SEED);
+    private final Set<String> directories = new HashSet<>();
+    private TarArchiveOutputStream tar;
+    private int entries;
+    private long bytes;
+
+    /**
+     * @param profile The release to model the dump on, whose games it holds
+     * @param fillerEntries How many extra files to add, beyond what a real dump holds
+     * @param scale What to multiply the size of every file by, other than the text files
+     * @throws IllegalArgumentException If the scale is more than {@link #MAX_SCALE}
+     */
+    public SyntheticDumpWriter(final FirmwareProfile profile, final int fillerEntries, final int scale) {
+        if (scale > MAX_SCALE) {
+            throw new IllegalArgumentException(String.format("A scale of %d would make ReedPlayer-Clover %d bytes, "
+                    + "more than a tar entry can hold; the most is %d", scale, (long) REED_PLAYER_SIZE * scale,
+                    MAX_SCALE));
+        }
+
+        this.profile = profile;
+        this.fillerEntries = fillerEntries;
+        this.scale = Math.max(1, scale);
+    }
+
+    /**
+     * Write the dump.
+     * @param dump The .tar.gz file to create, which is overwritten if it exists
+     * @param threads How many cores to compress on
+     * @throws IOException
+     */
+    public void write(final File dump, final int threads) throws IOException {
+        final File parent = dump.getAbsoluteFile().getParentFile();
+
+        if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException(String.format("Couldn't create directory %s", parent));
+        }
+
+        directories.clear();
+        entries = 0;
+        bytes = 0;
+
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new ParallelGzipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(dump), BUFFER_SIZE), threads,
+                Deflater.DEFAULT_COMPRESSION, profile.getId() + ".tar"))) {
+            tar = out;
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            writeBinaries();
+            writeScripts();
+            writeSharedFiles();
+            writeGames();
+            writeFiller();
+
+            tar.finish();
+        } finally {
+            tar = null;
+        }
+    }
+
+    /**
+     * @return How many files the last dump written holds
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The total size of the files in the last dump written, before compression
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    private void writeBinaries() throws IOException {
+        // the known offsets are of the patch sites, which start one byte into the paths
+        writeRandom("usr/bin/clover-mcp", scaled(CLOVER_MCP_SIZE), 0755,
+                ImmutableMap.of(profile.getCloverMcpOffset() - 1, "/usr/share/clover-mcp"));
+        writeRandom("usr/bin/kachikachi", scaled(KACHIKACHI_SIZE), 0755,
+                ImmutableMap.of(profile.getKachikachiOffset1() - 1, "/usr/share/kachikachi",
+                        profile.getKachikachiOffset2() - 1, "/usr/share/kachikachi/shaders"));
+        writeRandom("usr/bin/ReedPlayer-Clover", scaled(REED_PLAYER_SIZE), 0755,
+                ImmutableMap.of(profile.getReedPlayerOffset1() - 1, "/usr/share/reed-libs",
+                        profile.getReedPlayerOffset2(), "home-menu"));
+
+        writeRandom("usr/bin/unrelated", scaled(FILLER_SIZE), 0755);
+        writeRandom("usr/lib/liblzo2.so.2.0.0", scaled(LIBLZO_SIZE), 0755);
+    }
+
+    private void writeScripts() throws IOException {
+        writeText("usr/bin/clover-factory-reset", "#!/bin/sh\nexec /usr/bin/clover-mcp --factory-reset\n", 0755);
+        writeText("usr/bin/clover-kachikachi", "#!/bin/sh\nexec /usr/bin/kachikachi \"$@\"\n", 0755);
+        writeText("usr/bin/clover-menu-reset", "#!/bin/sh\nrm -rf /var/lib/clover/profiles/0/home-menu\n", 0755);
+        writeText("usr/bin/clover-production-test-menu", "#!/bin/sh\nexec /usr/bin/clover-mcp --test\n", 0755);
+        writeText("usr/bin/clover-ui", "#!/bin/sh\nexec ReedPlayer-Clover /usr/share/clover-ui/main.lua\n", 0755);
+
+        for (String name : new String[] {"clover-debug-menu", "clover-factory-reset", "clover-menu-reset",
+                "clover-ui"}) {
+            writeText(String.format("usr/share/applications/%s.desktop", name),
+                    String.format("[Desktop Entry]\nExec=/usr/bin/%s\n", name), 0644);
+        }
+
+        writeText("usr/share/applications/clover-test-menu.desktop",
+                "[Desktop Entry]\nExec=/usr/bin/clover-production-test-menu\n", 0644);
+        writeText("usr/share/applications/clover-mcp.desktop", "[Desktop Entry]\nExec=/usr/bin/clover-mcp "
+                + "/usr/share/games/nes/kachikachi /usr/share/applications /usr/share/clover-mcp/sounds\n", 0644);
+    }
+
+    private void writeSharedFiles() throws IOException {
+        writeRandom("usr/share/clover-mcp/sounds/select.wav", scaled(FILLER_SIZE), 0644);
+        writeText("usr/share/clover-ui/main.lua", "dofile('/usr/share/reed-libs/init.lua')\n", 0644);
+        writeText("usr/share/kachikachi/shaders/crt.glsl", "void main() {}\n", 0644);
+        writeText("usr/share/legal/LICENSE", "Synthetic dump for testing, no rights reserved.\n", 0644);
+        writeText("usr/share/reed-libs/init.lua", "reed = {}\n", 0644);
+
+        for (int i = 0; i < 50; i++) {
+            writeRandom(String.format("usr/share/locale/l%02d/LC_MESSAGES/clover.mo", i), FILLER_SIZE, 0644);
+        }
+    }
+
+    private void writeGames() throws IOException {
+        for (String game : profile.getGameCodes()) {
+            final String folder = String.format("usr/share/games/nes/kachikachi/%s", game);
+            writeText(String.format("%s/%s.desktop", folder, game), String.format("[Desktop Entry]\n"
+                    + "Exec=/usr/bin/clover-kachikachi /usr/share/games/nes/kachikachi/%1$s/%1$s.nes\n"
+                    + "Icon=/usr/share/games/nes/kachikachi/%1$s/%1$s.png\n"
+                    + "Name=%1$s\n", game), 0644);
+            writeRandom(String.format("%s/%s.nes", folder, game), scaled(ROM_SIZE), 0644);
+            writeRandom(String.format("%s/%s.png", folder, game), scaled(ICON_SIZE), 0644);
+            writeRandom(String.format("%s/%s_small.png", folder, game), scaled(SMALL_ICON_SIZE), 0644);
+        }
+    }
+
+    private void writeFiller() throws IOException {
+        for (int i = 0; i < fillerEntries; i++) {
+            // alternate between a directory the HMOD copies and one it never reads
+            final String path = (i % 2 == 0)
+                    ? String.format("usr/share/locale/filler%03d/LC_MESSAGES/filler%d.mo", i / 2 % 1000, i)
+                    : String.format("usr/share/filler/f%03d/filler%d.bin", i / 2 % 1000, i);
+            writeRandom(path, scaled(FILLER_SIZE), 0644);
+        }
+    }
+
+    private long scaled(final int size) {
+        return (long) size * scale;
+    }
+
+    private void writeRandom(final String path, final long size, final int mode) throws IOException {
+        writeRandom(path, size, mode, ImmutableMap.of());
+    }
+
+    /**
+     * Write a file of random bytes, with text written over them at the given offsets.
+     * @param path The path of the file within the dump
+     * @param size How large the file is
+     * @param mode The file's permissions
+     * @param texts The text to write at each offset, each of which must fit within the file
+     * @throws IOException
+     */
+    private void writeRandom(final String path, final long size, final int mode, final Map<Long, String> texts)
+            throws IOException {
+        putFileEntry(path, size, mode);
+
+        // every buffer but the last holds a whole number of ints, so the bytes are the same as from
+        // a single nextBytes() call for the whole file
+        final byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, size)];
+
+        for (long position = 0; position < size; position += buffer.length) {
+            final int length = (int) Math.min(buffer.length, size - position);
+            final byte[] chunk = (length == buffer.length) ? buffer : new byte[length];
+            random.nextBytes(chunk);
+
+            for (Map.Entry<Long, String> text : texts.entrySet()) {
+                place(chunk, position, text.getKey(), text.getValue().getBytes(StandardCharsets.US_ASCII));
+            }
+
+            tar.write(chunk, 0, length);
+        }
+
+        closeFileEntry(size);
+    }
+
+    /**
+     * Copy whatever part of the bytes at the given offset of a file falls within a chunk of it.
+     */
+    private static void place(final byte[] chunk, final long position, final long offset, final byte[] bytes) {
+        final long start = Math.max(offset, position);
+        final long end = Math.min(offset + bytes.length, position + chunk.length);
+
+        if (start < end) {
+            System.arraycopy(bytes, (int) (start - offset), chunk, (int) (start - position), (int) (end - start));
+        }
+    }
+
+    private void writeText(final String path, final String text, final int mode) throws IOException {
+        final byte[] content = text.getBytes(StandardCharsets.US_ASCII);
+        putFileEntry(path, content.length, mode);
+        tar.write(content);
+        closeFileEntry(content.length);
+    }
+
+    private void putFileEntry(final String path, final long size, final int mode) throws IOException {
+        writeParents(path);
+
+        final TarArchiveEntry entry = new TarArchiveEntry("./" + path);
+        entry.setSize(size);
+        entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | mode);
+        tar.putArchiveEntry(entry);
+    }
+
+    private void closeFileEntry(final long size) throws IOException {
+        tar.closeArchiveEntry();
+
+        entries++;
+        bytes += size;
+        IoCounters.wroteFile(size);
+    }
+
+    /**
+     * Add an entry for each directory above the given path that hasn't had one yet, as tar does.
+     */
+    private void writeParents(final String path) throws IOException {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            final String directory = path.substring(0, slash + 1);
+
+            if (directories.add(directory)) {
+                final TarArchiveEntry entry = new TarArchiveEntry("./" + directory);
+                entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+                tar.putArchiveEntry(entry);
+                tar.closeArchiveEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.teamzebra.snesclassic.report.IoCounters;
+import com.teamzebra.snesclassic.tarfiles.ParallelGzipOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes the HMOD out as a .hmod archive (a gzipped tarball), compressing on several cores. The
+ * archive is written to a temporary file next to it, which only replaces the archive once
+ * {@link #commit()} is called, and is deleted if the sink is closed without that.
+ */
+public class ArchiveHmodSink implements HmodSink {
+
+    /**
+     * Size of the buffers used to stream file content into the archive.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File archive;
+    private final File temp;
+    private final TarArchiveOutputStream tar;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private boolean committed;
+
+    /**
+     * @param archive The .hmod file to create, or replace once committed
+     * @param threads How many cores to compress on
+     * @throws IOException
+     */
+    public ArchiveHmodSink(final File archive, final int threads) throws IOException {
+        final File parent = archive.getAbsoluteFile().getParentFile();
+
+        if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException(String.format("Couldn't create directory %s", parent));
+        }
+
+        this.archive = archive;
+        this.temp = new File(archive.getPath() + ".tmp");
+        this.tar = new TarArchiveOutputStream(new ParallelGzipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE), threads));
+        this.tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+    }
+
+    @Override
+    public void writeDirectory(final String path) throws IOException {
+        tar.putArchiveEntry(new TarArchiveEntry(path.endsWith("/") ? path : path + "/"));
+        tar.closeArchiveEntry();
+    }
+
+    @Override
+    public void writeFile(final String path, final byte[] content, final int mode) throws IOException {
+        final TarArchiveEntry entry = newFileEntry(path, content.length, mode);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+        IoCounters.wroteFile(content.length);
+    }
+
+    @Override
+    public void writeFile(final String path, final ByteBuffer content, final int mode) throws IOException {
+        final TarArchiveEntry entry = newFileEntry(path, content.remaining(), mode);
+        final ByteBuffer remaining = content.duplicate();
+        tar.putArchiveEntry(entry);
+
+        while (remaining.hasRemaining()) {
+            final int chunk = Math.min(buffer.length, remaining.remaining());
+            remaining.get(buffer, 0, chunk);
+            tar.write(buffer, 0, chunk);
+        }
+
+        tar.closeArchiveEntry();
+        IoCounters.wroteFile(content.remaining());
+    }
+
+    @Override
+    public void writeFile(final String path, final InputStream content, final long size, final int mode)
+            throws IOException {
+        final TarArchiveEntry entry = newFileEntry(path, size, mode);
+        tar.putArchiveEntry(entry);
+        long remaining = size;
+
+        while (remaining > 0) {
+            final int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+            if (read == -1) {
+                throw new IOException(String.format("%s ended %d bytes early", path, remaining));
+            }
+
+            tar.write(buffer, 0, read);
+            remaining -= read;
+        }
+
+        tar.closeArchiveEntry();
+        IoCounters.wroteFile(size);
+    }
+
+    @Override
+    public String describe(final String path) {
+        return String.format("%s:%s", archive.getPath(), path);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        tar.finish();
+        tar.close();
+        Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+
+        try {
+            tar.close();
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static TarArchiveEntry newFileEntry(final String path, final long size, final int mode) {
+        final TarArchiveEntry entry = new TarArchiveEntry(path);
+        entry.setSize(size);
+        entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | (mode & 0777));
+        return entry;
+    }
+}
@@ -0,0 +1,291 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.teamzebra.snesclassic.files.BufferPool;
+import com.teamzebra.snesclassic.report.BuildLog;
+import com.teamzebra.snesclassic.tarfiles.GzipSeekIndex;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+import com.teamzebra.snesclassic.tarfiles.TarGzEntryVisitor;
+import org.apache.tools.tar.TarEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Builds the HMOD straight from the NESC dump archive in a single pass. Each entry is matched
+ * against the HMOD layout, patched in memory if needed, and written once to its final location,
+ * so nothing goes through an intermediate dump folder.
+ */
+public class DirectHmodWriter implements TarGzEntryVisitor {
+
+    /**
+     * Size of the buffer used to read entries that need to be held in memory.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How many entry-sized buffers to keep: one for an entry as read, and one for a patched copy.
+     */
+    private static final int POOLED_BUFFERS = 2;
+
+    private final HmodSink sink;
+    private final HmodLayout layout;
+    private final HmodPatches patches;
+    private final Set<String> written = new HashSet<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final BufferPool pool = new BufferPool(POOLED_BUFFERS);
+    private Predicate<String> targetFilter = path -> true;
+    private OutputListener listener;
+
+    public DirectHmodWriter(final HmodSink sink, final HmodLayout layout, final HmodPatches patches) {
+        this.sink = sink;
+        this.layout = layout;
+        this.patches = patches;
+    }
+
+    /**
+     * Only write some of the HMOD's files; dump entries that aren't needed by any of them are
+     * skipped without being read.
+     * @param targetFilter Decides, from its path within the HMOD, whether a file gets written
+     */
+    public void setTargetFilter(final Predicate<String> targetFilter) {
+        this.targetFilter = targetFilter;
+    }
+
+    /**
+     * Have the writer hash every file it writes, and report it.
+     * @param listener The listener to report written files to
+     */
+    public void setListener(final OutputListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Build the HMOD from the given dump archive.
+     * @param archive The NESC dump .tar.gz archive
+     * @throws IOException If the archive can't be read, or a patched file is missing from it
+     */
+    public void write(final File archive) throws IOException {
+        TarGzArchive.visitEntries(archive, this);
+        checkComplete();
+    }
+
+    /**
+     * Build the HMOD from the given dump archive, indexing the archive along the way.
+     * @param archive The NESC dump .tar.gz archive
+     * @param archiveKey Identifies this version of the archive, for the index
+     * @return The index of the archive
+     * @throws IOException If the archive can't be read, or a patched file is missing from it
+     */
+    public GzipSeekIndex writeAndIndex(final File archive, final String archiveKey) throws IOException {
+        final GzipSeekIndex index = GzipSeekIndex.build(archive, archiveKey, this);
+        checkComplete();
+        return index;
+    }
+
+    /**
+     * Build the HMOD from the given dump archive, reading only the entries that are needed through
+     * its index, rather than decompressing the whole archive.
+     * @param archive The NESC dump .tar.gz archive
+     * @param index The index of the archive
+     * @return How many entries were read
+     * @throws IOException If the archive can't be read, or a patched file is missing from it
+     */
+    public int write(final File archive, final GzipSeekIndex index) throws IOException {
+        final int read = index.visitEntries(archive, this::isNeeded, this);
+        checkComplete();
+        return read;
+    }
+
+    /**
+     * @param source The normalized name of a dump entry
+     * @return Whether any file this writer will write comes from the entry
+     */
+    private boolean isNeeded(final String source) {
+        for (String target : layout.resolveTargets(source)) {
+            if (targetFilter.test(target)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check that every file the layout and patches need was found in the dump.
+     * @throws IOException If any are missing
+     */
+    private void checkComplete() throws IOException {
+        final Set<String> missing = new LinkedHashSet<>();
+
+        for (DumpMapping mapping : layout.getMappings()) {
+            if (!mapping.isDirectory()) {
+                checkWritten(mapping.getTarget(), missing);
+            }
+        }
+
+        for (String path : patches.getTextPatches().keySet()) {
+            checkWritten(path, missing);
+        }
+
+        for (String path : patches.getBinaryPatches().keySet()) {
+            checkWritten(path, missing);
+        }
+
+        if (!missing.isEmpty()) {
+            throw new IOException(String.format(
+                    "The NESC dump is missing files needed by the HMOD: %s", missing));
+        }
+    }
+
+    @Override
+    public void visitEntry(final TarEntry entry, final InputStream content) throws IOException {
+        final String source = TarGzArchive.normalizeEntryName(entry.getName());
+        final List<String> targets = new ArrayList<>();
+
+        for (String target : layout.resolveTargets(source)) {
+            if (targetFilter.test(target)) {
+                targets.add(target);
+            }
+        }
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        if (entry.isDirectory()) {
+            for (String target : targets) {
+                sink.writeDirectory(target);
+            }
+            return;
+        }
+
+        final int mode = entry.getMode();
+        boolean buffered = targets.size() > 1;
+
+        for (String target : targets) {
+            buffered |= patches.isPatched(target);
+        }
+
+        if (!buffered) {
+            final String target = targets.get(0);
+            BuildLog.detail("Writing %s", sink.describe(target));
+
+            if (listener == null) {
+                sink.writeFile(target, content, entry.getSize(), mode);
+            } else {
+                final HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), content);
+                sink.writeFile(target, hashing, entry.getSize(), mode);
+                final String hash = hashing.hash().toString();
+                listener.fileWritten(target, source, hash, hash);
+            }
+
+            written.add(target);
+            return;
+        }
+
+        final ByteBuffer original = readFully(source, content, entry.getSize());
+
+        try {
+            final String sourceHash = (listener == null) ? null
+                    : Hashing.sha256().hashBytes(original.duplicate()).toString();
+
+            for (String target : targets) {
+                BuildLog.detail("Writing %s", sink.describe(target));
+
+                if (patches.isPatched(target)) {
+                    writePatched(target, source, sourceHash, original, mode);
+                } else {
+                    sink.writeFile(target, original, mode);
+
+                    if (listener != null) {
+                        listener.fileWritten(target, source, sourceHash, sourceHash);
+                    }
+                }
+
+                written.add(target);
+            }
+        } finally {
+            pool.release(original);
+        }
+    }
+
+    /**
+     * Patch a copy of an entry held in memory, and write it.
+     */
+    private void writePatched(final String target, final String source, final String sourceHash,
+                              final ByteBuffer original, final int mode) throws IOException {
+        final ByteBuffer copy = pool.acquire(original.remaining());
+        copy.put(original.duplicate());
+        copy.flip();
+
+        final ByteBuffer output = patches.apply(target, copy, pool);
+
+        try {
+            sink.writeFile(target, output, mode);
+
+            if (listener != null) {
+                listener.fileWritten(target, source, sourceHash,
+                        Hashing.sha256().hashBytes(output.duplicate()).toString());
+            }
+        } finally {
+            pool.release(output);
+        }
+    }
+
+    private void checkWritten(final String path, final Set<String> missing) {
+        if (targetFilter.test(path) && !written.contains(path)) {
+            missing.add(path);
+        }
+    }
+
+    /**
+     * Read a whole entry into a buffer from the pool, through the reusable array buffer.
+     * @return The entry's content, flipped for reading
+     */
+    private ByteBuffer readFully(final String source, final InputStream content, final long size)
+            throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(String.format("%s is too large to patch", source));
+        }
+
+        final ByteBuffer target = pool.acquire((int) size);
+        int read;
+
+        while ((read = content.read(buffer, 0, Math.min(buffer.length, target.remaining()))) > 0) {
+            target.put(buffer, 0, read);
+        }
+
+        if (target.hasRemaining()) {
+            pool.release(target);
+            throw new IOException(String.format("%s ended %d bytes early", source, target.remaining()));
+        }
+
+        target.flip();
+        return target;
+    }
+
+    /**
+     * Told about every file the writer puts in the HMOD.
+     */
+    public interface OutputListener {
+
+        /**
+         * @param target The path of the file within the HMOD
+         * @param source The name of the dump entry it was made from
+         * @param sourceHash The SHA-256 of the dump entry
+         * @param outputHash The SHA-256 of the file as written, after patching
+         * @throws IOException
+         */
+        void fileWritten(String target, String source, String sourceHash, String outputHash) throws IOException;
+    }
+}
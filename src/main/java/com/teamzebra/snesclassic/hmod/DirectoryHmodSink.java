@@ -0,0 +1,138 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.teamzebra.snesclassic.files.FileCopier;
+import com.teamzebra.snesclassic.report.IoCounters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the HMOD out as an unpacked folder. Of each file's mode, only whether it is executable is
+ * kept, since that's all a plain {@link File} can set portably.
+ */
+public class DirectoryHmodSink implements HmodSink {
+
+    /**
+     * Size of the buffer used to stream file content to disk.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File hmodDirectory;
+    private final FileCopier copier;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public DirectoryHmodSink(final File hmodDirectory) {
+        this(hmodDirectory, null);
+    }
+
+    /**
+     * @param hmodDirectory The HMOD folder to write to
+     * @param copier Copies files from disk, so that they can be copied by the kernel or linked to
+     *               earlier copies; null to stream them like any other content
+     */
+    public DirectoryHmodSink(final File hmodDirectory, final FileCopier copier) {
+        this.hmodDirectory = hmodDirectory;
+        this.copier = copier;
+    }
+
+    @Override
+    public void writeDirectory(final String path) throws IOException {
+        mkdirs(new File(hmodDirectory, path));
+    }
+
+    @Override
+    public void writeFile(final String path, final byte[] content, final int mode) throws IOException {
+        final File file = new File(hmodDirectory, path);
+        mkdirs(file.getParentFile());
+        Files.write(file.toPath(), content);
+        IoCounters.wroteFile(content.length);
+        applyMode(file, mode);
+    }
+
+    @Override
+    public void writeFile(final String path, final ByteBuffer content, final int mode) throws IOException {
+        final File file = new File(hmodDirectory, path);
+        mkdirs(file.getParentFile());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer remaining = content.duplicate();
+
+            while (remaining.hasRemaining()) {
+                channel.write(remaining);
+            }
+        }
+
+        IoCounters.wroteFile(content.remaining());
+        applyMode(file, mode);
+    }
+
+    @Override
+    public void writeFile(final String path, final InputStream content, final long size, final int mode)
+            throws IOException {
+        final File file = new File(hmodDirectory, path);
+        mkdirs(file.getParentFile());
+
+        long written = 0;
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            int read;
+
+            while ((read = content.read(buffer)) != -1) {
+                fos.write(buffer, 0, read);
+                written += read;
+            }
+        }
+
+        IoCounters.wroteFile(written);
+        applyMode(file, mode);
+    }
+
+    @Override
+    public void copyFile(final String path, final File source, final int mode) throws IOException {
+        if (copier == null) {
+            HmodSink.super.copyFile(path, source, mode);
+            return;
+        }
+
+        // only ever called for files that aren't patched, so they're safe to link
+        final File file = new File(hmodDirectory, path);
+        copier.copyOrLinkFile(source, file);
+        applyMode(file, mode);
+    }
+
+    /**
+     * Copies made by the copier are safe to make at once; streamed ones share this sink's buffer.
+     */
+    @Override
+    public boolean canCopyConcurrently() {
+        return copier != null;
+    }
+
+    @Override
+    public String describe(final String path) {
+        return String.format("%s/%s", hmodDirectory.getPath(), path);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static void applyMode(final File file, final int mode) throws IOException {
+        if (((mode & 0100) != 0) && !file.canExecute() && !file.setExecutable(true, false)) {
+            throw new IOException(String.format("Couldn't make %s executable", file));
+        }
+    }
+
+    private static void mkdirs(final File directory) throws IOException {
+        if ((directory != null) && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Couldn't create directory %s", directory));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.teamzebra.snesclassic.hmod;
+
+/**
+ * A single file or directory that gets copied from the NESC dump into the HMOD.
+ */
+public class DumpMapping {
+
+    private final String source;
+    private final String target;
+    private final boolean directory;
+
+    public DumpMapping(final String source, final String target, final boolean directory) {
+        this.source = source;
+        this.target = target;
+        this.directory = directory;
+    }
+
+    /**
+     * @return The path of the file/directory within the NESC dump
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return The path within the HMOD the file/directory is copied to
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return Whether this mapping copies a whole directory tree rather than a single file
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Whether the given dump path is covered by this mapping.
+     * @param path A normalized path within the NESC dump (no leading "./" or "/")
+     * @return True if the path is the mapped file, or the mapped directory or anything below it
+     */
+    public boolean covers(final String path) {
+        if (!directory) {
+            return path.equals(source);
+        }
+
+        return path.equals(source) || path.equals(source + "/") || path.startsWith(source + "/");
+    }
+
+    /**
+     * Work out where a dump path covered by this mapping ends up in the HMOD.
+     * @param path A normalized path within the NESC dump that this mapping covers
+     * @return The corresponding path within the HMOD
+     */
+    public String resolveTarget(final String path) {
+        if (!directory || path.equals(source)) {
+            return target;
+        }
+
+        return target + path.substring(source.length());
+    }
+}
@@ -0,0 +1,533 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.report.IoCounters;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An update from one build of the HMOD to a later one, worked out from their manifests and packaged
+ * as a .hmod of its own: files the earlier build doesn't have, or that changed in more than half
+ * their blocks, are shipped whole; other changed files ship only their changed blocks, which the
+ * package's install script writes over the installed files with dd; files that are gone are
+ * removed; and files that didn't change aren't shipped at all.
+ *
+ * The install script checks every file it patches against the size and SHA-256 the earlier build
+ * wrote it with before changing anything, so a console that has some other build installed is
+ * left alone rather than having blocks written over files they don't belong to.
+ */
+public class HmodDelta {
+
+    /**
+     * The HMOD's own scripts, which hakchi runs rather than installing.
+     */
+    private static final Set<String> HMOD_SCRIPTS = ImmutableSet.of("install", "uninstall");
+
+    /**
+     * Where within the package the files shipped whole go.
+     */
+    private static final String FILES_FOLDER = "files/";
+
+    /**
+     * Where within the package the changed blocks of each patched file go, one after another.
+     */
+    private static final String BLOCKS_FOLDER = "blocks/";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, HmodManifest.Entry> entries;
+    private final Set<String> added = new TreeSet<>();
+    private final Set<String> rewritten = new TreeSet<>();
+    private final Map<String, List<Run>> patched = new TreeMap<>();
+    private final Map<String, HmodManifest.Entry> patchedFrom = new TreeMap<>();
+    private final Set<String> removed = new TreeSet<>();
+    private int unchanged;
+
+    /**
+     * Work out the update between two builds.
+     * @param previous The manifest of the build to update from
+     * @param current The manifest of the build to update to
+     */
+    public HmodDelta(final HmodManifest previous, final HmodManifest current) {
+        final Map<String, HmodManifest.Entry> before = previous.getEntries();
+        this.entries = current.getEntries();
+
+        for (Map.Entry<String, HmodManifest.Entry> entry : entries.entrySet()) {
+            final String path = entry.getKey();
+            final HmodManifest.Entry now = entry.getValue();
+            final HmodManifest.Entry then = before.get(path);
+
+            if (HMOD_SCRIPTS.contains(path)) {
+                continue;
+            }
+
+            if (then == null) {
+                added.add(path);
+            } else if (then.getSize() == now.getSize() && then.getSha256().equals(now.getSha256())) {
+                unchanged++;
+            } else {
+                final List<Run> runs = findChangedRuns(then, now);
+
+                if (runs == null) {
+                    rewritten.add(path);
+                } else {
+                    patched.put(path, runs);
+                    patchedFrom.put(path, then);
+                }
+            }
+        }
+
+        for (String path : before.keySet()) {
+            if (!entries.containsKey(path) && !HMOD_SCRIPTS.contains(path)) {
+                removed.add(path);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the builds install the same files, so there's nothing to update
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && rewritten.isEmpty() && patched.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * @return How many files are the same in both builds
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return How many files only the later build has
+     */
+    public int getAdded() {
+        return added.size();
+    }
+
+    /**
+     * @return How many changed files are shipped whole
+     */
+    public int getRewritten() {
+        return rewritten.size();
+    }
+
+    /**
+     * @return How many changed files are shipped as their changed blocks
+     */
+    public int getPatched() {
+        return patched.size();
+    }
+
+    /**
+     * @return How many files only the earlier build has
+     */
+    public int getRemoved() {
+        return removed.size();
+    }
+
+    /**
+     * @return How many bytes of file content the package carries, whole files and blocks alike
+     */
+    public long getPayloadBytes() {
+        long bytes = 0;
+
+        for (String path : added) {
+            bytes += entries.get(path).getSize();
+        }
+
+        for (String path : rewritten) {
+            bytes += entries.get(path).getSize();
+        }
+
+        for (List<Run> runs : patched.values()) {
+            bytes += Run.totalBytes(runs);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Write the package, taking the files it ships from the later build.
+     * @param hmod The HMOD folder or .hmod archive of the later build
+     * @param output The .hmod file to write the package to
+     * @param threads How many cores to compress on
+     * @throws IOException If the later build can't be read, or doesn't match its manifest
+     */
+    public void write(final File hmod, final File output, final int threads) throws IOException {
+        final Set<String> needed = new TreeSet<>();
+        needed.addAll(added);
+        needed.addAll(rewritten);
+        needed.addAll(patched.keySet());
+
+        if (entries.containsKey("uninstall")) {
+            needed.add("uninstall");
+        }
+
+        try (HmodSink sink = new ArchiveHmodSink(output, threads)) {
+            if (hmod.isDirectory()) {
+                for (String path : needed) {
+                    final File file = new File(hmod, path);
+
+                    try (InputStream content = IoCounters.counting(new FileInputStream(file))) {
+                        writeFile(sink, path, content, file.length());
+                    }
+                }
+            } else {
+                final Set<String> found = new HashSet<>();
+
+                TarGzArchive.visitEntries(hmod, (entry, content) -> {
+                    final String path = TarGzArchive.normalizeEntryName(entry.getName());
+
+                    if (!entry.isDirectory() && needed.contains(path) && found.add(path)) {
+                        writeFile(sink, path, content, entry.getSize());
+                    }
+                });
+
+                for (String path : needed) {
+                    if (!found.contains(path)) {
+                        throw new IOException(String.format("%s is missing from %s", path, hmod.getPath()));
+                    }
+                }
+            }
+
+            sink.writeFile("install", getInstallScript().getBytes(StandardCharsets.UTF_8), 0644);
+            sink.commit();
+        }
+    }
+
+    /**
+     * Ship one file of the later build, whole or as its changed blocks, checking on the way that it
+     * is what the manifest says it is.
+     */
+    private void writeFile(final HmodSink sink, final String path, final InputStream content, final long size)
+            throws IOException {
+        final HmodManifest.Entry expected = entries.get(path);
+
+        if (size != expected.getSize()) {
+            throw new IOException(String.format("%s is %d bytes rather than the %d bytes in its manifest, "
+                    + "please build it again", path, size, expected.getSize()));
+        }
+
+        final MessageDigest digest = HmodManifest.newDigest();
+        final InputStream checked = new DigestingInputStream(content, digest);
+        final List<Run> runs = patched.get(path);
+
+        if (HMOD_SCRIPTS.contains(path)) {
+            sink.writeFile(path, checked, size, 0644);
+        } else if (runs == null) {
+            sink.writeFile(FILES_FOLDER + path, checked, size, path.startsWith("bin/") ? 0755 : 0644);
+        } else {
+            sink.writeFile(BLOCKS_FOLDER + path, new RunsInputStream(checked, runs, size), Run.totalBytes(runs),
+                    0644);
+        }
+
+        // the rest of a patched file is still read, so the whole file is checked
+        ByteStreams.exhaust(checked);
+
+        if (!HmodManifest.toHex(digest.digest()).equals(expected.getSha256())) {
+            throw new IOException(String.format("%s has changed since its manifest was written, "
+                    + "please build it again", path));
+        }
+    }
+
+    /**
+     * The install script, for a busybox shell run by hakchi's installer in the package's folder.
+     * The patched files are checked before anything is changed, so that an update that doesn't fit
+     * the installed files leaves them alone.
+     */
+    private String getInstallScript() {
+        final StringBuilder script = new StringBuilder();
+        script.append("# update the installed HMOD to a later build\n\n");
+
+        if (!patched.isEmpty()) {
+            script.append("delta_check() {\n");
+            script.append("  if [ ! -f \"$rootfs/$1\" ] || [ \"$(wc -c < \"$rootfs/$1\")\" -ne \"$2\" ] "
+                    + "|| [ \"$(sha256sum < \"$rootfs/$1\" | cut -d ' ' -f 1)\" != \"$3\" ]; then\n");
+            script.append("    echo \"$rootfs/$1 isn't from the build this update was made for, "
+                    + "please install the full HMOD\"\n");
+            script.append("    return 1\n");
+            script.append("  fi\n");
+            script.append("}\n\n");
+            script.append("# check the files to patch before patching any of them\n");
+
+            for (Map.Entry<String, HmodManifest.Entry> file : patchedFrom.entrySet()) {
+                script.append(String.format("delta_check %s %d %s || return 1\n", quote(file.getKey()),
+                        file.getValue().getSize(), file.getValue().getSha256()));
+            }
+
+            script.append("\n# write the blocks that changed over the installed files\n");
+
+            for (Map.Entry<String, List<Run>> file : patched.entrySet()) {
+                final String target = "\"$rootfs/\"" + quote(file.getKey());
+                final String blocks = quote(BLOCKS_FOLDER + file.getKey());
+                long skip = 0;
+
+                for (Run run : file.getValue()) {
+                    script.append(String.format("dd if=%s of=%s bs=%d skip=%d seek=%d count=%d conv=notrunc "
+                            + "2>/dev/null\n", blocks, target, HmodManifest.BLOCK_SIZE, skip, run.first, run.count));
+                    skip += run.count;
+                }
+
+                final long size = entries.get(file.getKey()).getSize();
+
+                if (size != patchedFrom.get(file.getKey()).getSize()) {
+                    script.append(String.format("dd if=/dev/null of=%s bs=1 seek=%d 2>/dev/null\n", target, size));
+                }
+            }
+        }
+
+        if (!added.isEmpty() || !rewritten.isEmpty()) {
+            script.append("\n# copy over the new and rewritten files\n");
+            final Set<String> whole = new TreeSet<>(added);
+            whole.addAll(rewritten);
+            final Set<String> directories = new TreeSet<>();
+
+            for (String path : whole) {
+                final int slash = path.lastIndexOf('/');
+
+                if (slash > 0) {
+                    directories.add(path.substring(0, slash));
+                }
+            }
+
+            for (String directory : directories) {
+                script.append(String.format("mkdir -p \"$rootfs/\"%s\n", quote(directory)));
+            }
+
+            for (String path : whole) {
+                script.append(String.format("cp %s \"$rootfs/\"%s\n", quote(FILES_FOLDER + path), quote(path)));
+            }
+        }
+
+        if (!removed.isEmpty()) {
+            script.append("\n# remove the files the later build doesn't have\n");
+
+            for (String path : removed) {
+                script.append(String.format("rm -f \"$rootfs/\"%s\n", quote(path)));
+            }
+
+            // deepest first, so a directory's subdirectories are gone before it is removed
+            for (String directory : getRemovedDirectories().descendingSet()) {
+                script.append(String.format("rmdir \"$rootfs/\"%s 2>/dev/null\n", quote(directory)));
+            }
+        }
+
+        script.append("\n# set up the file permissions\n");
+        script.append("chmod +x $rootfs/bin/*\n\n");
+        script.append("return 1\n");
+        return script.toString();
+    }
+
+    /**
+     * @return The directories of removed files that no file of the later build is in
+     */
+    private TreeSet<String> getRemovedDirectories() {
+        final Set<String> kept = new HashSet<>();
+
+        for (String path : entries.keySet()) {
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                kept.add(path.substring(0, slash));
+            }
+        }
+
+        final TreeSet<String> directories = new TreeSet<>();
+
+        for (String path : removed) {
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                if (!kept.contains(path.substring(0, slash))) {
+                    directories.add(path.substring(0, slash));
+                }
+            }
+        }
+
+        return directories;
+    }
+
+    /**
+     * Work out which blocks of a file changed.
+     * @return The runs of changed blocks, or null if the file is better shipped whole: when the
+     *         blocks of either version weren't hashed, or more than half the file changed
+     */
+    private static List<Run> findChangedRuns(final HmodManifest.Entry then, final HmodManifest.Entry now) {
+        final List<String> before = then.getBlocks();
+        final List<String> after = now.getBlocks();
+
+        if (before.isEmpty() || after.isEmpty()) {
+            return null;
+        }
+
+        final List<Run> runs = new ArrayList<>();
+        Run run = null;
+
+        for (int i = 0; i < after.size(); i++) {
+            if (i < before.size() && before.get(i).equals(after.get(i))) {
+                run = null;
+            } else if (run == null) {
+                run = new Run(i, 1, now.getSize());
+                runs.add(run);
+            } else {
+                run.count++;
+            }
+        }
+
+        return (Run.totalBytes(runs) * 2 > now.getSize()) ? null : runs;
+    }
+
+    private static String quote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * A run of consecutive changed blocks in a file.
+     */
+    private static final class Run {
+
+        private final long first;
+        private final long fileSize;
+        private long count;
+
+        private Run(final long first, final long count, final long fileSize) {
+            this.first = first;
+            this.count = count;
+            this.fileSize = fileSize;
+        }
+
+        private long start() {
+            return first * HmodManifest.BLOCK_SIZE;
+        }
+
+        /**
+         * @return Where the run ends, the last block of the file being short
+         */
+        private long end() {
+            return Math.min((first + count) * HmodManifest.BLOCK_SIZE, fileSize);
+        }
+
+        private static long totalBytes(final List<Run> runs) {
+            long bytes = 0;
+
+            for (Run run : runs) {
+                bytes += run.end() - run.start();
+            }
+
+            return bytes;
+        }
+    }
+
+    /**
+     * Hashes everything read through it.
+     */
+    private static final class DigestingInputStream extends FilterInputStream {
+
+        private final MessageDigest digest;
+        private final byte[] skipped = new byte[BUFFER_SIZE];
+
+        private DigestingInputStream(final InputStream in, final MessageDigest digest) {
+            super(in);
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b != -1) {
+                digest.update((byte) b);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+
+            if (read > 0) {
+                digest.update(buffer, offset, read);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // read rather than skipped, so that the skipped bytes are hashed too
+            final int read = read(skipped, 0, (int) Math.min(n, skipped.length));
+            return Math.max(read, 0);
+        }
+    }
+
+    /**
+     * Reads just the bytes of a file within the given runs, reading past the rest.
+     */
+    private static final class RunsInputStream extends InputStream {
+
+        private final InputStream in;
+        private final List<Run> runs;
+        private final long size;
+        private long position;
+        private int run;
+
+        private RunsInputStream(final InputStream in, final List<Run> runs, final long size) {
+            this.in = in;
+            this.runs = runs;
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (run >= runs.size() || position >= size) {
+                return -1;
+            }
+
+            final Run current = runs.get(run);
+
+            // DigestingInputStream reads what it skips, so this reads up to the run
+            while (position < current.start()) {
+                final long skipped = in.skip(current.start() - position);
+
+                if (skipped <= 0) {
+                    throw new IOException("The file ended before its changed blocks");
+                }
+
+                position += skipped;
+            }
+
+            final int read = in.read(buffer, offset, (int) Math.min(length, current.end() - position));
+
+            if (read == -1) {
+                throw new IOException("The file ended within its changed blocks");
+            }
+
+            position += read;
+
+            if (position >= current.end()) {
+                run++;
+            }
+
+            return read;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The table of files and directories that are taken from the NESC dump, and where each of
+ * them lives within the HMOD.
+ */
+public class HmodLayout {
+
+    /**
+     * The layout used for every supported NESC dump.
+     */
+    public static final HmodLayout NESC = new Builder()
+            // /bin/ files
+            .file("usr/bin/clover-factory-reset", "bin/clover-factory-reset-nes")
+            .file("usr/bin/clover-kachikachi", "bin/clover-kachikachi")
+            .file("usr/bin/clover-mcp", "bin/clover-mcp-nes")
+            .file("usr/bin/clover-menu-reset", "bin/clover-menu-reset-nes")
+            .file("usr/bin/clover-production-test-menu", "bin/clover-production-test-menu-nes")
+            .file("usr/bin/clover-ui", "bin/clover-ui-nes")
+            .file("usr/bin/kachikachi", "bin/kachikachi")
+            .file("usr/bin/ReedPlayer-Clover", "bin/ReedPlayer-Clover-nes")
+            // /usr/share/ files
+            .directory("usr/share/applications", "etc/share/applications")
+            .directory("usr/share/clover-mcp", "etc/share/clover-mcp")
+            .directory("usr/share/clover-ui", "etc/share/clover-ui")
+            .directory("usr/share/kachikachi", "etc/share/kachikachi")
+            .directory("usr/share/legal", "etc/share/legal")
+            .directory("usr/share/locale", "etc/share/locale")
+            .directory("usr/share/reed-libs", "etc/share/reed-libs")
+            // /lib files
+            .file("usr/lib/liblzo2.so.2.0.0", "lib/liblzo2.so")
+            .file("usr/lib/liblzo2.so.2.0.0", "lib/liblzo2.so.2")
+            .file("usr/lib/liblzo2.so.2.0.0", "lib/liblzo2.so.2.0.0")
+            // /usr/share/games/nes/kachikachi
+            .directory("usr/share/games/nes/kachikachi", "etc/nesgames")
+            .build();
+
+    private final List<DumpMapping> mappings;
+
+    private HmodLayout(final List<DumpMapping> mappings) {
+        this.mappings = ImmutableList.copyOf(mappings);
+    }
+
+    /**
+     * @return Every mapping in the layout, in copy order
+     */
+    public List<DumpMapping> getMappings() {
+        return mappings;
+    }
+
+    /**
+     * A digest of the whole table, which changes whenever any mapping does.
+     * @return The SHA-256 of a description of the mappings
+     */
+    public String getDigest() {
+        final StringBuilder description = new StringBuilder();
+
+        for (DumpMapping mapping : mappings) {
+            description.append(mapping.isDirectory() ? "directory\t" : "file\t")
+                    .append(mapping.getSource()).append('\t').append(mapping.getTarget()).append('\n');
+        }
+
+        return Hashing.sha256().hashString(description, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Whether anything at the given dump path is needed to build the HMOD.
+     * @param path A normalized path within the NESC dump (no leading "./" or "/")
+     * @return True if at least one mapping covers the path
+     */
+    public boolean includes(final String path) {
+        for (DumpMapping mapping : mappings) {
+            if (mapping.covers(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Every HMOD path the given dump path gets copied to.
+     * @param path A normalized path within the NESC dump (no leading "./" or "/")
+     * @return The target paths within the HMOD, empty if the path isn't needed
+     */
+    public List<String> resolveTargets(final String path) {
+        final List<String> targets = new ArrayList<>(1);
+
+        for (DumpMapping mapping : mappings) {
+            if (mapping.covers(path)) {
+                targets.add(mapping.resolveTarget(path));
+            }
+        }
+
+        return targets;
+    }
+
+    /**
+     * Builds up a layout one mapping at a time.
+     */
+    public static class Builder {
+
+        private final List<DumpMapping> mappings = new ArrayList<>();
+
+        public Builder file(final String source, final String target) {
+            mappings.add(new DumpMapping(source, target, false));
+            return this;
+        }
+
+        public Builder directory(final String source, final String target) {
+            mappings.add(new DumpMapping(source, target, true));
+            return this;
+        }
+
+        public HmodLayout build() {
+            return new HmodLayout(mappings);
+        }
+    }
+}
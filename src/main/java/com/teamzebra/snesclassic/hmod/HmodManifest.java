@@ -0,0 +1,421 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.collect.ImmutableList;
+import com.teamzebra.snesclassic.report.IoCounters;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The size and SHA-256 of every file in a built HMOD, written next to it by the build so that the
+ * HMOD can be checked later on: a truncated copy or a file changed after the build shows up as a
+ * mismatch. The firmware release the HMOD was built for is kept too, so that its binary patch sites
+ * can be checked as well.
+ *
+ * Files larger than a block also get a hash of each {@link #BLOCK_SIZE} block, so that a later
+ * build can tell which blocks of them changed, and ship just those in a delta package.
+ */
+public class HmodManifest {
+
+    /**
+     * The size of the blocks hashed within each file.
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final String HEADER = "# hmod manifest v2";
+
+    /**
+     * The header of the manifests written before block hashes were kept, which are still read.
+     */
+    private static final String HEADER_V1 = "# hmod manifest v1";
+
+    /**
+     * The suffix of the manifest's file name, added to the name of the HMOD folder or archive.
+     */
+    private static final String SUFFIX = ".manifest";
+
+    /**
+     * How much of a file is mapped at once when hashing it.
+     */
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * How many bytes of the SHA-256 of a block are kept, which is plenty to tell blocks apart.
+     */
+    private static final int BLOCK_HASH_BYTES = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String firmwareId;
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Start an empty manifest.
+     * @param firmwareId The id of the firmware release the HMOD is built for
+     */
+    public HmodManifest(final String firmwareId) {
+        this.firmwareId = firmwareId;
+    }
+
+    /**
+     * @param hmod The HMOD folder or .hmod archive
+     * @return Where its manifest goes
+     */
+    public static File forHmod(final File hmod) {
+        return new File(hmod.getPath() + SUFFIX);
+    }
+
+    /**
+     * Load a manifest written by an earlier build.
+     * @param file The manifest file
+     * @return The manifest, or null if there is no usable manifest file
+     * @throws IOException
+     */
+    public static HmodManifest load(final File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            final boolean withBlocks = HEADER.equals(header);
+
+            if (!withBlocks && !HEADER_V1.equals(header)) {
+                return null;
+            }
+
+            final String[] firmware = split(reader.readLine(), 2);
+
+            if (firmware == null || !"firmware".equals(firmware[0])) {
+                return null;
+            }
+
+            final HmodManifest manifest = new HmodManifest(firmware[1]);
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = split(line, withBlocks ? 5 : 4);
+
+                if (fields == null || !"file".equals(fields[0])) {
+                    return null;
+                }
+
+                final List<String> blocks = (!withBlocks || fields[4].isEmpty())
+                        ? ImmutableList.of() : Arrays.asList(fields[4].split(","));
+                manifest.entries.put(fields[1], new Entry(Long.parseLong(fields[2]), fields[3], blocks));
+            }
+
+            return manifest;
+        }
+    }
+
+    /**
+     * Write the manifest out, replacing the file in one go so that a reader never sees half of it.
+     * @param file The manifest file
+     * @throws IOException
+     */
+    public synchronized void save(final File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n");
+            writer.write("firmware\t" + firmwareId + "\n");
+
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                final Entry recorded = entry.getValue();
+                writer.write(String.format("file\t%s\t%d\t%s\t%s\n", entry.getKey(), recorded.size,
+                        recorded.sha256, String.join(",", recorded.blocks)));
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Record a file as it was written to the HMOD.
+     * @param path The path of the file within the HMOD
+     * @param entry What was written, from a {@link Digester} fed the file's content
+     */
+    public synchronized void record(final String path, final Entry entry) {
+        entries.put(path, entry);
+    }
+
+    /**
+     * Record a file of the HMOD from what is on disk, for files the build left in place rather than
+     * wrote.
+     * @param path The path of the file within the HMOD
+     * @param file The file
+     * @throws IOException
+     */
+    public void recordFile(final String path, final File file) throws IOException {
+        final Digester digester = new Digester(true);
+        digest(file, digester);
+        record(path, digester.finish());
+    }
+
+    /**
+     * Record a file the build found up to date and left alone, taking its entry from the manifest
+     * of the build that wrote it, so that it is still checked against what was written back then.
+     * It's hashed from disk instead if that manifest is for another firmware, or has no entry of
+     * the same size for it, or one without the hashes of its blocks.
+     * @param path The path of the file within the HMOD
+     * @param file The file
+     * @param previous The manifest of the previous build, or null if there isn't one
+     * @throws IOException
+     */
+    public void recordUnchanged(final String path, final File file, final HmodManifest previous)
+            throws IOException {
+        final Entry entry = (previous == null || !firmwareId.equals(previous.firmwareId)) ? null
+                : previous.getEntry(path);
+
+        // an entry from before block hashes were kept is no use to a delta package
+        if (entry != null && entry.size == file.length() && (entry.size <= BLOCK_SIZE || !entry.blocks.isEmpty())) {
+            record(path, entry);
+        } else {
+            recordFile(path, file);
+        }
+    }
+
+    /**
+     * @param path The path of a file within the HMOD
+     * @return What the manifest says about it, or null if it has no entry for it
+     */
+    public synchronized Entry getEntry(final String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @param path The path of a file within the HMOD
+     * @return Whether the manifest has an entry for it
+     */
+    public synchronized boolean contains(final String path) {
+        return entries.containsKey(path);
+    }
+
+    public String getFirmwareId() {
+        return firmwareId;
+    }
+
+    /**
+     * @return Every file, keyed by its path within the HMOD, in path order
+     */
+    public synchronized Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(new TreeMap<>(entries));
+    }
+
+    /**
+     * Hash a file through memory mappings of it, a stretch at a time, so that the bytes go straight
+     * from the page cache to the digest.
+     * @param file The file to hash
+     * @return The SHA-256 of its content, in hex
+     * @throws IOException
+     */
+    public static String hash(final File file) throws IOException {
+        final Digester digester = new Digester(false);
+        digest(file, digester);
+        return digester.finish().sha256;
+    }
+
+    /**
+     * @return A new SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param digest A finished digest
+     * @return The digest in lower case hex
+     */
+    public static String toHex(final byte[] digest) {
+        return toHex(digest, digest.length);
+    }
+
+    /**
+     * @param content Some content, between its position and limit; the buffer is left as it was
+     * @return The SHA-256 of the content, in hex
+     */
+    static String hash(final ByteBuffer content) {
+        final MessageDigest digest = newDigest();
+        digest.update(content.duplicate());
+        return toHex(digest.digest());
+    }
+
+    private static void digest(final File file, final Digester digester) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                digester.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_SIZE, size - position)));
+            }
+
+            IoCounters.read(size);
+        }
+    }
+
+    private static String toHex(final byte[] digest, final int length) {
+        final char[] hex = new char[length * 2];
+
+        for (int i = 0; i < length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    private static String[] split(final String line, final int fields) {
+        if (line == null) {
+            return null;
+        }
+
+        final String[] split = line.split("\t", -1);
+        return (split.length == fields) ? split : null;
+    }
+
+    /**
+     * What the manifest says about one file.
+     */
+    public static final class Entry {
+
+        private final long size;
+        private final String sha256;
+        private final List<String> blocks;
+
+        private Entry(final long size, final String sha256, final List<String> blocks) {
+            this.size = size;
+            this.sha256 = sha256;
+            this.blocks = blocks;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        /**
+         * @return The hash of each block of the file in order, the last one possibly short, or empty
+         *         if the file is no larger than a block or its blocks weren't hashed
+         */
+        public List<String> getBlocks() {
+            return blocks;
+        }
+    }
+
+    /**
+     * Hashes a file's content as it goes by, in one or more pieces, along with each of its blocks.
+     */
+    static final class Digester {
+
+        private final MessageDigest file = newDigest();
+        private final MessageDigest block;
+        private final List<String> blocks = new ArrayList<>();
+        private long size;
+        private int inBlock;
+
+        /**
+         * @param withBlocks Whether to hash each block as well as the whole file
+         */
+        Digester(final boolean withBlocks) {
+            this.block = withBlocks ? newDigest() : null;
+        }
+
+        /**
+         * @param content The next piece of content
+         * @param offset Where the piece starts in the array
+         * @param length How many bytes it holds
+         */
+        void update(final byte[] content, final int offset, final int length) {
+            file.update(content, offset, length);
+            size += length;
+
+            if (block == null) {
+                return;
+            }
+
+            int position = offset;
+            int remaining = length;
+
+            while (remaining > 0) {
+                final int chunk = Math.min(remaining, BLOCK_SIZE - inBlock);
+                block.update(content, position, chunk);
+                endChunk(chunk);
+                position += chunk;
+                remaining -= chunk;
+            }
+        }
+
+        /**
+         * @param content The next piece of content, between its position and limit; the buffer is
+         *                left as it was
+         */
+        void update(final ByteBuffer content) {
+            file.update(content.duplicate());
+            size += content.remaining();
+
+            if (block == null) {
+                return;
+            }
+
+            final ByteBuffer remaining = content.duplicate();
+
+            while (remaining.hasRemaining()) {
+                final int chunk = Math.min(remaining.remaining(), BLOCK_SIZE - inBlock);
+                final ByteBuffer piece = remaining.slice();
+                piece.limit(chunk);
+                block.update(piece);
+                remaining.position(remaining.position() + chunk);
+                endChunk(chunk);
+            }
+        }
+
+        /**
+         * @return The entry for the content seen
+         */
+        Entry finish() {
+            if (block == null || size <= BLOCK_SIZE) {
+                return new Entry(size, toHex(file.digest()), ImmutableList.of());
+            }
+
+            if (inBlock > 0) {
+                blocks.add(toHex(block.digest(), BLOCK_HASH_BYTES));
+            }
+
+            return new Entry(size, toHex(file.digest()), Collections.unmodifiableList(blocks));
+        }
+
+        private void endChunk(final int chunk) {
+            inBlock += chunk;
+
+            if (inBlock == BLOCK_SIZE) {
+                blocks.add(toHex(block.digest(), BLOCK_HASH_BYTES));
+                inBlock = 0;
+            }
+        }
+    }
+}
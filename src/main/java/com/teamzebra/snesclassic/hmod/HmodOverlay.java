@@ -0,0 +1,298 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.teamzebra.snesclassic.files.BufferPool;
+import com.teamzebra.snesclassic.files.FileCopier;
+import com.teamzebra.snesclassic.report.BuildLog;
+import com.teamzebra.snesclassic.report.IoCounters;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * A copy-on-write view of the HMOD being built. Copying a file into it only records where the file
+ * comes from, and patching a file only adds to the list of edits to make to it, so nothing is read
+ * or written while the build is being worked out. {@link #flush(HmodSink, FileCopier)} then writes
+ * everything in one pass: patched files are read once into a pooled buffer, edited there and written
+ * once, and unchanged files are copied straight from their source, several at a time where the sink
+ * allows it.
+ *
+ * All methods may be called from several stages at once.
+ */
+public class HmodOverlay {
+
+    /**
+     * Unix permissions of the files copied into the overlay, depending on whether their source is
+     * executable.
+     */
+    private static final int EXECUTABLE_MODE = 0755;
+    private static final int FILE_MODE = 0644;
+
+    /**
+     * How many file-sized buffers to keep: files are edited one at a time, and a text edit needs a
+     * second buffer to write its output to.
+     */
+    private static final int POOLED_BUFFERS = 2;
+
+    private final Map<String, Node> nodes = new TreeMap<>();
+    private final BufferPool pool = new BufferPool(POOLED_BUFFERS);
+
+    /**
+     * Add a file to the overlay, to be copied from a file on disk.
+     * @param path The path of the file within the HMOD
+     * @param source The file to copy
+     */
+    public synchronized void addFile(final String path, final File source) {
+        nodes.put(path, new Node(source, source.canExecute() ? EXECUTABLE_MODE : FILE_MODE));
+    }
+
+    /**
+     * Add a directory tree to the overlay, to be copied from a directory on disk. The tree is listed
+     * straight away, but none of its files are read.
+     * @param path The path of the directory within the HMOD
+     * @param source The directory to copy
+     * @throws IOException If the directory can't be listed
+     */
+    public void addDirectory(final String path, final File source) throws IOException {
+        if (!source.isDirectory()) {
+            throw new FileNotFoundException(String.format("Source '%s' is not a directory", source));
+        }
+
+        final Path root = source.toPath();
+        final List<Path> children = new ArrayList<>();
+
+        try (Stream<Path> tree = Files.walk(root)) {
+            tree.forEach(children::add);
+        }
+
+        synchronized (this) {
+            for (Path child : children) {
+                final String relative = root.relativize(child).toString().replace(File.separatorChar, '/');
+                final String childPath = relative.isEmpty() ? path : String.format("%s/%s", path, relative);
+
+                if (Files.isDirectory(child)) {
+                    nodes.put(childPath, new Node(null, 0));
+                } else {
+                    addFile(childPath, child.toFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an edit to a file already in the overlay, to be made after the edits added before it.
+     * @param path The path of the file within the HMOD
+     * @param description What the edit does, for previews
+     * @param edit The edit
+     * @throws FileNotFoundException If the overlay has no such file
+     */
+    public synchronized void edit(final String path, final String description, final Edit edit)
+            throws FileNotFoundException {
+        final Node node = nodes.get(path);
+
+        if (node == null || node.source == null) {
+            throw new FileNotFoundException(String.format("Couldn't find %s in the HMOD", path));
+        }
+
+        node.edits.add(edit);
+        node.descriptions.add(description);
+    }
+
+    /**
+     * Read a file as it will be written, with all of its edits made.
+     * @param path The path of the file within the HMOD
+     * @return The content of the file
+     * @throws IOException If the file can't be read, or an edit fails
+     */
+    public synchronized byte[] read(final String path) throws IOException {
+        final Node node = nodes.get(path);
+
+        if (node == null || node.source == null) {
+            throw new FileNotFoundException(String.format("Couldn't find %s in the HMOD", path));
+        }
+
+        final ByteBuffer content = node.read(pool);
+
+        try {
+            final byte[] copy = new byte[content.remaining()];
+            content.get(copy);
+            return copy;
+        } finally {
+            pool.release(content);
+        }
+    }
+
+    /**
+     * Work out what a flush would write, without writing anything. Every edited file is read and
+     * edited in memory, so an edit that would fail fails here too.
+     * @return One line per file and directory, with its size, where it comes from and how it's edited
+     * @throws IOException If a file can't be read, or an edit fails
+     */
+    public synchronized List<String> preview() throws IOException {
+        final List<String> lines = new ArrayList<>();
+
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            final Node node = entry.getValue();
+
+            if (node.source == null) {
+                lines.add(String.format("%s/", entry.getKey()));
+            } else if (node.edits.isEmpty()) {
+                lines.add(String.format("%s (%d bytes) <- %s", entry.getKey(), node.source.length(),
+                        node.source.getPath()));
+            } else {
+                final ByteBuffer content = node.read(pool);
+                lines.add(String.format("%s (%d bytes) <- %s, %s", entry.getKey(), content.remaining(),
+                        node.source.getPath(), String.join(", ", node.descriptions)));
+                pool.release(content);
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * Write every file and directory in the overlay. When the sink can copy files concurrently and
+     * a copier is given, the directories and edited files are written first, in path order, and the
+     * unchanged files are then copied on the copier's threads; otherwise everything is written in
+     * path order.
+     * @param sink Where to write them
+     * @param copier The copier whose threads to copy unchanged files on, or null to copy them one
+     *               at a time
+     * @return How many files were written
+     * @throws IOException If a file can't be read or written, or an edit fails
+     */
+    public synchronized int flush(final HmodSink sink, final FileCopier copier) throws IOException {
+        final boolean concurrent = (copier != null) && sink.canCopyConcurrently();
+        final List<Map.Entry<String, Node>> copies = new ArrayList<>();
+        int written = 0;
+
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            final String path = entry.getKey();
+            final Node node = entry.getValue();
+
+            if (node.source == null) {
+                sink.writeDirectory(path);
+                continue;
+            }
+
+            if (node.edits.isEmpty() && concurrent) {
+                copies.add(entry);
+                continue;
+            }
+
+            BuildLog.detail("Writing %s", sink.describe(path));
+
+            if (node.edits.isEmpty()) {
+                sink.copyFile(path, node.source, node.mode);
+            } else {
+                final ByteBuffer content = node.read(pool);
+
+                try {
+                    sink.writeFile(path, content, node.mode);
+                } finally {
+                    pool.release(content);
+                }
+            }
+
+            written++;
+        }
+
+        if (!copies.isEmpty()) {
+            copier.forEach(copies, entry -> {
+                BuildLog.detail("Writing %s", sink.describe(entry.getKey()));
+                sink.copyFile(entry.getKey(), entry.getValue().source, entry.getValue().mode);
+            });
+        }
+
+        return written + copies.size();
+    }
+
+    /**
+     * @return How many files and directories the overlay holds
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * A change made to the content of a file.
+     */
+    @FunctionalInterface
+    public interface Edit {
+
+        /**
+         * @param content The content of the file as left by the edits before this one, between the
+         *                buffer's position and limit; it may be changed in place
+         * @param pool The pool the content was borrowed from; an edit that needs a new buffer takes
+         *             it from here, and gives the old one back
+         * @return The edited content
+         * @throws IOException If the edit can't be made
+         */
+        ByteBuffer apply(ByteBuffer content, BufferPool pool) throws IOException;
+    }
+
+    /**
+     * A file or directory in the overlay: where a file comes from, and the edits to make to it.
+     */
+    private static final class Node {
+
+        private final File source;
+        private final int mode;
+        private final List<Edit> edits = new ArrayList<>();
+        private final List<String> descriptions = new ArrayList<>();
+
+        /**
+         * @param source The file to copy, or null for a directory
+         * @param mode The unix permissions of the file
+         */
+        private Node(final File source, final int mode) {
+            this.source = source;
+            this.mode = mode;
+        }
+
+        /**
+         * Read the file into a buffer from the pool and make its edits.
+         * @param pool The pool to borrow buffers from
+         * @return The edited content, flipped for reading
+         */
+        private ByteBuffer read(final BufferPool pool) throws IOException {
+            ByteBuffer content;
+
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(String.format("%s is too large to patch", source));
+                }
+
+                content = pool.acquire((int) channel.size());
+
+                while (content.hasRemaining() && channel.read(content) >= 0) {
+                    continue;
+                }
+            }
+
+            if (content.hasRemaining()) {
+                throw new IOException(String.format("%s shrank while being read", source));
+            }
+
+            IoCounters.read(content.position());
+
+            content.flip();
+
+            for (Edit edit : edits) {
+                content = edit.apply(content, pool);
+            }
+
+            return content;
+        }
+    }
+}
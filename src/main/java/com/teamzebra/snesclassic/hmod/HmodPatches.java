@@ -0,0 +1,213 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.teamzebra.snesclassic.files.BufferPool;
+import com.teamzebra.snesclassic.firmware.FirmwareProfile;
+import com.teamzebra.snesclassic.patching.BinaryPatch;
+import com.teamzebra.snesclassic.patching.BinaryPatcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every text and binary patch applied to the files copied from the NESC dump, keyed by
+ * their path within the HMOD.
+ */
+public class HmodPatches {
+
+    /**
+     * Patches for the non-game text scripts, i.e. the desktop files and bin scripts.
+     */
+    public static final Map<String, Map<String, String>> SCRIPT_PATCHES =
+            ImmutableMap.<String, Map<String, String>>builder()
+                    // the desktop files
+                    .put("etc/share/applications/clover-debug-menu.desktop", ImmutableMap.of(
+                            "Exec=/usr/bin/clover-debug-menu",
+                            "Exec=/bin/clover-debug-menu-nes"))
+                    .put("etc/share/applications/clover-factory-reset.desktop", ImmutableMap.of(
+                            "Exec=/usr/bin/clover-factory-reset",
+                            "Exec=/bin/clover-factory-reset-nes"))
+                    .put("etc/share/applications/clover-menu-reset.desktop", ImmutableMap.of(
+                            "Exec=/usr/bin/clover-menu-reset",
+                            "Exec=/bin/clover-menu-reset-nes"))
+                    .put("etc/share/applications/clover-test-menu.desktop", ImmutableMap.of(
+                            "Exec=/usr/bin/clover-production-test-menu",
+                            "Exec=/bin/clover-production-test-menu-nes"))
+                    .put("etc/share/applications/clover-ui.desktop", ImmutableMap.of(
+                            "Exec=/usr/bin/clover-ui",
+                            "Exec=/bin/clover-ui-nes"))
+                    .put("etc/share/applications/clover-mcp.desktop", ImmutableMap.of(
+                            "/usr/share/games/nes/kachikachi",
+                            "/etc/nesgames",
+                            "/usr/share/applications",
+                            "/etc/share/applications",
+                            "/usr/share/clover-mcp/",
+                            "/etc/share/clover-mcp/"))
+                    // the bin scripts
+                    .put("bin/clover-menu-reset-nes", ImmutableMap.of(
+                            "home-menu",
+                            "nesc-menu"))
+                    .put("bin/clover-ui-nes", ImmutableMap.of(
+                            "ReedPlayer-Clover",
+                            "ReedPlayer-Clover-nes",
+                            "/usr/share/",
+                            "/etc/share/"))
+                    .build();
+
+    /**
+     * Substitutions applied to the desktop file of every NES game.
+     */
+    public static final Map<String, String> GAME_PATCHES = ImmutableMap.of(
+            "/usr/bin/clover-kachikachi",
+            "/bin/hybrid_nesc_kachikachi_wr",
+            "/usr/share/games/nes/kachikachi",
+            "/etc/nesgames");
+
+    private final List<String> gameCodes;
+    private final Map<String, List<BinaryPatch>> binaryPatches;
+    private final Map<String, Map<String, String>> textPatches;
+
+    /**
+     * @param gameCodes The codes of the games in the dump, e.g. "CLV-P-NAAAE"
+     * @param binaryPatches The binary patches for the dump, keyed by HMOD path
+     */
+    public HmodPatches(final List<String> gameCodes, final Map<String, List<BinaryPatch>> binaryPatches) {
+        this.gameCodes = ImmutableList.copyOf(gameCodes);
+        this.binaryPatches = ImmutableMap.copyOf(binaryPatches);
+
+        final Map<String, Map<String, String>> text = new LinkedHashMap<>(SCRIPT_PATCHES);
+
+        for (String gameCode : gameCodes) {
+            text.put(getGameDesktopFile(gameCode), GAME_PATCHES);
+        }
+
+        this.textPatches = Collections.unmodifiableMap(text);
+    }
+
+    /**
+     * @param profile The firmware release of the dump
+     * @return Every patch for a dump of that release
+     */
+    public static HmodPatches forProfile(final FirmwareProfile profile) {
+        return new HmodPatches(profile.getGameCodes(), getBinaryPatches(profile));
+    }
+
+    /**
+     * The binary patches for a firmware release. The patch sites are found by their signatures;
+     * the known offsets for the release are used to double check them.
+     * @param profile The firmware release of the dump
+     * @return The binary patches, keyed by their path within the HMOD
+     */
+    public static Map<String, List<BinaryPatch>> getBinaryPatches(final FirmwareProfile profile) {
+        return ImmutableMap.of(
+                "bin/clover-mcp-nes", ImmutableList.of(
+                        BinaryPatch.replace("/usr/share/clover-mcp", 1, "etc")
+                                .hint(profile.getCloverMcpOffset())),
+                "bin/kachikachi", ImmutableList.of(
+                        BinaryPatch.replace("/usr/share/kachikachi", 1, "etc")
+                                .hint(profile.getKachikachiOffset1()),
+                        BinaryPatch.replace("/usr/share/kachikachi", 1, "etc").occurrence(1)
+                                .hint(profile.getKachikachiOffset2())),
+                "bin/ReedPlayer-Clover-nes", ImmutableList.of(
+                        BinaryPatch.replace("/usr/share/reed-libs", 1, "etc")
+                                .hint(profile.getReedPlayerOffset1()),
+                        BinaryPatch.replace("home-menu", 0, "nesc")
+                                .hint(profile.getReedPlayerOffset2())));
+    }
+
+    /**
+     * @param gameCode The code of a game, e.g. "CLV-P-NAAAE"
+     * @return The path of the game's desktop file within the HMOD
+     */
+    public static String getGameDesktopFile(final String gameCode) {
+        return String.format("etc/nesgames/%1$s/%1$s.desktop", gameCode);
+    }
+
+    /**
+     * @return The codes of the games in the dump
+     */
+    public List<String> getGameCodes() {
+        return gameCodes;
+    }
+
+    /**
+     * @return Every text patch, script and game alike, keyed by HMOD path
+     */
+    public Map<String, Map<String, String>> getTextPatches() {
+        return textPatches;
+    }
+
+    /**
+     * @return Every binary patch, keyed by HMOD path
+     */
+    public Map<String, List<BinaryPatch>> getBinaryPatches() {
+        return binaryPatches;
+    }
+
+    /**
+     * @param path A path within the HMOD
+     * @return Whether the file at that path gets modified after being copied from the dump
+     */
+    public boolean isPatched(final String path) {
+        return textPatches.containsKey(path) || binaryPatches.containsKey(path);
+    }
+
+    /**
+     * A digest of every patch applied to the given file, which changes whenever any of them do.
+     * @param path The path of the file within the HMOD
+     * @return The SHA-256 of a description of the file's patches
+     */
+    public String getPatchDigest(final String path) {
+        final StringBuilder description = new StringBuilder();
+        final Map<String, String> substitutions = textPatches.get(path);
+        final List<BinaryPatch> patches = binaryPatches.get(path);
+
+        if (substitutions != null) {
+            for (Map.Entry<String, String> entry : substitutions.entrySet()) {
+                description.append("text\t").append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+            }
+        }
+
+        if (patches != null) {
+            for (BinaryPatch patch : patches) {
+                description.append("binary\t").append(patch.getDescription()).append('\t')
+                        .append(patch.getOccurrence()).append('\t').append(patch.getHint()).append('\n');
+            }
+        }
+
+        return Hashing.sha256().hashString(description, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Apply every text and binary patch for the given file to its in-memory content.
+     * @param path The path of the file within the HMOD
+     * @param content The original content of the file, in a buffer borrowed from the pool
+     * @param pool The pool the content was borrowed from, and any patched copy is borrowed from
+     * @return The patched content, which may be a different buffer from the pool, in which case
+     *         the original has been given back
+     * @throws IOException If a binary patch site can't be found or verified
+     */
+    public ByteBuffer apply(final String path, final ByteBuffer content, final BufferPool pool) throws IOException {
+        ByteBuffer patched = content;
+        final Map<String, String> substitutions = textPatches.get(path);
+
+        if (substitutions != null) {
+            patched = TextPatcher.apply(patched, substitutions, pool);
+        }
+
+        final List<BinaryPatch> patches = binaryPatches.get(path);
+
+        if (patches != null) {
+            BinaryPatcher.apply(patched.slice(), patches, path);
+        }
+
+        return patched;
+    }
+}
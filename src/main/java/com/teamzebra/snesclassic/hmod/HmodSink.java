@@ -0,0 +1,89 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.teamzebra.snesclassic.report.IoCounters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Somewhere the files of an HMOD get written to: either an unpacked HMOD folder, or a
+ * .hmod archive.
+ */
+public interface HmodSink extends Closeable {
+
+    /**
+     * Create a directory within the HMOD.
+     * @param path The path of the directory within the HMOD
+     * @throws IOException
+     */
+    void writeDirectory(String path) throws IOException;
+
+    /**
+     * Write a file within the HMOD from content that is already in memory.
+     * @param path The path of the file within the HMOD
+     * @param content The content of the file
+     * @param mode The unix permissions of the file
+     * @throws IOException
+     */
+    void writeFile(String path, byte[] content, int mode) throws IOException;
+
+    /**
+     * Write a file within the HMOD from content held in a buffer.
+     * @param path The path of the file within the HMOD
+     * @param content The content of the file, between the buffer's position and limit; the buffer
+     *                is left as it was
+     * @param mode The unix permissions of the file
+     * @throws IOException
+     */
+    void writeFile(String path, ByteBuffer content, int mode) throws IOException;
+
+    /**
+     * Write a file within the HMOD by streaming its content.
+     * @param path The path of the file within the HMOD
+     * @param content The content of the file, read up to its end
+     * @param size The exact number of bytes the content holds
+     * @param mode The unix permissions of the file
+     * @throws IOException
+     */
+    void writeFile(String path, InputStream content, long size, int mode) throws IOException;
+
+    /**
+     * Write a file within the HMOD as a copy of a file on disk.
+     * @param path The path of the file within the HMOD
+     * @param source The file to copy
+     * @param mode The unix permissions of the file
+     * @throws IOException
+     */
+    default void copyFile(final String path, final File source, final int mode) throws IOException {
+        try (InputStream content = IoCounters.counting(new FileInputStream(source))) {
+            writeFile(path, content, source.length(), mode);
+        }
+    }
+
+    /**
+     * Mark the HMOD as complete. Sinks that only put their output in place once it's whole do so
+     * here, and a sink closed without being committed throws away what it wrote where it can, so a
+     * build that fails part-way leaves the previous HMOD as it was.
+     * @throws IOException
+     */
+    default void commit() throws IOException {
+    }
+
+    /**
+     * @return Whether {@link #copyFile} may be called from several threads at once, while nothing
+     *         else is being written
+     */
+    default boolean canCopyConcurrently() {
+        return false;
+    }
+
+    /**
+     * @param path A path within the HMOD
+     * @return A human readable description of where that path gets written, for logging
+     */
+    String describe(String path);
+}
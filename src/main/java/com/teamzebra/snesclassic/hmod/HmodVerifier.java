@@ -0,0 +1,380 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.patching.BinaryPatch;
+import com.teamzebra.snesclassic.patching.BinaryPatcher;
+import com.teamzebra.snesclassic.report.IoCounters;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks a built HMOD against its {@link HmodManifest}: every file must be there with the size and
+ * SHA-256 the build wrote it with, nothing else may be there, and every binary patch site must hold
+ * its patched bytes. The files of an HMOD folder are hashed on several cores at once, each through
+ * memory mappings, largest first so that no core is left with a big file at the end. An archive has
+ * to be decompressed in order, but its entries are still hashed on other cores while the next ones
+ * are read.
+ */
+public class HmodVerifier {
+
+    /**
+     * Entries of an archive up to this size are read into memory and hashed on another core; larger
+     * ones are hashed as they are read.
+     */
+    private static final int MAX_BUFFERED_ENTRY = 8 * 1024 * 1024;
+
+    /**
+     * The most bytes of archive entries held in memory waiting to be hashed.
+     */
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Size of the buffer used to hash large archive entries as they are read.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, HmodManifest.Entry> entries;
+    private final Map<String, List<BinaryPatch>> binaryPatches;
+    private final int threads;
+
+    /**
+     * @param manifest The manifest the HMOD was built with
+     * @param binaryPatches The binary patches that should have been applied, keyed by HMOD path
+     * @param threads How many cores to hash on
+     */
+    public HmodVerifier(final HmodManifest manifest, final Map<String, List<BinaryPatch>> binaryPatches,
+                        final int threads) {
+        this.entries = manifest.getEntries();
+        this.binaryPatches = binaryPatches;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Check an HMOD folder.
+     * @param hmodDirectory The HMOD folder
+     * @return What was checked, and any problems found
+     * @throws IOException If the folder can't be listed, or a file in it can't be read
+     */
+    public Result verifyDirectory(final File hmodDirectory) throws IOException {
+        final Path root = hmodDirectory.toPath();
+        final List<Path> files;
+
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        // largest first, so that the last files hashed are small ones
+        final List<File> bySize = new ArrayList<>();
+
+        for (Path file : files) {
+            bySize.add(file.toFile());
+        }
+
+        bySize.sort(Comparator.comparingLong(File::length).reversed());
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final List<Future<Check>> checks = new ArrayList<>();
+
+        try {
+            for (File file : bySize) {
+                final String path = root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                checks.add(pool.submit(() -> checkFile(path, file)));
+            }
+
+            return collect(checks);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Check a .hmod archive.
+     * @param archive The archive
+     * @return What was checked, and any problems found
+     * @throws IOException If the archive can't be read
+     */
+    public Result verifyArchive(final File archive) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final Semaphore buffered = new Semaphore(MAX_BUFFERED_BYTES);
+        final List<Future<Check>> checks = new ArrayList<>();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            TarGzArchive.visitEntries(archive, (entry, content) -> {
+                if (entry.isDirectory()) {
+                    return;
+                }
+
+                final String path = TarGzArchive.normalizeEntryName(entry.getName());
+                final long size = entry.getSize();
+
+                if (size > MAX_BUFFERED_ENTRY && !binaryPatches.containsKey(path)) {
+                    checks.add(CompletableFuture.completedFuture(checkStream(path, content, buffer)));
+                    return;
+                }
+
+                if (size > Integer.MAX_VALUE) {
+                    checks.add(CompletableFuture.completedFuture(
+                            failed(path, String.format("%s is too large to check its patches", path))));
+                    return;
+                }
+
+                // held back while too much is already waiting to be hashed
+                final int permits = (int) Math.min(size, MAX_BUFFERED_BYTES);
+                buffered.acquireUninterruptibly(permits);
+                final byte[] bytes = new byte[(int) size];
+
+                try {
+                    ByteStreams.readFully(content, bytes);
+                } catch (IOException | RuntimeException e) {
+                    buffered.release(permits);
+                    throw e;
+                }
+
+                checks.add(pool.submit(() -> {
+                    try {
+                        return checkContent(path, ByteBuffer.wrap(bytes));
+                    } finally {
+                        buffered.release(permits);
+                    }
+                }));
+            });
+
+            return collect(checks);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Check a file of an HMOD folder, hashing it, and checking its patch sites if it has any, through
+     * a memory mapping of it.
+     */
+    private Check checkFile(final String path, final File file) throws IOException {
+        final HmodManifest.Entry expected = entries.get(path);
+        final long size = file.length();
+        final Check mismatch = checkSize(path, size, expected);
+
+        if (mismatch != null) {
+            return mismatch;
+        }
+
+        if (!binaryPatches.containsKey(path)) {
+            return new Check(path, size, compareHash(path, HmodManifest.hash(file), expected));
+        }
+
+        if (size > Integer.MAX_VALUE) {
+            return failed(path, String.format("%s is too large to check its patches", path));
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            IoCounters.read(size);
+            return checkContent(path, mapped);
+        }
+    }
+
+    /**
+     * Check a file whose content is in memory.
+     */
+    private Check checkContent(final String path, final ByteBuffer content) {
+        final HmodManifest.Entry expected = entries.get(path);
+        final long size = content.remaining();
+        final Check mismatch = checkSize(path, size, expected);
+
+        if (mismatch != null) {
+            return mismatch;
+        }
+
+        final List<String> problems = new ArrayList<>(compareHash(path, HmodManifest.hash(content), expected));
+        final List<BinaryPatch> patches = binaryPatches.get(path);
+
+        if (patches != null) {
+            problems.addAll(BinaryPatcher.verify(content.slice(), patches, path));
+        }
+
+        return new Check(path, size, problems);
+    }
+
+    /**
+     * Check a large file of an archive as it's read.
+     */
+    private Check checkStream(final String path, final InputStream content, final byte[] buffer)
+            throws IOException {
+        final HmodManifest.Entry expected = entries.get(path);
+        final MessageDigest digest = HmodManifest.newDigest();
+        long size = 0;
+        int read;
+
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            size += read;
+        }
+
+        final Check mismatch = checkSize(path, size, expected);
+
+        if (mismatch != null) {
+            return mismatch;
+        }
+
+        return new Check(path, size, compareHash(path, HmodManifest.toHex(digest.digest()), expected));
+    }
+
+    /**
+     * @return A failed check if the file isn't in the manifest or its size is wrong, otherwise null
+     */
+    private static Check checkSize(final String path, final long size, final HmodManifest.Entry expected) {
+        if (expected == null) {
+            return failed(path, String.format("%s isn't in the manifest", path));
+        }
+
+        if (size != expected.getSize()) {
+            return failed(path, String.format("%s is %d bytes, expected %d", path, size, expected.getSize()));
+        }
+
+        return null;
+    }
+
+    private static Check failed(final String path, final String problem) {
+        return new Check(path, 0, Collections.singletonList(problem));
+    }
+
+    private static List<String> compareHash(final String path, final String actual,
+                                            final HmodManifest.Entry expected) {
+        if (actual.equals(expected.getSha256())) {
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList(String.format("%s has SHA-256 %s, expected %s", path, actual,
+                expected.getSha256()));
+    }
+
+    /**
+     * Wait for every check, then add whatever is missing from the HMOD.
+     */
+    private Result collect(final List<Future<Check>> checks) throws IOException {
+        final Set<String> found = new HashSet<>();
+        final List<String> problems = new ArrayList<>();
+        long bytes = 0;
+
+        for (Future<Check> future : checks) {
+            final Check check;
+
+            try {
+                check = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while verifying the HMOD", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+
+                throw new IOException(e.getCause());
+            }
+
+            found.add(check.path);
+            problems.addAll(check.problems);
+            bytes += check.bytes;
+        }
+
+        for (String path : entries.keySet()) {
+            if (!found.contains(path)) {
+                problems.add(String.format("%s is missing", path));
+            }
+        }
+
+        for (String path : binaryPatches.keySet()) {
+            if (!entries.containsKey(path)) {
+                problems.add(String.format("%s should be patched, but isn't in the manifest", path));
+            }
+        }
+
+        Collections.sort(problems);
+        return new Result(found.size(), bytes, problems);
+    }
+
+    /**
+     * The outcome of checking one file.
+     */
+    private static final class Check {
+
+        private final String path;
+        private final long bytes;
+        private final List<String> problems;
+
+        private Check(final String path, final long bytes, final List<String> problems) {
+            this.path = path;
+            this.bytes = bytes;
+            this.problems = problems;
+        }
+    }
+
+    /**
+     * The outcome of checking an HMOD.
+     */
+    public static final class Result {
+
+        private final int files;
+        private final long bytes;
+        private final List<String> problems;
+
+        private Result(final int files, final long bytes, final List<String> problems) {
+            this.files = files;
+            this.bytes = bytes;
+            this.problems = Collections.unmodifiableList(problems);
+        }
+
+        /**
+         * @return How many files the HMOD holds
+         */
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * @return How many bytes were hashed
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return A description of each problem found, empty if there were none
+         */
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        /**
+         * @return Whether the HMOD matches its manifest
+         */
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.teamzebra.snesclassic.hmod;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Records every file written to another sink in a manifest, hashing the bytes and blocks on their
+ * way through, so the manifest says what the build meant to write rather than what ended up on disk.
+ */
+public class ManifestHmodSink implements HmodSink {
+
+    private final HmodSink sink;
+    private final HmodManifest manifest;
+
+    /**
+     * @param sink The sink to write to
+     * @param manifest The manifest to record the files in
+     */
+    public ManifestHmodSink(final HmodSink sink, final HmodManifest manifest) {
+        this.sink = sink;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public void writeDirectory(final String path) throws IOException {
+        sink.writeDirectory(path);
+    }
+
+    @Override
+    public void writeFile(final String path, final byte[] content, final int mode) throws IOException {
+        sink.writeFile(path, content, mode);
+        final HmodManifest.Digester digester = new HmodManifest.Digester(true);
+        digester.update(content, 0, content.length);
+        manifest.record(path, digester.finish());
+    }
+
+    @Override
+    public void writeFile(final String path, final ByteBuffer content, final int mode) throws IOException {
+        sink.writeFile(path, content, mode);
+        final HmodManifest.Digester digester = new HmodManifest.Digester(true);
+        digester.update(content);
+        manifest.record(path, digester.finish());
+    }
+
+    @Override
+    public void writeFile(final String path, final InputStream content, final long size, final int mode)
+            throws IOException {
+        final HmodManifest.Digester digester = new HmodManifest.Digester(true);
+
+        sink.writeFile(path, new FilterInputStream(content) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+
+                if (b != -1) {
+                    digester.update(new byte[] {(byte) b}, 0, 1);
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                final int count = super.read(buffer, offset, length);
+
+                if (count > 0) {
+                    digester.update(buffer, offset, count);
+                }
+
+                return count;
+            }
+        }, size, mode);
+
+        manifest.record(path, digester.finish());
+    }
+
+    @Override
+    public void copyFile(final String path, final File source, final int mode) throws IOException {
+        // hashed from the source, so that a copy that goes wrong doesn't match
+        sink.copyFile(path, source, mode);
+        manifest.recordFile(path, source);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        sink.commit();
+    }
+
+    @Override
+    public boolean canCopyConcurrently() {
+        return sink.canCopyConcurrently();
+    }
+
+    @Override
+    public String describe(final String path) {
+        return sink.describe(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
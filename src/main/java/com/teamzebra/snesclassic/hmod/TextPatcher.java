@@ -0,0 +1,67 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.teamzebra.snesclassic.files.BufferPool;
+import com.teamzebra.snesclassic.patching.MultiLiteralReplacer;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies string substitutions to the content of a text file.
+ */
+public final class TextPatcher {
+
+    /**
+     * Compiled replacers, so that a substitution table shared by many files (like the one for the
+     * game desktop files) is only compiled once.
+     */
+    private static final Map<Map<String, String>, MultiLiteralReplacer> REPLACERS = new ConcurrentHashMap<>();
+
+    private TextPatcher() {
+    }
+
+    /**
+     * Replace all occurrences of the strings in a map with their given substitutions, in a single
+     * pass over the raw bytes. The strings are matched literally.
+     * @param content The UTF-8 content of the file
+     * @param substitutions The strings to replace and their replacements
+     * @return The patched content; the same array is handed back if nothing matched
+     */
+    public static byte[] apply(final byte[] content, final Map<String, String> substitutions) {
+        return getReplacer(substitutions).apply(content);
+    }
+
+    /**
+     * Replace all occurrences of the strings in a map with their given substitutions, in content
+     * held in a pooled buffer. If anything matches, the patched content goes in a new buffer from
+     * the pool and the original buffer is given back to it.
+     * @param content The UTF-8 content of the file, between its position and limit
+     * @param substitutions The strings to replace and their replacements
+     * @param pool The pool the content was borrowed from
+     * @return The patched content, flipped for reading; the same buffer is handed back if nothing matched
+     */
+    public static ByteBuffer apply(final ByteBuffer content, final Map<String, String> substitutions,
+                                   final BufferPool pool) {
+        final MultiLiteralReplacer replacer = getReplacer(substitutions);
+        final int length = replacer.measure(content);
+
+        if (length < 0) {
+            return content;
+        }
+
+        final ByteBuffer patched = pool.acquire(length);
+        replacer.apply(content, patched);
+        patched.flip();
+        pool.release(content);
+        return patched;
+    }
+
+    /**
+     * @param substitutions The strings to replace and their replacements
+     * @return The compiled replacer for the substitutions
+     */
+    public static MultiLiteralReplacer getReplacer(final Map<String, String> substitutions) {
+        return REPLACERS.computeIfAbsent(substitutions, MultiLiteralReplacer::new);
+    }
+}
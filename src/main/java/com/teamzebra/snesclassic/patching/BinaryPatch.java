@@ -0,0 +1,123 @@
+package com.teamzebra.snesclassic.patching;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A run of bytes to overwrite within a binary file. The patch site is found by scanning for a
+ * signature, rather than by a fixed offset, and the bytes there are checked against what the
+ * signature says they should be before anything is written.
+ */
+public final class BinaryPatch {
+
+    private final String description;
+    private final byte[] signatureBytes;
+    private final ByteSignature signature;
+    private final ByteSignature patchedSignature;
+    private final int siteOffset;
+    private final byte[] original;
+    private final byte[] replacement;
+    private final int occurrence;
+    private final long hint;
+
+    private BinaryPatch(final String description, final byte[] signature, final int siteOffset,
+                        final byte[] replacement, final int occurrence, final long hint) {
+        if (siteOffset < 0 || siteOffset + replacement.length > signature.length) {
+            throw new IllegalArgumentException(String.format(
+                    "The replacement for '%s' doesn't fit within its signature", description));
+        }
+
+        this.description = description;
+        this.signatureBytes = signature.clone();
+        this.signature = new ByteSignature(signature);
+        final byte[] patched = signature.clone();
+        System.arraycopy(replacement, 0, patched, siteOffset, replacement.length);
+        this.patchedSignature = new ByteSignature(patched);
+        this.siteOffset = siteOffset;
+        this.original = Arrays.copyOfRange(signature, siteOffset, siteOffset + replacement.length);
+        this.replacement = replacement.clone();
+        this.occurrence = occurrence;
+        this.hint = hint;
+    }
+
+    /**
+     * Create a patch that overwrites part of a string within a binary.
+     * @param signature The string to look for, e.g. "/usr/share/kachikachi"
+     * @param siteOffset Where within the string the replacement starts
+     * @param replacement The bytes to write there, e.g. "etc"
+     * @return The patch, matching the first occurrence of the signature
+     */
+    public static BinaryPatch replace(final String signature, final int siteOffset, final String replacement) {
+        return new BinaryPatch(String.format("'%s' @ +%d -> '%s'", signature, siteOffset, replacement),
+                signature.getBytes(StandardCharsets.US_ASCII), siteOffset,
+                replacement.getBytes(StandardCharsets.US_ASCII), 0, -1);
+    }
+
+    /**
+     * @param index Which occurrence of the signature to patch (0 for the first) when the site isn't
+     *              at the hinted offset
+     * @return A copy of this patch that targets the given occurrence
+     */
+    public BinaryPatch occurrence(final int index) {
+        return new BinaryPatch(description, signatureBytes, siteOffset, replacement, index, hint);
+    }
+
+    /**
+     * @param offset The known offset of the patch site for a particular firmware. It is used
+     *               without scanning as long as the whole signature is there around it.
+     * @return A copy of this patch with the given hint
+     */
+    public BinaryPatch hint(final long offset) {
+        return new BinaryPatch(description, signatureBytes, siteOffset, replacement, occurrence, offset);
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public ByteSignature getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return The signature as it reads once patched, to find patch sites in a patched binary by
+     */
+    public ByteSignature getPatchedSignature() {
+        return patchedSignature;
+    }
+
+    /**
+     * @return Where within the signature the replacement bytes go
+     */
+    public int getSiteOffset() {
+        return siteOffset;
+    }
+
+    /**
+     * @return The bytes expected at the patch site before patching
+     */
+    public byte[] getOriginal() {
+        return original.clone();
+    }
+
+    /**
+     * @return The bytes written to the patch site
+     */
+    public byte[] getReplacement() {
+        return replacement.clone();
+    }
+
+    /**
+     * @return Which occurrence of the signature to patch when the site isn't at the hinted offset
+     */
+    public int getOccurrence() {
+        return occurrence;
+    }
+
+    /**
+     * @return The known offset of the patch site, or -1 if there isn't one
+     */
+    public long getHint() {
+        return hint;
+    }
+}
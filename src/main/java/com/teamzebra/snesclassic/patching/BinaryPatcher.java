@@ -0,0 +1,153 @@
+package com.teamzebra.snesclassic.patching;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies binary patches to content that is already in memory. Every patch site is located and
+ * verified before any byte is written, so a file is either patched completely or left alone.
+ */
+public final class BinaryPatcher {
+
+    private BinaryPatcher() {
+    }
+
+    /**
+     * Patch content that is already in memory.
+     * @param content The content to patch in place, between index 0 and its limit
+     * @param patches The patches to apply
+     * @param name The name of the content, for error messages
+     * @throws IOException If a patch site can't be found or verified
+     */
+    public static void apply(final ByteBuffer content, final List<BinaryPatch> patches, final String name)
+            throws IOException {
+        final List<Integer> sites = new ArrayList<>(patches.size());
+        final Set<Integer> claimed = new HashSet<>();
+
+        for (BinaryPatch patch : patches) {
+            final int site = locate(content, patch, name, claimed);
+            claimed.add(site);
+            sites.add(site);
+        }
+
+        for (int i = 0; i < patches.size(); i++) {
+            final ByteBuffer site = content.duplicate();
+            site.position(sites.get(i));
+            site.put(patches.get(i).getReplacement());
+        }
+    }
+
+    /**
+     * Check that patches have been applied: that for each of them, a site holds the patched form of
+     * its signature. The hinted site is checked first and the content is only scanned when that
+     * fails, as when patching. No site is counted for more than one patch, so two patches of the
+     * same signature need two patched sites.
+     * @param content The patched content, between index 0 and its limit
+     * @param patches The patches that should have been applied
+     * @param name The name of the content, for the descriptions of any problems
+     * @return A description of each patch whose site wasn't found, empty if they all were
+     */
+    public static List<String> verify(final ByteBuffer content, final List<BinaryPatch> patches, final String name) {
+        final List<String> problems = new ArrayList<>();
+        final Set<Integer> claimed = new HashSet<>();
+
+        for (BinaryPatch patch : patches) {
+            final ByteSignature patched = patch.getPatchedSignature();
+            final long hint = patch.getHint();
+            int site = -1;
+
+            if (hint >= patch.getSiteOffset() && hint <= Integer.MAX_VALUE
+                    && patched.matchesAt(content, (int) hint - patch.getSiteOffset())
+                    && !claimed.contains((int) hint)) {
+                site = (int) hint;
+            } else {
+                for (int found : patched.findAll(content)) {
+                    if (!claimed.contains(found + patch.getSiteOffset())) {
+                        site = found + patch.getSiteOffset();
+                        break;
+                    }
+                }
+            }
+
+            if (site < 0) {
+                problems.add(String.format("%s has no patched site for %s", name, patch.getDescription()));
+            } else {
+                claimed.add(site);
+            }
+        }
+
+        return problems;
+    }
+
+    /**
+     * Find where a patch goes, and check that the original bytes are there. The hinted site is
+     * only taken when the whole signature is there, not just the bytes being replaced, and no site
+     * is taken that another patch has already claimed.
+     * @param content The content being patched
+     * @param patch The patch to locate
+     * @param name The name of the content, for error messages
+     * @param claimed The sites already taken by other patches of the same content
+     * @return The index the replacement bytes get written at
+     * @throws IOException If the site can't be found, doesn't hold the original bytes, or is
+     *                     already claimed
+     */
+    public static int locate(final ByteBuffer content, final BinaryPatch patch, final String name,
+                             final Set<Integer> claimed) throws IOException {
+        final long hint = patch.getHint();
+        final boolean hintValid = (hint >= patch.getSiteOffset()) && (hint <= Integer.MAX_VALUE)
+                && patch.getSignature().matchesAt(content, (int) hint - patch.getSiteOffset())
+                && !claimed.contains((int) hint);
+
+        // the known site wins whenever its signature checks out; the signature is only scanned
+        // for when it doesn't, e.g. on a firmware revision that has moved things around
+        if (hintValid) {
+            return (int) hint;
+        }
+
+        final List<Integer> found = patch.getSignature().findAll(content);
+
+        if (patch.getOccurrence() >= found.size()) {
+            throw new IOException(String.format("Found %d occurrence(s) of the signature for %s in %s, needed %d",
+                    found.size(), patch.getDescription(), name, patch.getOccurrence() + 1));
+        }
+
+        final int site = found.get(patch.getOccurrence()) + patch.getSiteOffset();
+
+        if (claimed.contains(site)) {
+            throw new IOException(String.format("The site at 0x%X for %s in %s is already patched by another patch",
+                    site, patch.getDescription(), name));
+        }
+
+        if (!holds(content, site, patch.getOriginal())) {
+            throw new IOException(String.format("Unexpected bytes at 0x%X for %s in %s",
+                    site, patch.getDescription(), name));
+        }
+
+        return site;
+    }
+
+    /**
+     * Whether the given bytes are at the given index.
+     * @param content The content to check
+     * @param position The index to check at
+     * @param expected The bytes expected there
+     * @return True if every byte matches
+     */
+    public static boolean holds(final ByteBuffer content, final int position, final byte[] expected) {
+        if (position < 0 || position + expected.length > content.limit()) {
+            return false;
+        }
+
+        for (int i = 0; i < expected.length; i++) {
+            if (content.get(position + i) != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+package com.teamzebra.snesclassic.patching;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A byte string to look for within a binary, searched for with Boyer-Moore-Horspool so that most
+ * of the binary is skipped over rather than compared byte by byte.
+ */
+public final class ByteSignature {
+
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    public ByteSignature(final byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Can't search for an empty signature");
+        }
+
+        this.pattern = pattern.clone();
+        Arrays.fill(shift, pattern.length);
+
+        for (int i = 0; i < pattern.length - 1; i++) {
+            shift[pattern[i] & 0xFF] = pattern.length - 1 - i;
+        }
+    }
+
+    /**
+     * @return The length of the signature in bytes
+     */
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Find the next occurrence of the signature.
+     * @param haystack The bytes to search, between index 0 and the buffer's limit
+     * @param from The index to start searching at
+     * @return The index of the occurrence, or -1 if there are none
+     */
+    public int indexOf(final ByteBuffer haystack, final int from) {
+        final int last = pattern.length - 1;
+        final int end = haystack.limit() - pattern.length;
+        int position = Math.max(from, 0);
+
+        while (position <= end) {
+            int i = last;
+
+            while (haystack.get(position + i) == pattern[i]) {
+                if (i == 0) {
+                    return position;
+                }
+                i--;
+            }
+
+            position += shift[haystack.get(position + last) & 0xFF];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Whether the signature is at the given index.
+     * @param haystack The bytes to check, between index 0 and the buffer's limit
+     * @param position The index to check at
+     * @return True if every byte of the signature matches there
+     */
+    public boolean matchesAt(final ByteBuffer haystack, final int position) {
+        if (position < 0 || position > haystack.limit() - pattern.length) {
+            return false;
+        }
+
+        for (int i = 0; i < pattern.length; i++) {
+            if (haystack.get(position + i) != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Find every occurrence of the signature, including overlapping ones.
+     * @param haystack The bytes to search, between index 0 and the buffer's limit
+     * @return The indices of the occurrences, in ascending order
+     */
+    public List<Integer> findAll(final ByteBuffer haystack) {
+        final List<Integer> found = new ArrayList<>();
+        int position = indexOf(haystack, 0);
+
+        while (position >= 0) {
+            found.add(position);
+            position = indexOf(haystack, position + 1);
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,334 @@
+package com.teamzebra.snesclassic.patching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces any number of literal byte strings in a single linear pass, using an Aho-Corasick
+ * automaton compiled once up front.
+ *
+ * Matching is leftmost-longest and non-overlapping: at each point the earliest starting key wins,
+ * ties go to the longer key, and scanning carries on after the replaced text. Replacements are
+ * never rescanned, so one substitution can't feed another. Keys are plain literals, so characters
+ * like '.' mean nothing special.
+ */
+public final class MultiLiteralReplacer {
+
+    private static final int ALPHABET = 256;
+
+    /**
+     * The automaton's transition table, flattened: the next state from state s on byte b is at
+     * s * 256 + b.
+     */
+    private final int[] transitions;
+
+    /**
+     * The length of the longest trie path ending at each state, i.e. how far back a match could
+     * still start.
+     */
+    private final int[] depth;
+
+    /**
+     * The length of the longest key that ends at each state, or 0 if none does.
+     */
+    private final int[] matchLength;
+
+    /**
+     * The replacement for that longest key.
+     */
+    private final byte[][] replacement;
+
+    /**
+     * Compile the given substitutions, treating the keys and values as UTF-8 text.
+     * @param substitutions The strings to replace and their replacements
+     */
+    public MultiLiteralReplacer(final Map<String, String> substitutions) {
+        final List<byte[]> keys = new ArrayList<>(substitutions.size());
+        final List<byte[]> values = new ArrayList<>(substitutions.size());
+
+        for (Map.Entry<String, String> entry : substitutions.entrySet()) {
+            keys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            values.add(entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // build the trie, one state per distinct key prefix
+        final List<int[]> trie = new ArrayList<>();
+        final List<Integer> depths = new ArrayList<>();
+        final List<byte[]> outputs = new ArrayList<>();
+        trie.add(newRow());
+        depths.add(0);
+        outputs.add(null);
+
+        for (int k = 0; k < keys.size(); k++) {
+            final byte[] key = keys.get(k);
+
+            if (key.length == 0) {
+                throw new IllegalArgumentException("Can't substitute an empty string");
+            }
+
+            int state = 0;
+
+            for (byte b : key) {
+                final int c = b & 0xFF;
+
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newRow());
+                    depths.add(depths.get(state) + 1);
+                    outputs.add(null);
+                }
+
+                state = trie.get(state)[c];
+            }
+
+            outputs.set(state, values.get(k));
+        }
+
+        final int states = trie.size();
+        transitions = new int[states * ALPHABET];
+        depth = new int[states];
+        matchLength = new int[states];
+        replacement = new byte[states][];
+
+        for (int s = 0; s < states; s++) {
+            depth[s] = depths.get(s);
+
+            if (outputs.get(s) != null) {
+                matchLength[s] = depth[s];
+                replacement[s] = outputs.get(s);
+            }
+        }
+
+        // breadth-first over the trie, filling in failure transitions and inherited matches
+        final int[] fail = new int[states];
+        final Deque<Integer> queue = new ArrayDeque<>();
+
+        for (int c = 0; c < ALPHABET; c++) {
+            final int child = trie.get(0)[c];
+            transitions[c] = Math.max(child, 0);
+
+            if (child > 0) {
+                queue.add(child);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            final int s = queue.poll();
+
+            if (matchLength[s] == 0) {
+                matchLength[s] = matchLength[fail[s]];
+                replacement[s] = replacement[fail[s]];
+            }
+
+            for (int c = 0; c < ALPHABET; c++) {
+                final int child = trie.get(s)[c];
+
+                if (child >= 0) {
+                    fail[child] = transitions[fail[s] * ALPHABET + c];
+                    transitions[s * ALPHABET + c] = child;
+                    queue.add(child);
+                } else {
+                    transitions[s * ALPHABET + c] = transitions[fail[s] * ALPHABET + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the substitutions to the given content.
+     * @param content The content to patch
+     * @return The patched content; the same array is handed back if nothing matched
+     */
+    public byte[] apply(final byte[] content) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 64);
+
+        try {
+            if (apply(content, 0, content.length, out) == 0) {
+                return content;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply the substitutions to a range of bytes, writing the result to the given stream.
+     * @param content The content to patch
+     * @param offset Where in the array the content starts
+     * @param length How many bytes of content there are
+     * @param out Where to write the patched content
+     * @return How many substitutions were made
+     * @throws IOException If writing to the stream fails
+     */
+    public int apply(final byte[] content, final int offset, final int length, final OutputStream out)
+            throws IOException {
+        return scan(ByteBuffer.wrap(content), offset, offset + length, new Emitter() {
+            @Override
+            public void copy(final int from, final int to) throws IOException {
+                out.write(content, from, to - from);
+            }
+
+            @Override
+            public void replace(final byte[] replacement) throws IOException {
+                out.write(replacement);
+            }
+        });
+    }
+
+    /**
+     * Work out how long some content will be once the substitutions are applied, so that a buffer
+     * of the right size can be set aside for {@link #apply(ByteBuffer, ByteBuffer)}.
+     * @param content The content to patch, between its position and limit; left as it was
+     * @return The length of the patched content, or -1 if nothing matches
+     */
+    public int measure(final ByteBuffer content) {
+        final Measurement measurement = new Measurement();
+        return (scanUnchecked(content, measurement) == 0) ? -1 : measurement.length;
+    }
+
+    /**
+     * Apply the substitutions to content in a buffer, writing the result to another buffer.
+     * @param content The content to patch, between its position and limit; left as it was
+     * @param out Where to put the patched content, from its position on
+     * @return How many substitutions were made
+     * @throws java.nio.BufferOverflowException If the patched content doesn't fit
+     */
+    public int apply(final ByteBuffer content, final ByteBuffer out) {
+        return scanUnchecked(content, new Emitter() {
+            @Override
+            public void copy(final int from, final int to) {
+                final ByteBuffer range = content.duplicate();
+                range.limit(to).position(from);
+                out.put(range);
+            }
+
+            @Override
+            public void replace(final byte[] replacement) {
+                out.put(replacement);
+            }
+        });
+    }
+
+    private int scanUnchecked(final ByteBuffer content, final Emitter emitter) {
+        try {
+            return scan(content, content.position(), content.limit(), emitter);
+        } catch (IOException e) {
+            // only streams throw, and these emitters don't write to one
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Run the automaton over a range of bytes, handing the unmatched stretches and the replacements
+     * to the emitter in order.
+     * @param content The content to patch
+     * @param offset Where in the buffer the content starts
+     * @param end Where in the buffer the content ends
+     * @param emitter Receives the patched content
+     * @return How many substitutions were made
+     * @throws IOException If the emitter fails
+     */
+    private int scan(final ByteBuffer content, final int offset, final int end, final Emitter emitter)
+            throws IOException {
+        int emitted = offset;
+        int position = offset;
+        int state = 0;
+        int bestStart = -1;
+        int bestLength = 0;
+        byte[] bestReplacement = null;
+        int count = 0;
+
+        while (true) {
+            if (position < end) {
+                state = transitions[state * ALPHABET + (content.get(position) & 0xFF)];
+                position++;
+
+                final int found = matchLength[state];
+
+                if (found > 0) {
+                    final int start = position - found;
+
+                    if ((bestStart < 0) || (start < bestStart) || ((start == bestStart) && (found > bestLength))) {
+                        bestStart = start;
+                        bestLength = found;
+                        bestReplacement = replacement[state];
+                    }
+                }
+
+                // a match could still begin as early as (position - depth), so the best match so far
+                // is only final once it starts before that
+                if ((bestStart < 0) || (bestStart >= position - depth[state])) {
+                    continue;
+                }
+            } else if (bestStart < 0) {
+                break;
+            }
+
+            emitter.copy(emitted, bestStart);
+            emitter.replace(bestReplacement);
+            emitted = bestStart + bestLength;
+            position = emitted;
+            state = 0;
+            bestStart = -1;
+            count++;
+        }
+
+        emitter.copy(emitted, end);
+        return count;
+    }
+
+    private static int[] newRow() {
+        final int[] row = new int[ALPHABET];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    /**
+     * Receives the patched content as it's worked out.
+     */
+    private interface Emitter {
+
+        /**
+         * @param from Where the unchanged stretch of content starts
+         * @param to Where it ends
+         * @throws IOException
+         */
+        void copy(int from, int to) throws IOException;
+
+        /**
+         * @param replacement The replacement for a matched key
+         * @throws IOException
+         */
+        void replace(byte[] replacement) throws IOException;
+    }
+
+    /**
+     * Adds up the length of the patched content without putting it anywhere.
+     */
+    private static final class Measurement implements Emitter {
+
+        private int length;
+
+        @Override
+        public void copy(final int from, final int to) {
+            length += to - from;
+        }
+
+        @Override
+        public void replace(final byte[] replacement) {
+            length += replacement.length;
+        }
+    }
+}
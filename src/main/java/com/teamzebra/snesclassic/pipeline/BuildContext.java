@@ -0,0 +1,104 @@
+package com.teamzebra.snesclassic.pipeline;
+
+import com.teamzebra.snesclassic.firmware.FirmwareProfile;
+
+import java.io.File;
+
+/**
+ * Everything one HMOD build works on: where the dump and the HMOD live, and which dump and
+ * firmware release were picked. Stages read and write the build's state through this rather
+ * than through globals, so several builds can run side by side.
+ */
+public class BuildContext {
+
+    /**
+     * The resource written once the dump file and firmware profile are known.
+     */
+    public static final String DUMP_DETECTED = "context/dump";
+
+    /**
+     * The resource covering everything in the HMOD folder.
+     */
+    public static final String HMOD = "hmod";
+
+    private final File dumpFolder;
+    private final File hmodFolder;
+
+    private volatile File dumpFile;
+    private volatile FirmwareProfile firmwareProfile;
+
+    /**
+     * @param dumpFolder The folder the NESC dump is found and extracted in
+     * @param hmodFolder The HMOD folder that is built
+     */
+    public BuildContext(final File dumpFolder, final File hmodFolder) {
+        this.dumpFolder = dumpFolder;
+        this.hmodFolder = hmodFolder;
+    }
+
+    /**
+     * The name stages use for a path within the dump folder in their inputs and outputs.
+     * @param path The path relative to the dump folder
+     * @return The resource name
+     */
+    public static String dumpResource(final String path) {
+        return "dump/" + path;
+    }
+
+    /**
+     * The name stages use for a path within the HMOD folder in their inputs and outputs.
+     * @param path The path relative to the HMOD folder
+     * @return The resource name
+     */
+    public static String hmodResource(final String path) {
+        return HMOD + "/" + path;
+    }
+
+    public File getDumpFolder() {
+        return dumpFolder;
+    }
+
+    public File getHmodFolder() {
+        return hmodFolder;
+    }
+
+    /**
+     * @param path A path relative to the dump folder
+     * @return The file at that path
+     */
+    public File resolveDumpPath(final String path) {
+        return new File(dumpFolder, path);
+    }
+
+    /**
+     * @param path A path relative to the HMOD folder
+     * @return The file at that path
+     */
+    public File resolveHmodPath(final String path) {
+        return new File(hmodFolder, path);
+    }
+
+    /**
+     * @return The NESC dump archive being built from, or null until it has been detected
+     */
+    public File getDumpFile() {
+        return dumpFile;
+    }
+
+    /**
+     * @return The firmware release in the dump, or null until it has been detected
+     */
+    public FirmwareProfile getFirmwareProfile() {
+        return firmwareProfile;
+    }
+
+    /**
+     * Record which dump is being built from.
+     * @param dumpFile The NESC dump archive
+     * @param firmwareProfile The firmware release in it
+     */
+    public void setDump(final File dumpFile, final FirmwareProfile firmwareProfile) {
+        this.dumpFile = dumpFile;
+        this.firmwareProfile = firmwareProfile;
+    }
+}
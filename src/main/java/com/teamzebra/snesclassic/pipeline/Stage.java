@@ -0,0 +1,97 @@
+package com.teamzebra.snesclassic.pipeline;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * One step of a build, together with the resources it reads and writes. Resources are
+ * slash-separated names such as "dump/usr/bin/kachikachi" or "hmod/etc/nesgames", and a resource
+ * covers everything beneath it, so a stage writing "hmod/etc/nesgames" conflicts with one reading
+ * "hmod/etc/nesgames/CLV-P-NAAAE/CLV-P-NAAAE.desktop".
+ */
+public final class Stage {
+
+    /**
+     * The work a stage does.
+     */
+    @FunctionalInterface
+    public interface Action {
+        void run(BuildContext context) throws IOException;
+    }
+
+    private final String name;
+    private final Set<String> inputs;
+    private final Set<String> outputs;
+    private final Action action;
+
+    /**
+     * @param name A name for the stage, unique within its graph
+     * @param inputs The resources the stage reads
+     * @param outputs The resources the stage writes
+     * @param action The work the stage does
+     */
+    public Stage(final String name, final Collection<String> inputs, final Collection<String> outputs,
+                 final Action action) {
+        this.name = name;
+        this.inputs = ImmutableSet.copyOf(inputs);
+        this.outputs = ImmutableSet.copyOf(outputs);
+        this.action = action;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Set<String> getInputs() {
+        return inputs;
+    }
+
+    public Set<String> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Run the stage.
+     * @param context The build the stage belongs to
+     * @throws IOException
+     */
+    public void run(final BuildContext context) throws IOException {
+        action.run(context);
+    }
+
+    /**
+     * Whether this stage has to wait for the given stage, which was added to the graph before it:
+     * either it reads or writes something the earlier stage writes, or it writes something the
+     * earlier stage reads.
+     * @param earlier A stage added to the graph before this one
+     * @return True if the two can't run at the same time
+     */
+    public boolean conflictsWith(final Stage earlier) {
+        return overlaps(earlier.outputs, inputs) || overlaps(earlier.outputs, outputs)
+                || overlaps(earlier.inputs, outputs);
+    }
+
+    private static boolean overlaps(final Set<String> first, final Set<String> second) {
+        for (String a : first) {
+            for (String b : second) {
+                if (covers(a, b) || covers(b, a)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean covers(final String resource, final String other) {
+        return other.equals(resource) || other.startsWith(resource + "/");
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,179 @@
+package com.teamzebra.snesclassic.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the stages of a graph, starting each one as soon as everything it depends on has finished,
+ * with at most a fixed number running at once. Stages run on virtual threads on JVMs that have them,
+ * and on a fixed pool of platform threads otherwise. If a stage fails, nothing new is started, the
+ * stages already running are left to finish, and the first failure is rethrown.
+ */
+public class StageExecutor implements Closeable {
+
+    private final int parallelism;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    /**
+     * @param parallelism The most stages to run at once
+     */
+    public StageExecutor(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+
+        final ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = (virtual != null);
+        this.executor = virtualThreads ? virtual : Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            final Thread thread = new Thread(runnable, "build-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Virtual threads only exist from Java 21 on, while we build for Java 8, so look them up reflectively.
+     * @return An executor starting a virtual thread per task, or null if the JVM doesn't have them
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return A description of what the stages run on, for progress messages
+     */
+    public String describe() {
+        return String.format("%d %s%s", parallelism, virtualThreads ? "virtual thread" : "thread",
+                parallelism == 1 ? "" : "s");
+    }
+
+    /**
+     * Run every stage of the graph.
+     * @param graph The stages to run
+     * @param context The build the stages belong to
+     * @return How long each stage took, in nanoseconds, in the order they finished
+     * @throws IOException The first failure of any stage
+     */
+    public Map<Stage, Long> run(final StageGraph graph, final BuildContext context) throws IOException {
+        final CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+        final Map<Stage, Integer> waitingOn = new HashMap<>();
+        final Deque<Stage> ready = new ArrayDeque<>();
+        final Map<Stage, Long> durations = new LinkedHashMap<>();
+        Throwable failure = null;
+        int running = 0;
+
+        for (Stage stage : graph.getStages()) {
+            final int dependencies = graph.getDependencies(stage).size();
+            waitingOn.put(stage, dependencies);
+
+            if (dependencies == 0) {
+                ready.add(stage);
+            }
+        }
+
+        while (true) {
+            while (failure == null && running < parallelism && !ready.isEmpty()) {
+                final Stage stage = ready.removeFirst();
+                completion.submit(() -> runStage(stage, context));
+                running++;
+            }
+
+            if (running == 0) {
+                break;
+            }
+
+            final Result result;
+
+            try {
+                result = completion.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted while running %s", graph.getName()));
+            } catch (ExecutionException e) {
+                // runStage() catches everything the stage throws
+                throw new IllegalStateException(e.getCause());
+            }
+
+            running--;
+
+            if (result.failure != null) {
+                if (failure == null) {
+                    failure = result.failure;
+                }
+                continue;
+            }
+
+            durations.put(result.stage, result.nanos);
+
+            for (Stage dependent : graph.getDependents(result.stage)) {
+                if (waitingOn.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        if (failure != null) {
+            rethrow(failure);
+        }
+
+        return durations;
+    }
+
+    private static Result runStage(final Stage stage, final BuildContext context) {
+        final long start = System.nanoTime();
+
+        try {
+            stage.run(context);
+            return new Result(stage, System.nanoTime() - start, null);
+        } catch (Throwable t) {
+            return new Result(stage, System.nanoTime() - start, t);
+        }
+    }
+
+    /**
+     * Throw a stage's failure on the calling thread as it was thrown, so that I/O errors and the
+     * messages meant for the user come out the same as when everything ran on one thread.
+     */
+    private static void rethrow(final Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+
+        throw new IOException(failure);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static final class Result {
+        private final Stage stage;
+        private final long nanos;
+        private final Throwable failure;
+
+        private Result(final Stage stage, final long nanos, final Throwable failure) {
+            this.stage = stage;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+    }
+}
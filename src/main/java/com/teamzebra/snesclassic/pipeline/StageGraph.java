@@ -0,0 +1,150 @@
+package com.teamzebra.snesclassic.pipeline;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The stages of a build and the order they have to run in. Nothing is declared by hand: a stage
+ * depends on every stage added before it whose inputs or outputs conflict with its own, so the
+ * order stages are added in is the order they'd run in one at a time, and anything that doesn't
+ * conflict is free to run alongside.
+ */
+public class StageGraph {
+
+    private final String name;
+    private final Map<Stage, List<Stage>> dependencies = new LinkedHashMap<>();
+    private final Map<Stage, List<Stage>> dependents = new HashMap<>();
+    private final Set<String> names = new HashSet<>();
+
+    /**
+     * @param name A name for the graph, for progress messages
+     */
+    public StageGraph(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add a stage after all the stages added so far.
+     * @param stage The stage to add
+     * @return The stage
+     */
+    public Stage add(final Stage stage) {
+        if (!names.add(stage.getName())) {
+            throw new IllegalArgumentException(String.format("Duplicate stage '%s' in %s", stage.getName(), name));
+        }
+
+        final List<Stage> stageDependencies = new ArrayList<>();
+
+        for (Stage earlier : dependencies.keySet()) {
+            if (stage.conflictsWith(earlier)) {
+                stageDependencies.add(earlier);
+                dependents.get(earlier).add(stage);
+            }
+        }
+
+        dependencies.put(stage, stageDependencies);
+        dependents.put(stage, new ArrayList<>());
+        return stage;
+    }
+
+    /**
+     * @return Every stage, in the order they were added
+     */
+    public List<Stage> getStages() {
+        return ImmutableList.copyOf(dependencies.keySet());
+    }
+
+    /**
+     * @param stage A stage in the graph
+     * @return The stages that have to finish before the given one can start
+     */
+    public List<Stage> getDependencies(final Stage stage) {
+        return Collections.unmodifiableList(dependencies.get(stage));
+    }
+
+    /**
+     * @param stage A stage in the graph
+     * @return The stages waiting on the given one
+     */
+    public List<Stage> getDependents(final Stage stage) {
+        return Collections.unmodifiableList(dependents.get(stage));
+    }
+
+    public int size() {
+        return dependencies.size();
+    }
+
+    /**
+     * Describe the graph, one line per stage with the stages it waits on.
+     * @return The lines of the description
+     */
+    public List<String> describe() {
+        final List<String> lines = new ArrayList<>();
+
+        for (Map.Entry<Stage, List<Stage>> entry : dependencies.entrySet()) {
+            final List<String> waitsOn = new ArrayList<>();
+
+            for (Stage dependency : entry.getValue()) {
+                waitsOn.add(dependency.getName());
+            }
+
+            lines.add(waitsOn.isEmpty() ? entry.getKey().getName()
+                    : String.format("%s <- %s", entry.getKey().getName(), String.join(", ", waitsOn)));
+        }
+
+        return lines;
+    }
+
+    /**
+     * Find the chain of dependent stages that took the longest in total, which bounds how quickly
+     * the graph can run however many threads it gets.
+     * @param durations How long each stage took, in any unit
+     * @return The stages on the critical path, first to last
+     */
+    public List<Stage> getCriticalPath(final Map<Stage, Long> durations) {
+        final Map<Stage, Long> finish = new HashMap<>();
+        final Map<Stage, Stage> previous = new HashMap<>();
+        Stage last = null;
+
+        // stages were added after everything they depend on, so this is a topological order
+        for (Map.Entry<Stage, List<Stage>> entry : dependencies.entrySet()) {
+            final Stage stage = entry.getKey();
+            long start = 0;
+
+            for (Stage dependency : entry.getValue()) {
+                if (finish.get(dependency) > start) {
+                    start = finish.get(dependency);
+                    previous.put(stage, dependency);
+                }
+            }
+
+            final Long duration = durations.get(stage);
+            finish.put(stage, start + (duration == null ? 0 : duration));
+
+            if (last == null || finish.get(stage) > finish.get(last)) {
+                last = stage;
+            }
+        }
+
+        final List<Stage> path = new ArrayList<>();
+
+        for (Stage stage = last; stage != null; stage = previous.get(stage)) {
+            path.add(stage);
+        }
+
+        Collections.reverse(path);
+        return path;
+    }
+}
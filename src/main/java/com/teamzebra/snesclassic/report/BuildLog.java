@@ -0,0 +1,170 @@
+package com.teamzebra.snesclassic.report;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The progress messages of a run. Messages are handed to a background thread that writes them to
+ * the console through a buffer, so that stages reporting on thousands of files never wait on the
+ * terminal; the buffer is flushed whenever the thread catches up, so progress still shows as it
+ * happens. Messages about single files are only shown at {@link Verbosity#VERBOSE}, and their text
+ * isn't even formatted otherwise.
+ */
+public final class BuildLog {
+
+    /**
+     * How much gets shown.
+     */
+    public enum Verbosity {
+        /**
+         * Only warnings.
+         */
+        QUIET,
+        /**
+         * Progress through the steps of the build, and warnings.
+         */
+        NORMAL,
+        /**
+         * Everything, including a line for every file extracted, copied, patched or written.
+         */
+        VERBOSE
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final BlockingQueue<String> QUEUE = new LinkedBlockingQueue<>();
+    private static final Object PROGRESS = new Object();
+
+    private static volatile Verbosity verbosity = Verbosity.NORMAL;
+    private static Thread writer;
+    private static long queued;
+    private static long written;
+
+    private BuildLog() {
+    }
+
+    /**
+     * @param level How much to show from now on
+     */
+    public static void setVerbosity(final Verbosity level) {
+        verbosity = level;
+    }
+
+    /**
+     * @return Whether messages about single files are shown, for callers that would have to do work
+     *         just to describe them
+     */
+    public static boolean isVerbose() {
+        return verbosity == Verbosity.VERBOSE;
+    }
+
+    /**
+     * Report a step of the build.
+     * @param format The message, as for {@link String#format}
+     * @param args The arguments of the message
+     */
+    public static void info(final String format, final Object... args) {
+        if (verbosity != Verbosity.QUIET) {
+            enqueue(args.length == 0 ? format : String.format(format, args));
+        }
+    }
+
+    /**
+     * Report something that happened to a single file.
+     * @param format The message, as for {@link String#format}
+     * @param args The arguments of the message
+     */
+    public static void detail(final String format, final Object... args) {
+        if (verbosity == Verbosity.VERBOSE) {
+            enqueue(args.length == 0 ? format : String.format(format, args));
+        }
+    }
+
+    /**
+     * Report something the user should know about whatever the verbosity.
+     * @param format The message, as for {@link String#format}
+     * @param args The arguments of the message
+     */
+    public static void warn(final String format, final Object... args) {
+        enqueue(args.length == 0 ? format : String.format(format, args));
+    }
+
+    /**
+     * Wait until every message so far has reached the console, e.g. before an error is printed.
+     */
+    public static void flush() {
+        synchronized (PROGRESS) {
+            while (written < queued && writer != null && writer.isAlive()) {
+                try {
+                    PROGRESS.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void enqueue(final String message) {
+        synchronized (PROGRESS) {
+            if (writer == null) {
+                writer = new Thread(() -> drain(System.out), "build-log");
+                writer.setDaemon(true);
+                writer.start();
+            }
+
+            queued++;
+            QUEUE.add(message);
+        }
+    }
+
+    /**
+     * Write messages as they come, flushing each time the queue runs dry.
+     */
+    private static void drain(final PrintStream console) {
+        final Writer out = new BufferedWriter(new OutputStreamWriter(console), BUFFER_SIZE);
+        final List<String> batch = new ArrayList<>();
+
+        try {
+            while (true) {
+                batch.add(QUEUE.take());
+                QUEUE.drainTo(batch);
+
+                for (String message : batch) {
+                    out.write(message);
+                    out.write(System.lineSeparator());
+                }
+
+                // only when caught up, so the console isn't flushed once per message under load;
+                // anything queued meanwhile is counted already, so written can't reach queued
+                // without this flush having happened
+                if (QUEUE.isEmpty()) {
+                    out.flush();
+                }
+
+                synchronized (PROGRESS) {
+                    written += batch.size();
+
+                    if (written == queued) {
+                        PROGRESS.notifyAll();
+                    }
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException | IOException e) {
+            // nothing more can be shown; let anyone waiting on a flush go
+            synchronized (PROGRESS) {
+                writer = null;
+                PROGRESS.notifyAll();
+            }
+        }
+    }
+}
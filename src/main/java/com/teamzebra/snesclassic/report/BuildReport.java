@@ -0,0 +1,271 @@
+package com.teamzebra.snesclassic.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What a run did and how long it took, step by step: for each step, its wall time, the bytes read
+ * and written and files written during it ({@link IoCounters}), the resulting throughput, and the
+ * peak heap use. Steps that run a graph of stages also keep each stage's time and the critical path
+ * through them. The report is written out as JSON at the end of the run, so that build times can be
+ * tracked from one run to the next.
+ *
+ * Steps are expected to run one after another; a step's I/O is whatever happened between its
+ * start and end, on any thread.
+ */
+public class BuildReport {
+
+    private static final double MIB = 1024.0 * 1024.0;
+
+    private final String tool;
+    private final List<String> options;
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private final List<Step> steps = new ArrayList<>();
+    private long endNanos;
+    private String status = "running";
+    private String error;
+
+    /**
+     * @param tool The name and version of the tool
+     * @param options The command line options the run was started with
+     */
+    public BuildReport(final String tool, final List<String> options) {
+        this.tool = tool;
+        this.options = new ArrayList<>(options);
+    }
+
+    /**
+     * Record something about the run, such as the dump it built from.
+     * @param name The name of the attribute
+     * @param value Its value
+     */
+    public synchronized void setAttribute(final String name, final String value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * Start timing a step.
+     * @param name The name of the step
+     * @return The step, to {@link Step#end()} when it's done
+     */
+    public synchronized Step begin(final String name) {
+        final Step step = new Step(name);
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Mark the run as finished.
+     * @param failure Why the run failed, or null if it succeeded
+     */
+    public synchronized void finish(final Throwable failure) {
+        endNanos = System.nanoTime();
+        status = (failure == null) ? "succeeded" : "failed";
+        error = (failure == null) ? null : String.valueOf(failure.getMessage());
+
+        for (Step step : steps) {
+            if (step.endNanos == 0) {
+                step.end();
+            }
+        }
+    }
+
+    /**
+     * @return One line per step summarizing it, for the console
+     */
+    public synchronized List<String> summarize() {
+        final List<String> lines = new ArrayList<>();
+
+        for (Step step : steps) {
+            lines.add(step.toString());
+        }
+
+        return lines;
+    }
+
+    /**
+     * Write the report as JSON, replacing the file in one go so that a reader never sees half of it.
+     * @param file Where to write the report
+     * @throws IOException
+     */
+    public synchronized void write(final File file) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+
+        if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException(String.format("Couldn't create directory %s", parent));
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+
+        try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            final JsonWriter json = new JsonWriter(out);
+            json.beginObject();
+            json.field("tool", tool);
+            json.name("options").beginArray();
+
+            for (String option : options) {
+                json.value(option);
+            }
+
+            json.endArray();
+            json.field("started", started.toString());
+            json.field("status", status);
+            json.field("error", error);
+            json.field("wallMs", (endNanos - startNanos) / 1000000);
+            json.name("attributes").beginObject();
+
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                json.field(attribute.getKey(), attribute.getValue());
+            }
+
+            json.endObject();
+            json.name("steps").beginArray();
+
+            for (Step step : steps) {
+                step.write(json);
+            }
+
+            json.endArray();
+            json.endObject();
+            out.write(System.lineSeparator());
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Clear the peak use of each heap pool, so the next reading covers only what comes after.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return The sum of the peak use of each heap pool since they were last reset, which is at
+     *         least, and usually close to, the peak use of the heap as a whole
+     */
+    private static long readPeakHeap() {
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    private static double perSecond(final long bytes, final long nanos) {
+        return (nanos <= 0) ? 0 : bytes / MIB / (nanos / 1e9);
+    }
+
+    /**
+     * One step of a run.
+     */
+    public static final class Step {
+
+        private final String name;
+        private final long startNanos;
+        private final long startRead;
+        private final long startWritten;
+        private final long startFiles;
+        private final Map<String, Long> stages = new LinkedHashMap<>();
+        private List<String> criticalPath = Collections.emptyList();
+        private long endNanos;
+        private long bytesRead;
+        private long bytesWritten;
+        private long filesWritten;
+        private long peakHeap;
+
+        private Step(final String name) {
+            this.name = name;
+            resetPeakHeap();
+            this.startRead = IoCounters.getBytesRead();
+            this.startWritten = IoCounters.getBytesWritten();
+            this.startFiles = IoCounters.getFilesWritten();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Record the stages the step ran.
+         * @param durations How long each stage took, in nanoseconds
+         * @param path The names of the stages on the critical path, in order
+         */
+        public synchronized void addStages(final Map<String, Long> durations, final List<String> path) {
+            stages.putAll(durations);
+            criticalPath = new ArrayList<>(path);
+        }
+
+        /**
+         * Stop timing the step.
+         */
+        public synchronized void end() {
+            endNanos = System.nanoTime();
+            bytesRead = IoCounters.getBytesRead() - startRead;
+            bytesWritten = IoCounters.getBytesWritten() - startWritten;
+            filesWritten = IoCounters.getFilesWritten() - startFiles;
+            peakHeap = readPeakHeap();
+        }
+
+        private synchronized void write(final JsonWriter json) throws IOException {
+            final long nanos = endNanos - startNanos;
+            json.beginObject();
+            json.field("name", name);
+            json.field("wallMs", nanos / 1000000);
+            json.field("bytesRead", bytesRead);
+            json.field("bytesWritten", bytesWritten);
+            json.field("filesWritten", filesWritten);
+            json.field("readMiBPerSecond", perSecond(bytesRead, nanos));
+            json.field("writeMiBPerSecond", perSecond(bytesWritten, nanos));
+            json.field("peakHeapBytes", peakHeap);
+            json.name("stages").beginArray();
+
+            for (Map.Entry<String, Long> stage : stages.entrySet()) {
+                json.beginObject();
+                json.field("name", stage.getKey());
+                json.field("wallMs", stage.getValue() / 1000000);
+                json.endObject();
+            }
+
+            json.endArray();
+            json.name("criticalPath").beginArray();
+
+            for (String stage : criticalPath) {
+                json.value(stage);
+            }
+
+            json.endArray();
+            json.endObject();
+        }
+
+        @Override
+        public synchronized String toString() {
+            final long nanos = endNanos - startNanos;
+            return String.format(Locale.ROOT, "%s: %d ms, %d files, %.1f MiB read (%.1f MiB/s), "
+                    + "%.1f MiB written (%.1f MiB/s), peak heap %.0f MiB", name, nanos / 1000000, filesWritten,
+                    bytesRead / MIB, perSecond(bytesRead, nanos), bytesWritten / MIB,
+                    perSecond(bytesWritten, nanos), peakHeap / MIB);
+        }
+    }
+}
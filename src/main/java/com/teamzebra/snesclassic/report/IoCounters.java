@@ -0,0 +1,79 @@
+package com.teamzebra.snesclassic.report;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of the file I/O done by a run, added to wherever files are read and written, and
+ * sampled by {@link BuildReport} at the start and end of each step. The totals are shared by every
+ * thread, and cheap to add to from many of them at once.
+ */
+public final class IoCounters {
+
+    private static final LongAdder BYTES_READ = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+    private static final LongAdder FILES_WRITTEN = new LongAdder();
+
+    private IoCounters() {
+    }
+
+    /**
+     * @param bytes How many bytes were just read from disk
+     */
+    public static void read(final long bytes) {
+        BYTES_READ.add(bytes);
+    }
+
+    /**
+     * Count a file written, copied or linked.
+     * @param bytes How many bytes were written to disk for it
+     */
+    public static void wroteFile(final long bytes) {
+        BYTES_WRITTEN.add(bytes);
+        FILES_WRITTEN.increment();
+    }
+
+    /**
+     * @param in A stream reading from a file
+     * @return The same stream, counting the bytes read through it
+     */
+    public static InputStream counting(final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+
+                if (b != -1) {
+                    BYTES_READ.increment();
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                final int read = super.read(buffer, offset, length);
+
+                if (read > 0) {
+                    BYTES_READ.add(read);
+                }
+
+                return read;
+            }
+        };
+    }
+
+    public static long getBytesRead() {
+        return BYTES_READ.sum();
+    }
+
+    public static long getBytesWritten() {
+        return BYTES_WRITTEN.sum();
+    }
+
+    public static long getFilesWritten() {
+        return FILES_WRITTEN.sum();
+    }
+}
@@ -0,0 +1,151 @@
+package com.teamzebra.snesclassic.report;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Just enough of a JSON writer for the run report: nested objects and arrays of strings and
+ * numbers, pretty printed with two spaces per level.
+ */
+final class JsonWriter {
+
+    private final Writer out;
+
+    /**
+     * For each object or array being written, whether anything has been written to it yet.
+     */
+    private final Deque<Boolean> nonEmpty = new ArrayDeque<>();
+    private boolean afterName;
+
+    JsonWriter(final Writer out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    JsonWriter name(final String name) throws IOException {
+        separate();
+        string(name);
+        out.write(": ");
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(final String value) throws IOException {
+        separate();
+
+        if (value == null) {
+            out.write("null");
+        } else {
+            string(value);
+        }
+
+        return this;
+    }
+
+    JsonWriter value(final long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(final double value) throws IOException {
+        separate();
+        out.write(String.format(Locale.ROOT, "%.2f", value));
+        return this;
+    }
+
+    JsonWriter field(final String name, final String value) throws IOException {
+        return name(name).value(value);
+    }
+
+    JsonWriter field(final String name, final long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    JsonWriter field(final String name, final double value) throws IOException {
+        return name(name).value(value);
+    }
+
+    private JsonWriter open(final char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        nonEmpty.push(false);
+        return this;
+    }
+
+    private JsonWriter close(final char bracket) throws IOException {
+        if (nonEmpty.pop()) {
+            newLine();
+        }
+
+        out.write(bracket);
+        return this;
+    }
+
+    /**
+     * Put whatever comes before the next value: nothing after a name, otherwise a comma if it isn't
+     * the first in its object or array, and a new line.
+     */
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+
+        if (nonEmpty.isEmpty()) {
+            return;
+        }
+
+        if (nonEmpty.pop()) {
+            out.write(',');
+        }
+
+        nonEmpty.push(true);
+        newLine();
+    }
+
+    private void newLine() throws IOException {
+        out.write(System.lineSeparator());
+
+        for (int i = 0; i < nonEmpty.size(); i++) {
+            out.write("  ");
+        }
+    }
+
+    private void string(final String value) throws IOException {
+        out.write('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+
+        out.write('"');
+    }
+}
@@ -0,0 +1,313 @@
+package com.teamzebra.snesclassic.tarfiles;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.report.IoCounters;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A sidecar index into a .tar.gz archive, so that single entries can be read without decompressing
+ * everything before them. It holds a checkpoint every {@link #CHECKPOINT_SPACING} bytes or so of
+ * uncompressed data, from which decoding can be restarted, and the offset of every tar entry's data.
+ * Reading an entry decompresses at most the distance from the checkpoint before it, plus the entry.
+ *
+ * The index is built by a full pass over the archive that visits every entry as it goes, so it
+ * comes for free with the first build that has to read the whole dump anyway.
+ */
+public class GzipSeekIndex {
+
+    private static final String MAGIC = "gzip seek index v1";
+
+    /**
+     * Roughly how much uncompressed data lies between checkpoints. Each one costs up to 32 KiB of
+     * window in the index, before compression.
+     */
+    private static final long CHECKPOINT_SPACING = 1024 * 1024;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final String archiveKey;
+    private final List<Checkpoint> checkpoints;
+    private final List<Entry> entries;
+
+    private GzipSeekIndex(final String archiveKey, final List<Checkpoint> checkpoints, final List<Entry> entries) {
+        this.archiveKey = archiveKey;
+        this.checkpoints = ImmutableList.copyOf(checkpoints);
+        this.entries = ImmutableList.copyOf(entries);
+    }
+
+    /**
+     * Stream through the whole archive, handing each entry to the visitor in turn as
+     * {@link TarGzArchive#visitEntries(File, TarGzEntryVisitor)} does, and index it along the way.
+     * @param file The .tar.gz archive to read
+     * @param archiveKey Identifies this version of the archive, so a stale index is never used
+     * @param visitor The visitor to call for each entry
+     * @return The index of the archive
+     * @throws IOException If the archive can't be read or is corrupt, or the visitor fails
+     */
+    public static GzipSeekIndex build(final File file, final String archiveKey, final TarGzEntryVisitor visitor)
+            throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+
+        try (CheckpointInflaterInputStream inflater = new CheckpointInflaterInputStream(
+                IoCounters.counting(new FileInputStream(file)), CHECKPOINT_SPACING)) {
+            final TarArchiveInputStream tis = new TarArchiveInputStream(inflater);
+            TarArchiveEntry tarEntry;
+
+            while ((tarEntry = tis.getNextTarEntry()) != null) {
+                final Entry entry = new Entry(tarEntry.getName(), tis.getBytesRead(), tarEntry.getSize(),
+                        tarEntry.getMode(), linkFlag(tarEntry));
+                entries.add(entry);
+                visitor.visitEntry(entry.toTarEntry(), tis);
+            }
+
+            // read up to the gzip trailer, so that the checksum gets checked
+            ByteStreams.exhaust(inflater);
+            return new GzipSeekIndex(archiveKey, inflater.getCheckpoints(), entries);
+        }
+    }
+
+    /**
+     * Load an index written by {@link #save(File)}.
+     * @param file The index file
+     * @param archiveKey Identifies the version of the archive the index is wanted for
+     * @return The index, or null if there is no index file, or it's for another version of the archive
+     * @throws IOException
+     */
+    public static GzipSeekIndex load(final File file, final String archiveKey) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(
+                new FileInputStream(file), STREAM_BUFFER_SIZE)))) {
+            if (!MAGIC.equals(in.readUTF()) || !archiveKey.equals(in.readUTF())) {
+                return null;
+            }
+
+            final int checkpointCount = in.readInt();
+            final List<Checkpoint> checkpoints = new ArrayList<>(checkpointCount);
+
+            for (int i = 0; i < checkpointCount; i++) {
+                final long bitOffset = in.readLong();
+                final long uncompressedOffset = in.readLong();
+                final byte[] window = new byte[in.readInt()];
+                in.readFully(window);
+                checkpoints.add(new Checkpoint(bitOffset, uncompressedOffset, window));
+            }
+
+            final int entryCount = in.readInt();
+            final List<Entry> entries = new ArrayList<>(entryCount);
+
+            for (int i = 0; i < entryCount; i++) {
+                entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readByte()));
+            }
+
+            return checkpoints.isEmpty() ? null : new GzipSeekIndex(archiveKey, checkpoints, entries);
+        } catch (EOFException e) {
+            // cut short, most likely by an interrupted save; it'll be rebuilt
+            return null;
+        }
+    }
+
+    /**
+     * Write the index out, next to the archive it indexes.
+     * @param file The index file
+     * @throws IOException
+     */
+    public void save(final File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp.toPath()), STREAM_BUFFER_SIZE)))) {
+            out.writeUTF(MAGIC);
+            out.writeUTF(archiveKey);
+            out.writeInt(checkpoints.size());
+
+            for (Checkpoint checkpoint : checkpoints) {
+                out.writeLong(checkpoint.bitOffset);
+                out.writeLong(checkpoint.uncompressedOffset);
+                out.writeInt(checkpoint.window.length);
+                out.write(checkpoint.window);
+            }
+
+            out.writeInt(entries.size());
+
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.offset);
+                out.writeLong(entry.size);
+                out.writeInt(entry.mode);
+                out.writeByte(entry.linkFlag);
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Hand some of the archive's entries to the visitor, in archive order, reading each one from
+     * the nearest checkpoint before it.
+     * @param file The .tar.gz archive the index was built from
+     * @param matcher Tests the normalized name of each entry
+     * @param visitor The visitor to call for each matching entry
+     * @return How many entries were visited
+     * @throws IOException If the archive can't be read, or the visitor fails
+     */
+    public int visitEntries(final File file, final Predicate<String> matcher, final TarGzEntryVisitor visitor)
+            throws IOException {
+        int visited = 0;
+
+        for (Entry entry : entries) {
+            if (!matcher.test(TarGzArchive.normalizeEntryName(entry.name))) {
+                continue;
+            }
+
+            if (entry.size == 0) {
+                visitor.visitEntry(entry.toTarEntry(), new ByteArrayInputStream(new byte[0]));
+            } else {
+                try (InputStream content = openEntry(file, entry)) {
+                    visitor.visitEntry(entry.toTarEntry(), content);
+                }
+            }
+
+            visited++;
+        }
+
+        return visited;
+    }
+
+    /**
+     * Start reading an entry's data.
+     * @param file The .tar.gz archive the index was built from
+     * @param entry The entry to read
+     * @return The entry's data, and nothing after it
+     * @throws IOException
+     */
+    private InputStream openEntry(final File file, final Entry entry) throws IOException {
+        Checkpoint checkpoint = checkpoints.get(0);
+
+        for (Checkpoint candidate : checkpoints) {
+            if (candidate.uncompressedOffset > entry.offset) {
+                break;
+            }
+
+            checkpoint = candidate;
+        }
+
+        final InputStream in = IoCounters.counting(new FileInputStream(file));
+
+        try {
+            ByteStreams.skipFully(in, checkpoint.bitOffset / 8);
+            final InputStream data = CheckpointInflaterInputStream.resume(in, checkpoint);
+            ByteStreams.skipFully(data, entry.offset - checkpoint.uncompressedOffset);
+            return ByteStreams.limit(data, entry.size);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return How many entries the archive has
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static byte linkFlag(final TarArchiveEntry entry) {
+        if (entry.isDirectory()) {
+            return TarConstants.LF_DIR;
+        } else if (entry.isSymbolicLink()) {
+            return TarConstants.LF_SYMLINK;
+        } else if (entry.isLink()) {
+            return TarConstants.LF_LINK;
+        }
+
+        return TarConstants.LF_NORMAL;
+    }
+
+    /**
+     * A point between two deflate blocks from which decoding can start: its exact position in the
+     * compressed data, and the up to 32 KiB of uncompressed data before it that the next blocks
+     * may refer back to.
+     */
+    public static final class Checkpoint {
+
+        private final long bitOffset;
+        private final long uncompressedOffset;
+        private final byte[] window;
+
+        Checkpoint(final long bitOffset, final long uncompressedOffset, final byte[] window) {
+            this.bitOffset = bitOffset;
+            this.uncompressedOffset = uncompressedOffset;
+            this.window = window;
+        }
+
+        /**
+         * @return Where the checkpoint is in the gzip file, in bits from its start
+         */
+        public long getBitOffset() {
+            return bitOffset;
+        }
+
+        /**
+         * @return Where the checkpoint is in the uncompressed data
+         */
+        public long getUncompressedOffset() {
+            return uncompressedOffset;
+        }
+
+        byte[] getWindow() {
+            return window;
+        }
+    }
+
+    /**
+     * The tar header of one entry, and where its data starts in the uncompressed archive.
+     */
+    private static final class Entry {
+
+        private final String name;
+        private final long offset;
+        private final long size;
+        private final int mode;
+        private final byte linkFlag;
+
+        private Entry(final String name, final long offset, final long size, final int mode, final byte linkFlag) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.mode = mode;
+            this.linkFlag = linkFlag;
+        }
+
+        private TarEntry toTarEntry() {
+            final TarEntry entry = new TarEntry(name, linkFlag);
+            entry.setSize(size);
+            entry.setMode(mode);
+            return entry;
+        }
+    }
+}
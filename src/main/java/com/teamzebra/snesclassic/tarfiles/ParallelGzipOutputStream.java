@@ -0,0 +1,243 @@
+package com.teamzebra.snesclassic.tarfiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream that compresses independent blocks of its input on several threads at once,
+ * the same way pigz does. Each block is primed with the last 32 KiB of the block before it and ends
+ * on a sync flush, so the blocks concatenate into a single ordinary deflate stream that any gzip
+ * reader accepts, at very nearly the ratio of a single-threaded deflater.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+
+    /**
+     * How much input each compression job gets.
+     */
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * The size of the deflate window, and so of the dictionary carried over between blocks.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int FLAG_NAME = 0x08;
+
+    private static final byte[] GZIP_HEADER = new byte[] {
+            (byte) 0x1F, (byte) 0x8B,   // magic
+            Deflater.DEFLATED,          // compression method
+            0,                          // flags
+            0, 0, 0, 0,                 // modification time
+            0,                          // extra flags
+            (byte) 0xFF                 // operating system (unknown)
+    };
+
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final int level;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] dictionary;
+    private long totalIn;
+    private boolean closed;
+
+    /**
+     * @param out The stream to write the compressed data to
+     * @param threads How many blocks to compress at once
+     * @throws IOException
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int threads) throws IOException {
+        this(out, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out The stream to write the compressed data to
+     * @param threads How many blocks to compress at once
+     * @param level The deflate compression level
+     * @throws IOException
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int threads, final int level) throws IOException {
+        this(out, threads, level, null);
+    }
+
+    /**
+     * @param out The stream to write the compressed data to
+     * @param threads How many blocks to compress at once
+     * @param level The deflate compression level
+     * @param originalName The file name to record in the gzip header, as gzip does for the file it
+     *                     compressed, or null for none
+     * @throws IOException
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int threads, final int level,
+                                    final String originalName) throws IOException {
+        super(out);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            final Thread thread = new Thread(runnable, "gzip-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPendingBlocks = Math.max(1, threads) * 2;
+        this.level = level;
+
+        if (originalName == null) {
+            out.write(GZIP_HEADER);
+        } else {
+            final byte[] header = GZIP_HEADER.clone();
+            header[3] = FLAG_NAME;
+            out.write(header);
+            out.write(originalName.getBytes(StandardCharsets.ISO_8859_1));
+            out.write(0);
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        crc.update(b, off, len);
+        totalIn += len;
+
+        int position = off;
+        int remaining = len;
+
+        while (remaining > 0) {
+            final int chunk = Math.min(remaining, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, position, block, blockLength, chunk);
+            blockLength += chunk;
+            position += chunk;
+            remaining -= chunk;
+
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Blocks are only compressed once full, so this only flushes what has already been compressed.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Compress whatever is left, write the gzip trailer, and close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            submitBlock(true);
+
+            while (!pending.isEmpty()) {
+                writeOldestBlock();
+            }
+
+            writeIntLE(crc.getValue());
+            writeIntLE(totalIn);
+            out.flush();
+        } finally {
+            closed = true;
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] dict = dictionary;
+
+        // only the final block can be shorter than the dictionary, and nothing follows it
+        if (!last) {
+            dictionary = Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+        }
+
+        pending.addLast(executor.submit(() -> compress(input, length, dict, last)));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+
+        while (pending.size() > maxPendingBlocks) {
+            writeOldestBlock();
+        }
+    }
+
+    private byte[] compress(final byte[] input, final int length, final byte[] dict, final boolean last) {
+        final Deflater deflater = new Deflater(level, true);
+
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+
+            deflater.setInput(input, 0, length);
+
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] buffer = new byte[16 * 1024];
+
+            if (last) {
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int written;
+
+                do {
+                    written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, written);
+                } while (written == buffer.length);
+            }
+
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    private void writeIntLE(final long value) throws IOException {
+        out.write((int) (value & 0xFF));
+        out.write((int) ((value >> 8) & 0xFF));
+        out.write((int) ((value >> 16) & 0xFF));
+        out.write((int) ((value >> 24) & 0xFF));
+    }
+}
@@ -1,16 +1,18 @@
 package com.teamzebra.snesclassic.tarfiles;
 
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.report.IoCounters;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarInputStream;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -19,35 +21,90 @@ import java.util.zip.GZIPInputStream;
  */
 public class TarGzArchive {
 
+    /**
+     * Size of the buffers sitting between the file, the gzip decoder and the tar reader.
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final Map<String, byte[]> content;
 
+    /**
+     * Loads the whole archive into memory. Only suitable for small archives; use
+     * {@link #visitEntries(File, TarGzEntryVisitor)} to stream through large ones.
+     * @param file The .tar.gz archive to load
+     * @throws IOException
+     */
     public TarGzArchive(final File file) throws IOException {
         content = new HashMap<String, byte[]>();
 
-        try {
-            final FileInputStream fis = new FileInputStream(file);
-            final GZIPInputStream gis = new GZIPInputStream(fis);
-            final TarInputStream tis = new TarInputStream(gis);
+        visitEntries(file, (entry, entryContent) -> {
+            final String entryName = entry.getName();
+
+            if (entryName != null) {
+                // the header gives the size, so the content is read straight into an array of its own
+                final byte[] bytes = new byte[(int) entry.getSize()];
+                ByteStreams.readFully(entryContent, bytes);
+                content.put(entryName, bytes);
+            }
+        });
+    }
+
+    /**
+     * Stream through the given archive, handing each entry to the visitor in turn. Nothing is
+     * retained between entries, so memory use doesn't depend on the size of the archive.
+     * @param file The .tar.gz archive to read
+     * @param visitor The visitor to call for each entry
+     * @throws IOException If the archive can't be read, or the visitor fails
+     */
+    public static void visitEntries(final File file, final TarGzEntryVisitor visitor) throws IOException {
+        try (TarInputStream tis = new TarInputStream(new GZIPInputStream(new BufferedInputStream(
+                IoCounters.counting(new FileInputStream(file)), STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE))) {
+            TarEntry entry;
+
+            while ((entry = tis.getNextEntry()) != null) {
+                visitor.visitEntry(entry, tis);
+            }
+        }
+    }
 
+    /**
+     * Stream through the given archive until an entry matches, without reading any further.
+     * @param file The .tar.gz archive to read
+     * @param matcher Tests the normalized name of each entry
+     * @return The normalized name of the first matching entry, or null if none match
+     * @throws IOException
+     */
+    public static String findEntry(final File file, final Predicate<String> matcher) throws IOException {
+        try (TarInputStream tis = new TarInputStream(new GZIPInputStream(new BufferedInputStream(
+                IoCounters.counting(new FileInputStream(file)), STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE))) {
             TarEntry entry;
-            ByteArrayOutputStream baos;
 
             while ((entry = tis.getNextEntry()) != null) {
-                final String entryName = entry.getName();
+                final String name = normalizeEntryName(entry.getName());
 
-                if (entryName != null) {
-                    baos = new ByteArrayOutputStream();
-                    tis.copyEntryContents(baos);
-                    final byte[] bytes = baos.toByteArray();
-                    content.put(entryName, bytes);
+                if (matcher.test(name)) {
+                    return name;
                 }
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
+        return null;
+    }
+
+    /**
+     * Strip the leading "./" or "/" that some tar tools put on entry names, so that names
+     * can be compared against plain relative paths like "usr/bin/kachikachi".
+     * @param entryName The raw name of the entry
+     * @return The entry name relative to the root of the archive
+     */
+    public static String normalizeEntryName(final String entryName) {
+        String name = entryName;
+
+        while (name.startsWith("./") || name.startsWith("/")) {
+            name = name.substring(name.startsWith("./") ? 2 : 1);
+        }
+
+        return name;
     }
 
     public byte[] getEntryContent(final String entryName) {
@@ -0,0 +1,20 @@
+package com.teamzebra.snesclassic.tarfiles;
+
+import org.apache.tools.tar.TarEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Callback used when streaming through a .tar.gz archive one entry at a time.
+ */
+public interface TarGzEntryVisitor {
+
+    /**
+     * Called once for every entry in the archive, in archive order.
+     * @param entry The tar header of the current entry
+     * @param content The content of the entry; only valid until this method returns
+     * @throws IOException
+     */
+    void visitEntry(TarEntry entry, InputStream content) throws IOException;
+}
@@ -0,0 +1,114 @@
+package com.teamzebra.snesclassic.tarfiles;
+
+import com.teamzebra.snesclassic.report.IoCounters;
+import org.apache.tools.tar.TarEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Predicate;
+
+/**
+ * Writes each visited archive entry straight to disk, through a single reusable buffer,
+ * so extracting a large archive never holds more than one buffer's worth of it in memory.
+ */
+public class TarGzExtractor implements TarGzEntryVisitor {
+
+    /**
+     * Size of the buffer used to move entry content from the archive to disk.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File outputDirectory;
+    private final String canonicalOutputPath;
+    private final Predicate<String> filter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public TarGzExtractor(final File outputDirectory) throws IOException {
+        this(outputDirectory, path -> true);
+    }
+
+    /**
+     * @param outputDirectory The directory to extract entries into
+     * @param filter Decides, from the normalized entry name, whether an entry gets extracted;
+     *               rejected entries are skipped without being read
+     * @throws IOException
+     */
+    public TarGzExtractor(final File outputDirectory, final Predicate<String> filter) throws IOException {
+        this.outputDirectory = outputDirectory;
+        this.canonicalOutputPath = outputDirectory.getCanonicalPath() + File.separator;
+        this.filter = filter;
+    }
+
+    /**
+     * Whether the given entry would be written out by this extractor.
+     * @param entry The tar header of the entry
+     * @return True if the entry passes the filter
+     */
+    public boolean accepts(final TarEntry entry) {
+        return filter.test(TarGzArchive.normalizeEntryName(entry.getName()));
+    }
+
+    /**
+     * Extract every entry of the given archive into the output directory.
+     * @param archive The .tar.gz archive to extract
+     * @throws IOException
+     */
+    public void extract(final File archive) throws IOException {
+        TarGzArchive.visitEntries(archive, this);
+    }
+
+    @Override
+    public void visitEntry(final TarEntry entry, final InputStream content) throws IOException {
+        if (!accepts(entry)) {
+            return;
+        }
+
+        final File newFile = resolve(entry.getName());
+
+        if (entry.isDirectory()) {
+            if (!newFile.isDirectory() && !newFile.mkdirs()) {
+                throw new IOException(String.format("Couldn't create directory %s", newFile));
+            }
+            return;
+        }
+
+        final File parent = newFile.getParentFile();
+
+        if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException(String.format("Couldn't create directory %s", parent));
+        }
+
+        long written = 0;
+
+        try (FileOutputStream fos = new FileOutputStream(newFile)) {
+            int read;
+
+            while ((read = content.read(buffer)) != -1) {
+                fos.write(buffer, 0, read);
+                written += read;
+            }
+        }
+
+        IoCounters.wroteFile(written);
+    }
+
+    /**
+     * Resolve an entry name against the output directory, refusing names that would
+     * escape it (e.g. "../../etc/passwd").
+     * @param entryName The name of the entry within the archive
+     * @return The file to write the entry to
+     * @throws IOException
+     */
+    private File resolve(final String entryName) throws IOException {
+        final File file = new File(outputDirectory, entryName);
+
+        if (!(file.getCanonicalPath() + File.separator).startsWith(canonicalOutputPath)) {
+            throw new IOException(String.format("Archive entry '%s' points outside of %s",
+                    entryName, outputDirectory));
+        }
+
+        return file;
+    }
+}
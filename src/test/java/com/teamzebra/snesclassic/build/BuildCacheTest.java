@@ -0,0 +1,120 @@
+package com.teamzebra.snesclassic.build;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.teamzebra.snesclassic.firmware.FirmwareProfile;
+import com.teamzebra.snesclassic.hmod.HmodPatches;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BuildCacheTest {
+
+    private static final String DUMP_KEY = "79c75672-00532000-5209323";
+    private static final String LAYOUT = "layout-digest";
+    private static final String UNPATCHED = "lib/liblzo2.so";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final HmodPatches patches = new HmodPatches(ImmutableList.of("CLV-P-NAAAE"),
+            HmodPatches.getBinaryPatches(FirmwareProfile.NES_102));
+
+    private File hmod;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        hmod = folder.newFolder("hmod");
+        cacheFile = new File(folder.getRoot(), "hmod.cache");
+
+        final BuildCache cache = new BuildCache(hmod, DUMP_KEY, LAYOUT);
+
+        for (String path : outputs()) {
+            write(path, "built from the dump: " + path);
+            cache.record(path, "usr/" + path, "hash of " + path, "output hash", patches);
+        }
+
+        cache.save(cacheFile);
+    }
+
+    @Test
+    public void findsNothingStaleAfterARoundTrip() throws IOException {
+        final BuildCache cache = BuildCache.load(cacheFile, hmod);
+
+        assertNotNull(cache);
+        assertEquals(outputs().size(), cache.size());
+        assertEquals(ImmutableSet.of(), cache.findStaleOutputs(DUMP_KEY, LAYOUT, patches));
+    }
+
+    @Test
+    public void rebuildsEverythingForAnotherDumpOrLayout() throws IOException {
+        final BuildCache cache = BuildCache.load(cacheFile, hmod);
+
+        assertNull(cache.findStaleOutputs("another-dump", LAYOUT, patches));
+        assertNull(cache.findStaleOutputs(DUMP_KEY, "another-layout", patches));
+    }
+
+    @Test
+    public void rebuildsEverythingForAPatchOfAFileItNeverBuilt() throws IOException {
+        final HmodPatches moreGames = new HmodPatches(ImmutableList.of("CLV-P-NAAAE", "CLV-P-NAACE"),
+                HmodPatches.getBinaryPatches(FirmwareProfile.NES_102));
+
+        assertNull(BuildCache.load(cacheFile, hmod).findStaleOutputs(DUMP_KEY, LAYOUT, moreGames));
+    }
+
+    @Test
+    public void rebuildsFilesWhosePatchesChanged() throws IOException {
+        // the JPN release has its kachikachi patch sites elsewhere, and everything else the same
+        final HmodPatches moved = new HmodPatches(ImmutableList.of("CLV-P-NAAAE"),
+                HmodPatches.getBinaryPatches(FirmwareProfile.HVC_105));
+
+        assertEquals(ImmutableSet.of("bin/kachikachi"),
+                BuildCache.load(cacheFile, hmod).findStaleOutputs(DUMP_KEY, LAYOUT, moved));
+    }
+
+    @Test
+    public void rebuildsFilesChangedOrRemovedOnDisk() throws IOException {
+        write("bin/clover-mcp-nes", "edited by hand, and longer than before");
+        final File desktop = new File(hmod, HmodPatches.getGameDesktopFile("CLV-P-NAAAE"));
+        assertTrue(desktop.setLastModified(desktop.lastModified() - 10000));
+        assertTrue(new File(hmod, UNPATCHED).delete());
+
+        assertEquals(ImmutableSet.of("bin/clover-mcp-nes", HmodPatches.getGameDesktopFile("CLV-P-NAAAE"), UNPATCHED),
+                ImmutableSet.copyOf(BuildCache.load(cacheFile, hmod).findStaleOutputs(DUMP_KEY, LAYOUT, patches)));
+    }
+
+    @Test
+    public void ignoresMissingOrForeignCacheFiles() throws IOException {
+        assertNull(BuildCache.load(new File(folder.getRoot(), "missing.cache"), hmod));
+
+        Files.write(cacheFile.toPath(), "# some other file\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(BuildCache.load(cacheFile, hmod));
+    }
+
+    private List<String> outputs() {
+        final List<String> outputs = new ArrayList<>(patches.getTextPatches().keySet());
+        outputs.addAll(patches.getBinaryPatches().keySet());
+        outputs.add(UNPATCHED);
+        return outputs;
+    }
+
+    private void write(final String path, final String content) throws IOException {
+        final File file = new File(hmod, path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,145 @@
+package com.teamzebra.snesclassic.firmware;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DumpDetectorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recognizesARenamedSyntheticDumpByItsContent() throws IOException {
+        final FirmwareProfile profile = FirmwareProfile.synthetic(FirmwareProfile.NES_102, 30);
+        final File dump = new File(folder.getRoot(), "renamed.tar.gz");
+        new SyntheticDumpWriter(profile, 0, 1).write(dump, 2);
+
+        final DumpDetector detector = new DumpDetector(cache());
+        DumpDetector.Detection detection = detector.detect(dump, false);
+        assertEquals(profile.getId(), detection.getProfile().getId());
+        assertEquals("content", detection.getMethod());
+
+        detection = detector.detect(dump, false);
+        assertEquals(profile.getId(), detection.getProfile().getId());
+        assertEquals("fingerprint", detection.getMethod());
+    }
+
+    @Test
+    public void remembersArchivesThatArentDumps() throws IOException {
+        final File archive = writeArchive("photos.tar.gz");
+
+        final DumpDetector detector = new DumpDetector(cache());
+        DumpDetector.Detection detection = detector.detect(archive, false);
+        assertNull(detection.getProfile());
+        assertEquals("unrecognized", detection.getMethod());
+        detector.save();
+        assertTrue(new String(Files.readAllBytes(cache().toPath()), StandardCharsets.ISO_8859_1)
+                .contains("=unknown"));
+
+        // spoil the middle of the archive, keeping its fingerprint: a probe would now fail to read it
+        try (RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+            file.seek(file.length() / 2);
+            file.write(new byte[1024]);
+        }
+
+        detection = new DumpDetector(cache()).detect(archive, false);
+        assertNull(detection.getProfile());
+        assertEquals("unrecognized", detection.getMethod());
+    }
+
+    @Test
+    public void reportsACorruptGzipAsUnreadable() throws IOException {
+        final File archive = new File(folder.getRoot(), "random.tar.gz");
+
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(archive))) {
+            out.write(randomBytes(64 * 1024));
+        }
+
+        final DumpDetector detector = new DumpDetector(cache());
+        final DumpDetector.Detection detection = detector.detect(archive, false);
+        assertNull(detection.getProfile());
+        assertTrue(detection.getMethod(), detection.getMethod().startsWith("unreadable: "));
+
+        // it may be a dump that's still being copied, so it's probed again next time
+        detector.save();
+        assertFalse(cache().exists());
+    }
+
+    @Test
+    public void reportsATruncatedArchiveAsUnreadable() throws IOException {
+        final File dump = writeArchive("partial.tar.gz");
+
+        try (RandomAccessFile file = new RandomAccessFile(dump, "rw")) {
+            file.setLength(file.length() / 10);
+        }
+
+        final DumpDetector.Detection detection = new DumpDetector(cache()).detect(dump, false);
+        assertNull(detection.getProfile());
+        assertTrue(detection.getMethod(), detection.getMethod().startsWith("unreadable: "));
+    }
+
+    @Test
+    public void officialNameOutranksACachedUnknown() throws IOException {
+        final File archive = new File(folder.getRoot(), "other.tar.gz");
+
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(archive))) {
+            out.write(new byte[10240]);
+        }
+
+        final DumpDetector detector = new DumpDetector(cache());
+        assertEquals("unrecognized", detector.detect(archive, false).getMethod());
+
+        final File named = new File(folder.getRoot(), FirmwareProfile.NES_102.getDumpFileName());
+        assertTrue(archive.renameTo(named));
+        final DumpDetector.Detection detection = detector.detect(named, false);
+        assertEquals(FirmwareProfile.NES_102, detection.getProfile());
+        assertEquals("file name", detection.getMethod());
+    }
+
+    /**
+     * Write a .tar.gz that isn't a NESC dump, without an original name in its gzip header.
+     */
+    private File writeArchive(final String name) throws IOException {
+        final File archive = new File(folder.getRoot(), name);
+
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(
+                new FileOutputStream(archive)))) {
+            final byte[] content = randomBytes(256 * 1024);
+            final TarArchiveEntry entry = new TarArchiveEntry("./photos/holiday.jpg");
+            entry.setSize(content.length);
+            tar.putArchiveEntry(entry);
+            tar.write(content);
+            tar.closeArchiveEntry();
+        }
+
+        return archive;
+    }
+
+    private File cache() {
+        return new File(folder.getRoot(), "fingerprints.properties");
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+}
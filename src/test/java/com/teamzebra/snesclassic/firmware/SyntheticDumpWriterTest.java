@@ -0,0 +1,116 @@
+package com.teamzebra.snesclassic.firmware;
+
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyntheticDumpWriterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesThePatchSitesAtTheKnownOffsets() throws IOException {
+        for (FirmwareProfile base : FirmwareProfile.ALL) {
+            for (int scale : new int[] {1, 3}) {
+                final FirmwareProfile profile = FirmwareProfile.synthetic(base, base.getGameCodes().size());
+                final Map<String, byte[]> files = read(write(profile, scale));
+
+                assertText(files.get("usr/bin/clover-mcp"), profile.getCloverMcpOffset() - 1,
+                        "/usr/share/clover-mcp");
+                assertText(files.get("usr/bin/kachikachi"), profile.getKachikachiOffset1() - 1,
+                        "/usr/share/kachikachi");
+                assertText(files.get("usr/bin/kachikachi"), profile.getKachikachiOffset2() - 1,
+                        "/usr/share/kachikachi/shaders");
+                assertText(files.get("usr/bin/ReedPlayer-Clover"), profile.getReedPlayerOffset1() - 1,
+                        "/usr/share/reed-libs");
+                assertText(files.get("usr/bin/ReedPlayer-Clover"), profile.getReedPlayerOffset2(), "home-menu");
+                assertEquals(0x130000L * scale, files.get("usr/bin/ReedPlayer-Clover").length);
+            }
+        }
+    }
+
+    @Test
+    public void countsWhatItWrites() throws IOException {
+        final FirmwareProfile profile = FirmwareProfile.synthetic(FirmwareProfile.NES_102, 35);
+        final SyntheticDumpWriter writer = new SyntheticDumpWriter(profile, 10, 2);
+        final File dump = new File(folder.getRoot(), "dump.tar.gz");
+        writer.write(dump, 2);
+
+        final Map<String, byte[]> files = read(dump);
+        long bytes = 0;
+
+        for (byte[] content : files.values()) {
+            bytes += content.length;
+        }
+
+        assertEquals(files.size(), writer.getEntries());
+        assertEquals(bytes, writer.getBytes());
+        assertEquals(35, files.keySet().stream().filter(path -> path.endsWith(".nes")).count());
+        assertEquals(40 * 1024 * 2, files.get(String.format("usr/share/games/nes/kachikachi/%1$s/%1$s.nes",
+                profile.getGameCodes().get(0))).length);
+    }
+
+    @Test
+    public void writesTheSameDumpEveryTime() throws IOException {
+        final FirmwareProfile profile = FirmwareProfile.synthetic(FirmwareProfile.HVC_105, 20);
+        final Map<String, byte[]> first = read(write(profile, 2));
+        final Map<String, byte[]> second = read(write(profile, 2));
+
+        // the timestamps differ, so it's the files that are compared rather than the tarballs
+        assertEquals(first.keySet(), second.keySet());
+
+        for (Map.Entry<String, byte[]> file : first.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), second.get(file.getKey()));
+        }
+    }
+
+    @Test
+    public void rejectsAScaleTooLargeForATarEntry() {
+        new SyntheticDumpWriter(FirmwareProfile.NES_102, 0, SyntheticDumpWriter.MAX_SCALE);
+
+        try {
+            new SyntheticDumpWriter(FirmwareProfile.NES_102, 0, SyntheticDumpWriter.MAX_SCALE + 1);
+            fail("Expected the scale to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("more than a tar entry can hold"));
+        }
+    }
+
+    private File write(final FirmwareProfile profile, final int scale) throws IOException {
+        final File dump = folder.newFile();
+        new SyntheticDumpWriter(profile, 0, scale).write(dump, 2);
+        return dump;
+    }
+
+    private static Map<String, byte[]> read(final File dump) throws IOException {
+        final Map<String, byte[]> files = new TreeMap<>();
+
+        TarGzArchive.visitEntries(dump, (entry, content) -> {
+            if (!entry.isDirectory()) {
+                files.put(TarGzArchive.normalizeEntryName(entry.getName()), ByteStreams.toByteArray(content));
+            }
+        });
+
+        return files;
+    }
+
+    private static void assertText(final byte[] content, final long offset, final String text) {
+        final byte[] expected = text.getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(text, expected, Arrays.copyOfRange(content, (int) offset, (int) offset + expected.length));
+    }
+}
@@ -0,0 +1,90 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ArchiveHmodSinkTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesTheArchiveOnCommit() throws IOException {
+        final File archive = new File(folder.getRoot(), "out/test.hmod");
+
+        try (HmodSink sink = new ArchiveHmodSink(archive, 2)) {
+            sink.writeDirectory("bin");
+            sink.writeFile("bin/switch", "#!/bin/sh\n".getBytes(StandardCharsets.US_ASCII), 0755);
+            sink.writeFile("install", "echo".getBytes(StandardCharsets.US_ASCII), 0644);
+            sink.commit();
+        }
+
+        final Map<String, byte[]> entries = read(archive);
+        assertEquals(3, entries.size());
+        assertArrayEquals("#!/bin/sh\n".getBytes(StandardCharsets.US_ASCII), entries.get("bin/switch"));
+        assertFalse(new File(archive.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void keepsThePreviousArchiveWhenNotCommitted() throws IOException {
+        final File archive = new File(folder.getRoot(), "test.hmod");
+
+        try (HmodSink sink = new ArchiveHmodSink(archive, 2)) {
+            sink.writeFile("install", "first".getBytes(StandardCharsets.US_ASCII), 0644);
+            sink.commit();
+        }
+
+        final byte[] committed = Files.readAllBytes(archive.toPath());
+
+        try (HmodSink sink = new ArchiveHmodSink(archive, 2)) {
+            sink.writeFile("install", "second".getBytes(StandardCharsets.US_ASCII), 0644);
+            throw new IOException("build failed");
+        } catch (IOException e) {
+            assertEquals("build failed", e.getMessage());
+        }
+
+        assertArrayEquals(committed, Files.readAllBytes(archive.toPath()));
+        assertFalse(new File(archive.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void leavesNothingBehindWhenNotCommitted() throws IOException {
+        final File archive = new File(folder.getRoot(), "test.hmod");
+
+        try (HmodSink sink = new ArchiveHmodSink(archive, 2)) {
+            sink.writeFile("install", "partial".getBytes(StandardCharsets.US_ASCII), 0644);
+        }
+
+        assertFalse(archive.exists());
+        assertFalse(new File(archive.getPath() + ".tmp").exists());
+
+        try {
+            read(archive);
+            fail("Expected no archive to read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Map<String, byte[]> read(final File archive) throws IOException {
+        final Map<String, byte[]> entries = new TreeMap<>();
+        TarGzArchive.visitEntries(archive, (entry, content) ->
+                entries.put(TarGzArchive.normalizeEntryName(entry.getName()), ByteStreams.toByteArray(content)));
+        return entries;
+    }
+}
@@ -0,0 +1,213 @@
+package com.teamzebra.snesclassic.hmod;
+
+import com.google.common.io.ByteStreams;
+import com.teamzebra.snesclassic.tarfiles.TarGzArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HmodDeltaTest {
+
+    private static final int BLOCK = HmodManifest.BLOCK_SIZE;
+    private static final String LIBRARY = "lib/libretro.so";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void identicalBuildsNeedNoUpdate() throws IOException {
+        final byte[] library = randomBytes(10 * BLOCK);
+        final HmodDelta delta = new HmodDelta(manifest("before", library), manifest("after", library));
+
+        assertTrue(delta.isEmpty());
+        assertEquals(1, delta.getUnchanged());
+        assertEquals(0, delta.getPayloadBytes());
+    }
+
+    @Test
+    public void shipsOnlyTheChangedRuns() throws IOException {
+        final byte[] before = randomBytes(10 * BLOCK);
+        final byte[] after = before.clone();
+        change(after, 2 * BLOCK + 10);
+        change(after, 3 * BLOCK + BLOCK - 1);
+        change(after, 7 * BLOCK);
+
+        final HmodDelta delta = new HmodDelta(manifest("before", before), manifest("after", after));
+        assertEquals(1, delta.getPatched());
+        assertEquals(0, delta.getRewritten());
+        assertEquals(3 * BLOCK, delta.getPayloadBytes());
+
+        final Map<String, byte[]> entries = write(delta, "after");
+        assertArrayEquals(concat(Arrays.copyOfRange(after, 2 * BLOCK, 4 * BLOCK),
+                Arrays.copyOfRange(after, 7 * BLOCK, 8 * BLOCK)), entries.get("blocks/" + LIBRARY));
+
+        final String script = new String(entries.get("install"), StandardCharsets.UTF_8);
+        assertTrue(script.contains("bs=4096 skip=0 seek=2 count=2 conv=notrunc"));
+        assertTrue(script.contains("bs=4096 skip=2 seek=7 count=1 conv=notrunc"));
+        assertFalse(script.contains("if=/dev/null"));
+    }
+
+    @Test
+    public void shipsAShortLastBlockAsItIs() throws IOException {
+        final byte[] before = randomBytes(10 * BLOCK + BLOCK / 2);
+        final byte[] after = before.clone();
+        change(after, after.length - 1);
+
+        final HmodDelta delta = new HmodDelta(manifest("before", before), manifest("after", after));
+        assertEquals(BLOCK / 2, delta.getPayloadBytes());
+
+        final Map<String, byte[]> entries = write(delta, "after");
+        assertArrayEquals(Arrays.copyOfRange(after, 10 * BLOCK, after.length), entries.get("blocks/" + LIBRARY));
+        assertTrue(new String(entries.get("install"), StandardCharsets.UTF_8).contains("skip=0 seek=10 count=1"));
+    }
+
+    @Test
+    public void setsTheSizeOfAFileThatGrewOrShrank() throws IOException {
+        final byte[] before = randomBytes(10 * BLOCK);
+        final byte[] grown = concat(before, randomBytes(BLOCK + 100));
+        final byte[] shrunk = Arrays.copyOf(before, 8 * BLOCK + 100);
+
+        final HmodDelta growing = new HmodDelta(manifest("before", before), manifest("grown", grown));
+        assertEquals(BLOCK + 100, growing.getPayloadBytes());
+        final String grownScript = new String(write(growing, "grown").get("install"), StandardCharsets.UTF_8);
+        assertTrue(grownScript.contains("skip=0 seek=10 count=2"));
+        assertTrue(grownScript.contains("bs=1 seek=" + grown.length));
+
+        // only the now short last block differs; the blocks after it are cut off
+        final HmodDelta shrinking = new HmodDelta(manifest("before", before), manifest("shrunk", shrunk));
+        assertEquals(100, shrinking.getPayloadBytes());
+        final String shrunkScript = new String(write(shrinking, "shrunk").get("install"), StandardCharsets.UTF_8);
+        assertTrue(shrunkScript.contains("skip=0 seek=8 count=1"));
+        assertTrue(shrunkScript.contains("bs=1 seek=" + shrunk.length));
+    }
+
+    @Test
+    public void shipsFilesThatMostlyChangedWhole() throws IOException {
+        final byte[] before = randomBytes(10 * BLOCK);
+        final byte[] after = before.clone();
+
+        for (int i = 0; i < 6; i++) {
+            change(after, i * BLOCK);
+        }
+
+        final HmodDelta delta = new HmodDelta(manifest("before", before), manifest("after", after));
+        assertEquals(0, delta.getPatched());
+        assertEquals(1, delta.getRewritten());
+        assertEquals(after.length, delta.getPayloadBytes());
+
+        final Map<String, byte[]> entries = write(delta, "after");
+        assertArrayEquals(after, entries.get("files/" + LIBRARY));
+        assertFalse(entries.containsKey("blocks/" + LIBRARY));
+    }
+
+    @Test
+    public void checksTheSizeAndHashOfEachPatchedFile() throws IOException {
+        final byte[] before = randomBytes(10 * BLOCK);
+        final byte[] after = before.clone();
+        change(after, 0);
+
+        final HmodManifest previous = manifest("before", before);
+        final HmodDelta delta = new HmodDelta(previous, manifest("after", after));
+        final String script = new String(write(delta, "after").get("install"), StandardCharsets.UTF_8);
+
+        assertTrue(script.contains(String.format("delta_check '%s' %d %s || return 1", LIBRARY, before.length,
+                previous.getEntry(LIBRARY).getSha256())));
+        assertTrue(script.contains("sha256sum"));
+        assertTrue(script.indexOf("delta_check '") < script.indexOf("dd if="));
+    }
+
+    @Test
+    public void addsAndRemovesFiles() throws IOException {
+        final byte[] library = randomBytes(3 * BLOCK);
+        final File before = hmod("before", library);
+        Files.write(new File(before, "etc/old.cfg").toPath(), randomBytes(100));
+        final File after = hmod("after", library);
+        Files.write(new File(after, "bin/new").toPath(), randomBytes(200));
+
+        final HmodDelta delta = new HmodDelta(manifest(before), manifest(after));
+        assertEquals(1, delta.getUnchanged());
+        assertEquals(1, delta.getAdded());
+        assertEquals(1, delta.getRemoved());
+        assertEquals(200, delta.getPayloadBytes());
+
+        final Map<String, byte[]> entries = write(delta, "after");
+        assertTrue(entries.containsKey("files/bin/new"));
+        final String script = new String(entries.get("install"), StandardCharsets.UTF_8);
+        assertTrue(script.contains("cp 'files/bin/new' \"$rootfs/\"'bin/new'"));
+        assertTrue(script.contains("rm -f \"$rootfs/\"'etc/old.cfg'"));
+        assertTrue(script.contains("rmdir \"$rootfs/\"'etc'"));
+        assertFalse(script.contains("delta_check"));
+    }
+
+    private File hmod(final String name, final byte[] library) throws IOException {
+        final File hmod = new File(folder.getRoot(), name);
+        new File(hmod, "lib").mkdirs();
+        new File(hmod, "bin").mkdirs();
+        new File(hmod, "etc").mkdirs();
+        Files.write(new File(hmod, LIBRARY).toPath(), library);
+        Files.write(new File(hmod, "install").toPath(), name.getBytes(StandardCharsets.US_ASCII));
+        return hmod;
+    }
+
+    private HmodManifest manifest(final String name, final byte[] library) throws IOException {
+        return manifest(hmod(name, library));
+    }
+
+    private static HmodManifest manifest(final File hmod) throws IOException {
+        final HmodManifest manifest = new HmodManifest("test");
+
+        for (String path : new String[] {LIBRARY, "install", "etc/old.cfg", "bin/new"}) {
+            final File file = new File(hmod, path);
+
+            if (file.isFile()) {
+                manifest.recordFile(path, file);
+            }
+        }
+
+        return manifest;
+    }
+
+    private Map<String, byte[]> write(final HmodDelta delta, final String hmod) throws IOException {
+        final File output = new File(folder.getRoot(), hmod + "-delta.hmod");
+        delta.write(new File(folder.getRoot(), hmod), output, 2);
+
+        final Map<String, byte[]> entries = new TreeMap<>();
+        TarGzArchive.visitEntries(output, (entry, content) ->
+                entries.put(TarGzArchive.normalizeEntryName(entry.getName()), ByteStreams.toByteArray(content)));
+        return entries;
+    }
+
+    private byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void change(final byte[] content, final int position) {
+        content[position] ^= 0x5A;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        out.write(second);
+        return out.toByteArray();
+    }
+}
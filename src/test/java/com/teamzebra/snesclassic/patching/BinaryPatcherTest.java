@@ -0,0 +1,114 @@
+package com.teamzebra.snesclassic.patching;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryPatcherTest {
+
+    private static final BinaryPatch KACHIKACHI = BinaryPatch.replace("/usr/share/kachikachi", 1, "etc");
+
+    @Test
+    public void locatesTheHintedSite() throws IOException {
+        final ByteBuffer content = content(40, "/usr/share/kachikachi", 100, "/usr/share/kachikachi");
+
+        assertEquals(101, BinaryPatcher.locate(content, KACHIKACHI.hint(101), "test", new HashSet<>()));
+    }
+
+    @Test
+    public void scansWhenOnlyTheReplacedBytesAreAtTheHint() throws IOException {
+        // the firmware moved its strings, leaving some other "usr" where the hint points
+        final ByteBuffer content = content(40, "/usr/local/bin", 100, "/usr/share/kachikachi");
+
+        assertEquals(101, BinaryPatcher.locate(content, KACHIKACHI.hint(41), "test", new HashSet<>()));
+    }
+
+    @Test
+    public void scansForTheRequestedOccurrence() throws IOException {
+        final ByteBuffer content = content(40, "/usr/share/kachikachi", 100, "/usr/share/kachikachi/shaders");
+
+        assertEquals(41, BinaryPatcher.locate(content, KACHIKACHI, "test", new HashSet<>()));
+        assertEquals(101, BinaryPatcher.locate(content, KACHIKACHI.occurrence(1), "test", new HashSet<>()));
+    }
+
+    @Test
+    public void neverResolvesTwoPatchesToTheSameSite() throws IOException {
+        final ByteBuffer content = content(40, "/usr/share/kachikachi", 100, "/usr/share/kachikachi");
+
+        try {
+            // both hinted at the first string, the second one should have been told it's the second
+            BinaryPatcher.apply(content, ImmutableList.of(KACHIKACHI.hint(41), KACHIKACHI.hint(41)), "test");
+            fail("Expected the second patch to be refused the first patch's site");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already patched"));
+        }
+
+        assertEquals("nothing is written unless every site is found", "/usr/share/kachikachi",
+                text(content, 40, 21));
+    }
+
+    @Test
+    public void fallsBackFromAClaimedHint() throws IOException {
+        final ByteBuffer content = content(40, "/usr/share/kachikachi", 100, "/usr/share/kachikachi");
+        BinaryPatcher.apply(content, ImmutableList.of(KACHIKACHI.hint(41), KACHIKACHI.occurrence(1).hint(41)),
+                "test");
+
+        assertEquals("/etc/share/kachikachi", text(content, 40, 21));
+        assertEquals("/etc/share/kachikachi", text(content, 100, 21));
+    }
+
+    @Test
+    public void failsWhenTheSignatureIsMissing() {
+        final ByteBuffer content = content(40, "/usr/share/clover-mcp");
+
+        try {
+            BinaryPatcher.apply(content, ImmutableList.of(KACHIKACHI.hint(41)), "test");
+            fail("Expected a missing signature to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Found 0 occurrence(s)"));
+        }
+    }
+
+    @Test
+    public void verifiesAppliedPatches() throws IOException {
+        final ByteBuffer content = content(40, "/usr/share/kachikachi", 100, "/usr/share/kachikachi/shaders");
+        final List<BinaryPatch> patches = ImmutableList.of(KACHIKACHI.hint(41), KACHIKACHI.occurrence(1).hint(101));
+
+        assertEquals(2, BinaryPatcher.verify(content, patches, "test").size());
+
+        BinaryPatcher.apply(content, patches, "test");
+
+        assertEquals(ImmutableList.of(), BinaryPatcher.verify(content, patches, "test"));
+        assertEquals("two patches of one signature need two patched sites", 1,
+                BinaryPatcher.verify(content(40, "/etc/share/kachikachi"), patches, "test").size());
+    }
+
+    /**
+     * 200 bytes of filler with the given strings at the given offsets.
+     */
+    private static ByteBuffer content(final Object... placed) {
+        final byte[] bytes = new byte[200];
+        Arrays.fill(bytes, (byte) '.');
+
+        for (int i = 0; i < placed.length; i += 2) {
+            final byte[] text = ((String) placed[i + 1]).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(text, 0, bytes, (Integer) placed[i], text.length);
+        }
+
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static String text(final ByteBuffer content, final int offset, final int length) {
+        return new String(content.array(), offset, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,154 @@
+package com.teamzebra.snesclassic.patching;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MultiLiteralReplacerTest {
+
+    @Test
+    public void replacesLeftmostLongest() {
+        final MultiLiteralReplacer replacer = new MultiLiteralReplacer(ImmutableMap.of(
+                "/usr/share/games/nes/kachikachi", "/etc/nesgames",
+                "/usr/share", "/etc",
+                "share/games", "XXX"));
+
+        assertEquals("/etc/nesgames/CLV-P-NAAAE /etc/clover-mcp",
+                apply(replacer, "/usr/share/games/nes/kachikachi/CLV-P-NAAAE /usr/share/clover-mcp"));
+    }
+
+    @Test
+    public void neverRescansReplacements() {
+        final MultiLiteralReplacer replacer = new MultiLiteralReplacer(ImmutableMap.of("a", "b", "b", "c"));
+
+        assertEquals("bcbc", apply(replacer, "abab"));
+    }
+
+    @Test
+    public void treatsKeysAsLiterals() {
+        final MultiLiteralReplacer replacer = new MultiLiteralReplacer(ImmutableMap.of("a.c", "X"));
+
+        assertEquals("abc X", apply(replacer, "abc a.c"));
+    }
+
+    @Test
+    public void handsBackTheSameArrayWhenNothingMatches() {
+        final MultiLiteralReplacer replacer = new MultiLiteralReplacer(ImmutableMap.of("kachikachi", "x"));
+        final byte[] content = "clover".getBytes(StandardCharsets.UTF_8);
+
+        assertSame(content, replacer.apply(content));
+        assertEquals(-1, replacer.measure(ByteBuffer.wrap(content)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyKeys() {
+        new MultiLiteralReplacer(ImmutableMap.of("", "x"));
+    }
+
+    @Test
+    public void matchesBruteForceOnRandomInput() throws IOException {
+        final Random random = new Random(0x4E4553L);
+        final byte[] alphabet = "ab/.".getBytes(StandardCharsets.US_ASCII);
+
+        for (int round = 0; round < 3000; round++) {
+            final Map<String, String> substitutions = new LinkedHashMap<>();
+            final int keyCount = 1 + random.nextInt(6);
+
+            while (substitutions.size() < keyCount) {
+                substitutions.put(randomString(random, alphabet, 1 + random.nextInt(5)),
+                        randomString(random, "xyz".getBytes(StandardCharsets.US_ASCII), random.nextInt(4)));
+            }
+
+            final byte[] content = randomString(random, alphabet, random.nextInt(120))
+                    .getBytes(StandardCharsets.US_ASCII);
+            final MultiLiteralReplacer replacer = new MultiLiteralReplacer(substitutions);
+            final String message = String.format("%s on '%s'", substitutions,
+                    new String(content, StandardCharsets.US_ASCII));
+            final int[] expectedCount = new int[1];
+            final byte[] expected = bruteForce(substitutions, content, expectedCount);
+
+            assertArrayEquals(message, expected, replacer.apply(content));
+
+            // the same content in the middle of a larger array
+            final byte[] padded = new byte[content.length + 8];
+            System.arraycopy(content, 0, padded, 4, content.length);
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            assertEquals(message, expectedCount[0], replacer.apply(padded, 4, content.length, stream));
+            assertArrayEquals(message, expected, stream.toByteArray());
+
+            // and through buffers, sized by measure()
+            final ByteBuffer buffer = ByteBuffer.wrap(content);
+            final int measured = replacer.measure(buffer);
+            assertEquals(message, expectedCount[0] == 0 ? -1 : expected.length, measured);
+
+            if (measured >= 0) {
+                final ByteBuffer out = ByteBuffer.allocate(measured);
+                assertEquals(message, expectedCount[0], replacer.apply(buffer, out));
+                assertEquals(0, out.remaining());
+                assertArrayEquals(message, expected, out.array());
+                assertEquals("the content buffer is left as it was", 0, buffer.position());
+            }
+        }
+    }
+
+    /**
+     * At each position, take the longest key starting there, or copy one byte.
+     */
+    private static byte[] bruteForce(final Map<String, String> substitutions, final byte[] content,
+                                     final int[] count) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+
+        while (position < content.length) {
+            byte[] longestKey = null;
+            byte[] longestValue = null;
+
+            for (Map.Entry<String, String> entry : substitutions.entrySet()) {
+                final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+
+                if (position + key.length <= content.length
+                        && Arrays.equals(key, Arrays.copyOfRange(content, position, position + key.length))
+                        && (longestKey == null || key.length > longestKey.length)) {
+                    longestKey = key;
+                    longestValue = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                }
+            }
+
+            if (longestKey == null) {
+                out.write(content[position++]);
+            } else {
+                out.write(longestValue, 0, longestValue.length);
+                position += longestKey.length;
+                count[0]++;
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    private static String randomString(final Random random, final byte[] alphabet, final int length) {
+        final byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static String apply(final MultiLiteralReplacer replacer, final String content) {
+        return new String(replacer.apply(content.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,157 @@
+package com.teamzebra.snesclassic.pipeline;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StageGraphTest {
+
+    private static final Stage.Action NOTHING = context -> { };
+
+    @Test
+    public void ordersStagesByConflictingResources() {
+        final StageGraph graph = new StageGraph("test");
+        final Stage extract = graph.add(stage("extract", ImmutableList.of("dump.tar.gz"), ImmutableList.of("dump")));
+        final Stage copyBin = graph.add(stage("copy:bin", ImmutableList.of("dump/usr/bin"),
+                ImmutableList.of("hmod/bin")));
+        final Stage copyGames = graph.add(stage("copy:games", ImmutableList.of("dump/usr/share/games"),
+                ImmutableList.of("hmod/etc/nesgames")));
+        final Stage patchGame = graph.add(stage("patch:game", ImmutableList.of(),
+                ImmutableList.of("hmod/etc/nesgames/CLV-P-NAAAE/CLV-P-NAAAE.desktop")));
+        final Stage patchBin = graph.add(stage("patch:kachikachi", ImmutableList.of(),
+                ImmutableList.of("hmod/bin/kachikachi")));
+        final Stage flush = graph.add(stage("flush", ImmutableList.of("hmod"), ImmutableList.of("out")));
+
+        assertEquals(ImmutableList.of(), graph.getDependencies(extract));
+        assertEquals("reading what an earlier stage writes", ImmutableList.of(extract), graph.getDependencies(copyBin));
+        assertEquals(ImmutableList.of(extract), graph.getDependencies(copyGames));
+        assertEquals("writing within what an earlier stage writes", ImmutableList.of(copyGames),
+                graph.getDependencies(patchGame));
+        assertEquals(ImmutableList.of(copyBin), graph.getDependencies(patchBin));
+        assertEquals("reading above what earlier stages write",
+                ImmutableList.of(copyBin, copyGames, patchGame, patchBin), graph.getDependencies(flush));
+        assertEquals(ImmutableList.of(copyBin, copyGames), graph.getDependents(extract));
+        assertEquals(ImmutableList.of(extract, copyBin, copyGames, patchGame, patchBin, flush), graph.getStages());
+    }
+
+    @Test
+    public void onlyConflictsOnWholePathSegmentsAndWrites() {
+        final Stage readsBin = stage("a", ImmutableList.of("hmod/bin"), ImmutableList.of());
+        final Stage writesBin = stage("b", ImmutableList.of(), ImmutableList.of("hmod/bin"));
+
+        assertFalse("two readers",
+                stage("c", ImmutableList.of("hmod/bin"), ImmutableList.of()).conflictsWith(readsBin));
+        assertFalse("a sibling that shares a prefix",
+                stage("d", ImmutableList.of(), ImmutableList.of("hmod/binaries")).conflictsWith(writesBin));
+        assertTrue("writing what an earlier stage reads",
+                stage("e", ImmutableList.of(), ImmutableList.of("hmod/bin/switch")).conflictsWith(readsBin));
+        assertTrue("two writers", stage("f", ImmutableList.of(), ImmutableList.of("hmod")).conflictsWith(writesBin));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateNames() {
+        final StageGraph graph = new StageGraph("test");
+        graph.add(stage("copy", ImmutableList.of(), ImmutableList.of("a")));
+        graph.add(stage("copy", ImmutableList.of(), ImmutableList.of("b")));
+    }
+
+    @Test
+    public void findsTheCriticalPath() {
+        final StageGraph graph = new StageGraph("test");
+        final Stage extract = graph.add(stage("extract", ImmutableList.of(), ImmutableList.of("dump")));
+        final Stage fast = graph.add(stage("fast", ImmutableList.of("dump/a"), ImmutableList.of("hmod/a")));
+        final Stage slow = graph.add(stage("slow", ImmutableList.of("dump/b"), ImmutableList.of("hmod/b")));
+        final Stage flush = graph.add(stage("flush", ImmutableList.of("hmod"), ImmutableList.of()));
+        final Map<Stage, Long> durations = ImmutableMap.of(extract, 10L, fast, 5L, slow, 50L, flush, 10L);
+
+        assertEquals(ImmutableList.of(extract, slow, flush), graph.getCriticalPath(durations));
+    }
+
+    @Test
+    public void runsEveryStageAfterItsDependencies() throws IOException {
+        final AtomicLong clock = new AtomicLong();
+        final Map<String, long[]> times = new ConcurrentHashMap<>();
+        final StageGraph graph = new StageGraph("test");
+        final List<String> names = new ArrayList<>();
+
+        graph.add(timed("extract", ImmutableList.of(), ImmutableList.of("dump"), clock, times));
+
+        for (int i = 0; i < 8; i++) {
+            graph.add(timed("copy" + i, ImmutableList.of("dump/" + i), ImmutableList.of("hmod/" + i), clock, times));
+            graph.add(timed("patch" + i, ImmutableList.of(), ImmutableList.of("hmod/" + i + "/file"), clock, times));
+        }
+
+        graph.add(timed("flush", ImmutableList.of("hmod"), ImmutableList.of(), clock, times));
+
+        try (StageExecutor executor = new StageExecutor(4)) {
+            assertEquals(graph.size(),
+                    executor.run(graph, new BuildContext(new File("dump"), new File("hmod"))).size());
+        }
+
+        for (Stage stage : graph.getStages()) {
+            names.add(stage.getName());
+
+            for (Stage dependency : graph.getDependencies(stage)) {
+                assertTrue(String.format("%s started before %s finished", stage, dependency),
+                        times.get(stage.getName())[0] > times.get(dependency.getName())[1]);
+            }
+        }
+
+        assertEquals(names.size(), times.size());
+    }
+
+    @Test
+    public void stopsStartingStagesAfterAFailure() {
+        final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        final StageGraph graph = new StageGraph("test");
+        graph.add(new Stage("extract", ImmutableList.of(), ImmutableList.of("dump"), context -> {
+            throw new IOException("Couldn't find TAR archive");
+        }));
+        graph.add(new Stage("copy", ImmutableList.of("dump"), ImmutableList.of("hmod"), context -> ran.add("copy")));
+
+        try (StageExecutor executor = new StageExecutor(2)) {
+            executor.run(graph, new BuildContext(new File("dump"), new File("hmod")));
+            fail("Expected the stage's failure to be rethrown");
+        } catch (IOException e) {
+            assertEquals("Couldn't find TAR archive", e.getMessage());
+        }
+
+        assertEquals(ImmutableList.of(), ran);
+    }
+
+    private static Stage stage(final String name, final List<String> inputs, final List<String> outputs) {
+        return new Stage(name, inputs, outputs, NOTHING);
+    }
+
+    /**
+     * A stage that notes when it started and finished on a shared counter.
+     */
+    private static Stage timed(final String name, final List<String> inputs, final List<String> outputs,
+                               final AtomicLong clock, final Map<String, long[]> times) {
+        return new Stage(name, inputs, outputs, context -> {
+            final long start = clock.incrementAndGet();
+
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            times.put(name, new long[] { start, clock.incrementAndGet() });
+        });
+    }
+}
@@ -0,0 +1,198 @@
+package com.teamzebra.snesclassic.tarfiles;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CheckpointInflaterInputStreamTest {
+
+    private static final String[] WORDS = {
+            "clover", "kachikachi", "ReedPlayer", "usr", "share", "games", "nes", "desktop", "hmod",
+            "/usr/share/games/nes/kachikachi/", "\n", " ", "CLV-P-NAAAE", "0123456789" };
+
+    /**
+     * Where the block type of the first deflate block sits: the byte after the 10 byte gzip header
+     * that {@link GZIPOutputStream} writes.
+     */
+    private static final int FIRST_BLOCK = 10;
+
+    @Test
+    public void decodesEveryCompressionLevel() throws IOException {
+        final byte[] data = sample(300 * 1024, 1);
+
+        for (int level = 1; level <= 9; level++) {
+            assertArrayEquals("level " + level, data, inflate(gzip(data, level), 64 * 1024));
+        }
+    }
+
+    @Test
+    public void decodesStoredBlocks() throws IOException {
+        final byte[] data = sample(200 * 1024, 2);
+        final byte[] compressed = gzip(data, Deflater.NO_COMPRESSION);
+
+        assertEquals(0, blockType(compressed));
+        assertArrayEquals(data, inflate(compressed, 16 * 1024));
+    }
+
+    @Test
+    public void decodesFixedBlocks() throws IOException {
+        final byte[] data = "usr/share/clover-mcp usr/share/clover-mcp".getBytes(StandardCharsets.US_ASCII);
+        final byte[] compressed = gzip(data, Deflater.BEST_COMPRESSION);
+
+        assertEquals(1, blockType(compressed));
+        assertArrayEquals(data, inflate(compressed, 1024));
+    }
+
+    @Test
+    public void decodesDynamicBlocks() throws IOException {
+        final byte[] data = sample(100 * 1024, 3);
+        final byte[] compressed = gzip(data, Deflater.DEFAULT_COMPRESSION);
+
+        assertEquals(2, blockType(compressed));
+        assertArrayEquals(data, inflate(compressed, 16 * 1024));
+    }
+
+    @Test
+    public void decodesEmptyInput() throws IOException {
+        assertArrayEquals(new byte[0], inflate(gzip(new byte[0], Deflater.DEFAULT_COMPRESSION), 1024));
+    }
+
+    @Test
+    public void decodesParallelGzipOutput() throws IOException {
+        final byte[] data = sample(1024 * 1024, 4);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 4)) {
+            out.write(data);
+        }
+
+        assertArrayEquals(data, inflate(compressed.toByteArray(), 64 * 1024));
+    }
+
+    @Test
+    public void rejectsCorruptCrc() throws IOException {
+        final byte[] compressed = gzip(sample(50 * 1024, 5), Deflater.DEFAULT_COMPRESSION);
+        compressed[compressed.length - 8] ^= 1;
+        assertCorrupt(compressed, "CRC-32");
+    }
+
+    @Test
+    public void rejectsCorruptSize() throws IOException {
+        final byte[] compressed = gzip(sample(50 * 1024, 6), Deflater.DEFAULT_COMPRESSION);
+        compressed[compressed.length - 4] ^= 1;
+        assertCorrupt(compressed, "size");
+    }
+
+    @Test
+    public void rejectsTruncatedInput() throws IOException {
+        final byte[] compressed = gzip(sample(50 * 1024, 7), Deflater.DEFAULT_COMPRESSION);
+
+        try {
+            inflate(Arrays.copyOf(compressed, compressed.length / 2), 1024);
+            fail("Expected a truncated stream to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void resumesFromEveryCheckpoint() throws IOException {
+        for (int level : new int[] { Deflater.NO_COMPRESSION, 1, 6, 9 }) {
+            final byte[] data = sample(400 * 1024, 8 + level);
+            final byte[] compressed = gzip(data, level);
+            final List<GzipSeekIndex.Checkpoint> checkpoints;
+
+            try (CheckpointInflaterInputStream in = new CheckpointInflaterInputStream(
+                    new ByteArrayInputStream(compressed), 8 * 1024)) {
+                assertArrayEquals(data, ByteStreams.toByteArray(in));
+                checkpoints = in.getCheckpoints();
+            }
+
+            assertTrue("level " + level + " has several checkpoints", checkpoints.size() > 2);
+            assertEquals(0, checkpoints.get(0).getUncompressedOffset());
+
+            for (GzipSeekIndex.Checkpoint checkpoint : checkpoints) {
+                final InputStream in = new ByteArrayInputStream(compressed);
+                ByteStreams.skipFully(in, checkpoint.getBitOffset() / 8);
+
+                try (InputStream resumed = CheckpointInflaterInputStream.resume(in, checkpoint)) {
+                    assertArrayEquals(String.format("level %d from %d", level, checkpoint.getUncompressedOffset()),
+                            Arrays.copyOfRange(data, (int) checkpoint.getUncompressedOffset(), data.length),
+                            ByteStreams.toByteArray(resumed));
+                }
+            }
+        }
+    }
+
+    private static void assertCorrupt(final byte[] compressed, final String message) throws IOException {
+        try {
+            inflate(compressed, 1024);
+            fail("Expected a corrupt trailer to be rejected");
+        } catch (ZipException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static byte[] inflate(final byte[] compressed, final long checkpointSpacing) throws IOException {
+        try (InputStream in = new CheckpointInflaterInputStream(new ByteArrayInputStream(compressed),
+                checkpointSpacing)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static byte[] gzip(final byte[] data, final int level) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            out.write(data);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static int blockType(final byte[] compressed) {
+        return (compressed[FIRST_BLOCK] >> 1) & 3;
+    }
+
+    /**
+     * Text made of a few words, broken up by runs of random bytes, so every level finds both
+     * matches and literals to code.
+     */
+    private static byte[] sample(final int size, final long seed) {
+        final Random random = new Random(seed);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 64);
+
+        while (out.size() < size) {
+            if (random.nextInt(20) == 0) {
+                final byte[] noise = new byte[random.nextInt(300)];
+                random.nextBytes(noise);
+                out.write(noise, 0, noise.length);
+            } else {
+                final byte[] word = WORDS[random.nextInt(WORDS.length)].getBytes(StandardCharsets.US_ASCII);
+                out.write(word, 0, word.length);
+            }
+        }
+
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+}
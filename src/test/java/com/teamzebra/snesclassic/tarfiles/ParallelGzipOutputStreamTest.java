@@ -0,0 +1,137 @@
+package com.teamzebra.snesclassic.tarfiles;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    @Test
+    public void roundTripsAroundBlockBoundaries() throws IOException {
+        for (int size : new int[] { 0, 1, 1000, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 3 * BLOCK_SIZE + 7 }) {
+            final byte[] data = sample(size, size);
+            assertArrayEquals("size " + size, data, gunzip(gzip(data, 4, Deflater.DEFAULT_COMPRESSION)));
+        }
+    }
+
+    @Test
+    public void roundTripsOnAnyNumberOfThreads() throws IOException {
+        final byte[] data = sample(2 * 1024 * 1024, 1);
+
+        for (int threads : new int[] { 1, 2, 3, 8 }) {
+            assertArrayEquals(threads + " threads", data, gunzip(gzip(data, threads, Deflater.DEFAULT_COMPRESSION)));
+        }
+    }
+
+    @Test
+    public void roundTripsEveryLevel() throws IOException {
+        final byte[] data = sample(600 * 1024, 2);
+
+        for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+            assertArrayEquals("level " + level, data, gunzip(gzip(data, 4, level)));
+        }
+    }
+
+    @Test
+    public void roundTripsSmallWrites() throws IOException {
+        final byte[] data = sample(BLOCK_SIZE * 2 + 300, 3);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final Random random = new Random(3);
+
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 3)) {
+            int position = 0;
+
+            while (position < data.length) {
+                if (random.nextBoolean()) {
+                    out.write(data[position++]);
+                } else {
+                    final int length = Math.min(random.nextInt(5000), data.length - position);
+                    out.write(data, position, length);
+                    position += length;
+                }
+            }
+        }
+
+        assertArrayEquals(data, gunzip(compressed.toByteArray()));
+    }
+
+    @Test
+    public void compressesNearlyAsWellAsOneDeflater() throws IOException {
+        final byte[] data = sample(2 * 1024 * 1024, 4);
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+
+        final byte[] buffer = new byte[data.length];
+        int single = 0;
+
+        while (!deflater.finished()) {
+            single += deflater.deflate(buffer);
+        }
+
+        deflater.end();
+
+        final int parallel = gzip(data, 4, Deflater.DEFAULT_COMPRESSION).length;
+        assertTrue(String.format("%d bytes in parallel, %d in one", parallel, single), parallel < single * 1.05);
+    }
+
+    @Test
+    public void recordsTheOriginalName() throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 2,
+                Deflater.DEFAULT_COMPRESSION, "synthetic-nes-1.0.2-40.tar")) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+
+        final byte[] bytes = compressed.toByteArray();
+        assertEquals(0x08, bytes[3]);
+        assertEquals("synthetic-nes-1.0.2-40.tar", new String(bytes, 10, 26, "ISO-8859-1"));
+        assertEquals(0, bytes[36]);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, gunzip(bytes));
+    }
+
+    private static byte[] gzip(final byte[] data, final int threads, final int level) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, threads, level)) {
+            out.write(data);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(final byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    /**
+     * Bytes from a small alphabet, so they compress and back-references cross block boundaries.
+     */
+    private static byte[] sample(final int size, final long seed) {
+        final Random random = new Random(seed);
+        final byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ((i >= 64 && random.nextInt(4) != 0) ? data[i - 64 + random.nextInt(3)]
+                    : 'a' + random.nextInt(16));
+        }
+
+        return data;
+    }
+}